@@ -0,0 +1,406 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asynchronous facade of {@link DAO}, which runs the calls on its own bounded executors,
+ * so the calling threads never block on storage.
+ *
+ * <p>Reads, writes and background work such as compaction go to separate executors, so slow writes
+ * don't hold up reads and vice versa. Every executor has a bounded queue: once it is full, further calls
+ * complete exceptionally with {@link RejectedExecutionException} right away instead of piling up.
+ * Failures of the storage complete the futures exceptionally with the original exception,
+ * e.g. {@link java.util.NoSuchElementException} for missing keys.
+ *
+ * <p>Writes of a key are applied in the order of the calls: every write thread takes its own share
+ * of the keys by their hashes. Writes of many keys, i.e. range removals and batches, wait for the writes
+ * called before them on all the threads and hold up the ones called after them.
+ * Reads are not ordered with writes, so a read called after a write may not see it until the write completes.
+ *
+ * <p>The facade owns the storage and closes it once the queued calls are done.
+ */
+public final class AsyncDAO implements Closeable {
+    private static final int DEFAULT_QUEUE_DEPTH = 1024;
+
+    @NotNull
+    private final DAO dao;
+    @NotNull
+    private final ExecutorService reads;
+    @NotNull
+    private final ExecutorService[] writes;
+    @NotNull
+    private final ExecutorService background;
+
+    private AsyncDAO(@NotNull final Builder builder) {
+        this.dao = builder.dao;
+        this.reads = executor("lsm-async-read-%d", builder.readThreads, builder.readQueueDepth);
+        this.writes = new ExecutorService[builder.writeThreads];
+        final ThreadFactory writeThreads = threads("lsm-async-write-%d");
+        for (int i = 0; i < writes.length; i++) {
+            writes[i] = executor(writeThreads, 1, builder.writeQueueDepth);
+        }
+        this.background = executor("lsm-async-background-%d", builder.backgroundThreads, builder.backgroundQueueDepth);
+    }
+
+    @NotNull
+    public static Builder builder(@NotNull final DAO dao) {
+        return new Builder(dao);
+    }
+
+    @NotNull
+    private static ThreadFactory threads(@NotNull final String nameFormat) {
+        return new ThreadFactoryBuilder()
+                .setNameFormat(nameFormat)
+                .setDaemon(true)
+                .build();
+    }
+
+    @NotNull
+    private static ExecutorService executor(@NotNull final String nameFormat,
+                                            final int threads,
+                                            final int queueDepth) {
+        return executor(threads(nameFormat), threads, queueDepth);
+    }
+
+    @NotNull
+    private static ExecutorService executor(@NotNull final ThreadFactory threadFactory,
+                                            final int threads,
+                                            final int queueDepth) {
+        return new ThreadPoolExecutor(
+                threads,
+                threads,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueDepth),
+                threadFactory,
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    @NotNull
+    private static <T> CompletableFuture<T> submit(@NotNull final ExecutorService executor,
+                                                   @NotNull final Callable<T> call) {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    result.complete(call.call());
+                } catch (Exception e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Submits the write of the key to the thread taking the writes of the key.
+     */
+    @NotNull
+    private CompletableFuture<Void> write(@NotNull final ByteBuffer key,
+                                          @NotNull final Callable<Void> call) {
+        return submit(writes[Math.floorMod(key.hashCode(), writes.length)], call);
+    }
+
+    /**
+     * Submits the write of many keys to all the write threads, so it runs on the last of them to get to it,
+     * while the others wait for it to complete. The submissions are made one at a time, so that all the threads
+     * get them in the same order and never wait for each other.
+     */
+    @NotNull
+    private CompletableFuture<Void> writeAll(@NotNull final Callable<Void> call) {
+        if (writes.length == 1) {
+            return submit(writes[0], call);
+        }
+
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        final AtomicInteger waiting = new AtomicInteger(writes.length);
+        final CountDownLatch done = new CountDownLatch(1);
+        final Runnable barrier = () -> {
+            if (waiting.decrementAndGet() > 0) {
+                Uninterruptibles.awaitUninterruptibly(done);
+                return;
+            }
+
+            try {
+                // Not run if some of the threads rejected it
+                if (!result.isDone()) {
+                    result.complete(call.call());
+                }
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+            } finally {
+                done.countDown();
+            }
+        };
+
+        synchronized (writes) {
+            for (int i = 0; i < writes.length; i++) {
+                try {
+                    writes[i].execute(barrier);
+                } catch (RejectedExecutionException e) {
+                    result.completeExceptionally(e);
+                    if (waiting.addAndGet(i - writes.length) == 0) {
+                        done.countDown();
+                    }
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    @NotNull
+    private static List<Record> take(@NotNull final Iterator<Record> records, final int limit) {
+        final List<Record> result = new ArrayList<>();
+        while (result.size() < limit && records.hasNext()) {
+            result.add(records.next());
+        }
+        return result;
+    }
+
+    /**
+     * Obtains the value by given key, see {@link DAO#get(ByteBuffer)}.
+     */
+    @NotNull
+    public CompletableFuture<ByteBuffer> getAsync(@NotNull final ByteBuffer key) {
+        return submit(reads, () -> dao.get(key));
+    }
+
+    /**
+     * Obtains the values by given keys, see {@link DAO#multiGet(Collection)}.
+     */
+    @NotNull
+    public CompletableFuture<Map<ByteBuffer, ByteBuffer>> multiGetAsync(@NotNull final Collection<ByteBuffer> keys) {
+        return submit(reads, () -> dao.multiGet(keys));
+    }
+
+    /**
+     * Reads up to "limit" {@link Record}s starting at "from" key (inclusive) until given "to" key (exclusive)
+     * in <b>ascending</b> order, see {@link DAO#range(ByteBuffer, ByteBuffer)}.
+     * The records are read in full, so consuming them doesn't touch the storage.
+     */
+    @NotNull
+    public CompletableFuture<List<Record>> rangeAsync(@NotNull final ByteBuffer from,
+                                                      @Nullable final ByteBuffer to,
+                                                      final int limit) {
+        return submit(reads, () -> take(dao.range(from, to), limit));
+    }
+
+    /**
+     * Reads up to "limit" {@link Record}s starting at "from" key (inclusive) down to given "to" key (exclusive)
+     * in <b>descending</b> order, see {@link DAO#reverseRange(ByteBuffer, ByteBuffer)}.
+     */
+    @NotNull
+    public CompletableFuture<List<Record>> reverseRangeAsync(@Nullable final ByteBuffer from,
+                                                             @Nullable final ByteBuffer to,
+                                                             final int limit) {
+        return submit(reads, () -> take(dao.reverseRange(from, to), limit));
+    }
+
+    /**
+     * Inserts or updates value by given key, see {@link DAO#upsert(ByteBuffer, ByteBuffer)}.
+     */
+    @NotNull
+    public CompletableFuture<Void> upsertAsync(@NotNull final ByteBuffer key,
+                                               @NotNull final ByteBuffer value) {
+        return write(key, () -> {
+            dao.upsert(key, value);
+            return null;
+        });
+    }
+
+    /**
+     * Removes value by given key, see {@link DAO#remove(ByteBuffer)}.
+     */
+    @NotNull
+    public CompletableFuture<Void> removeAsync(@NotNull final ByteBuffer key) {
+        return write(key, () -> {
+            dao.remove(key);
+            return null;
+        });
+    }
+
+    /**
+     * Removes the keys of the range, see {@link DAO#removeRange(ByteBuffer, ByteBuffer)}.
+     */
+    @NotNull
+    public CompletableFuture<Void> removeRangeAsync(@NotNull final ByteBuffer from,
+                                                    @NotNull final ByteBuffer to) {
+        return writeAll(() -> {
+            dao.removeRange(from, to);
+            return null;
+        });
+    }
+
+    /**
+     * Applies the batch, see {@link DAO#apply(WriteBatch)}.
+     * The batch must not be changed until the future completes.
+     */
+    @NotNull
+    public CompletableFuture<Void> applyAsync(@NotNull final WriteBatch batch) {
+        return writeAll(() -> {
+            dao.apply(batch);
+            return null;
+        });
+    }
+
+    /**
+     * Performs compaction in background, see {@link DAO#compact()}.
+     */
+    @NotNull
+    public CompletableFuture<Void> compactAsync() {
+        return submit(background, () -> {
+            dao.compact();
+            return null;
+        });
+    }
+
+    private static void awaitTermination(@NotNull final ExecutorService executor) throws IOException {
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                throw new IOException("Can't await termination of queued calls");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while closing", e);
+        }
+    }
+
+    /**
+     * Stops taking calls, waits for the queued ones and closes the storage.
+     * The storage is closed even if the calls can't be awaited.
+     */
+    @Override
+    public void close() throws IOException {
+        reads.shutdown();
+        for (final ExecutorService executor : writes) {
+            executor.shutdown();
+        }
+        background.shutdown();
+        try {
+            awaitTermination(reads);
+            for (final ExecutorService executor : writes) {
+                awaitTermination(executor);
+            }
+            awaitTermination(background);
+        } finally {
+            dao.close();
+        }
+    }
+
+    public static final class Builder {
+        @NotNull
+        private final DAO dao;
+        private int readThreads = Runtime.getRuntime().availableProcessors();
+        private int readQueueDepth = DEFAULT_QUEUE_DEPTH;
+        private int writeThreads = Runtime.getRuntime().availableProcessors();
+        private int writeQueueDepth = DEFAULT_QUEUE_DEPTH;
+        private int backgroundThreads = 1;
+        private int backgroundQueueDepth = 16;
+
+        private Builder(@NotNull final DAO dao) {
+            this.dao = dao;
+        }
+
+        private static void check(final int threads, final int queueDepth) {
+            if (threads <= 0) {
+                throw new IllegalArgumentException("Non-positive number of threads " + threads);
+            }
+            if (queueDepth <= 0) {
+                throw new IllegalArgumentException("Non-positive queue depth " + queueDepth);
+            }
+        }
+
+        /**
+         * Sets the executor of reads.
+         *
+         * @param threads    is the number of threads, the number of processors by default
+         * @param queueDepth is the number of calls waiting for a thread, 1024 by default
+         * @return this builder
+         */
+        @NotNull
+        public Builder reads(final int threads, final int queueDepth) {
+            check(threads, queueDepth);
+            this.readThreads = threads;
+            this.readQueueDepth = queueDepth;
+            return this;
+        }
+
+        /**
+         * Sets the executor of writes. Concurrent writers share syncs of the write-ahead log,
+         * so a single thread makes the writes slower under {@code SyncPolicy.GROUP}.
+         * Every thread takes the writes of its own keys, so writes of a key stay in order.
+         *
+         * @param threads    is the number of threads, the number of processors by default
+         * @param queueDepth is the number of calls waiting for each of the threads, 1024 by default
+         * @return this builder
+         */
+        @NotNull
+        public Builder writes(final int threads, final int queueDepth) {
+            check(threads, queueDepth);
+            this.writeThreads = threads;
+            this.writeQueueDepth = queueDepth;
+            return this;
+        }
+
+        /**
+         * Sets the executor of background work such as compaction.
+         *
+         * @param threads    is the number of threads, 1 by default
+         * @param queueDepth is the number of calls waiting for a thread, 16 by default
+         * @return this builder
+         */
+        @NotNull
+        public Builder background(final int threads, final int queueDepth) {
+            check(threads, queueDepth);
+            this.backgroundThreads = threads;
+            this.backgroundQueueDepth = queueDepth;
+            return this;
+        }
+
+        @NotNull
+        public AsyncDAO build() {
+            return new AsyncDAO(this);
+        }
+    }
+}
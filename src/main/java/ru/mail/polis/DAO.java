@@ -22,8 +22,15 @@ import org.jetbrains.annotations.Nullable;
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
 
 /**
  * Storage interface.
@@ -64,6 +71,20 @@ public interface DAO extends Closeable {
         return Iters.until(iterator(from), bound);
     }
 
+    /**
+     * Provides spliterator (possibly empty) over {@link Record}s starting at "from" key (inclusive)
+     * until given "to" key (exclusive) in <b>ascending</b> order according to {@link Record#compareTo(Record)}.
+     * Splits of the spliterator may be traversed in parallel, e.g. by a parallel stream.
+     */
+    @NotNull
+    default Spliterator<Record> spliterator(
+            @NotNull ByteBuffer from,
+            @Nullable ByteBuffer to) throws IOException {
+        return Spliterators.spliteratorUnknownSize(
+                range(from, to),
+                Spliterator.ORDERED | Spliterator.SORTED | Spliterator.DISTINCT | Spliterator.NONNULL);
+    }
+
     /**
      * Obtains {@link Record} corresponding to given key.
      *
@@ -84,6 +105,23 @@ public interface DAO extends Closeable {
         }
     }
 
+    /**
+     * Obtains values corresponding to given keys.
+     * The keys having no records are absent from the result.
+     */
+    @NotNull
+    default Map<ByteBuffer, ByteBuffer> multiGet(@NotNull Collection<ByteBuffer> keys) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> result = new HashMap<>();
+        for (final ByteBuffer key : keys) {
+            try {
+                result.put(key, get(key));
+            } catch (NoSuchElementException e) {
+                // Not found
+            }
+        }
+        return result;
+    }
+
     /**
      * Inserts or updates value by given key.
      */
@@ -91,11 +129,65 @@ public interface DAO extends Closeable {
             @NotNull ByteBuffer key,
             @NotNull ByteBuffer value) throws IOException;
 
+    /**
+     * Inserts or updates value by given key, which is removed once the time to live passes.
+     */
+    default void upsert(
+            @NotNull ByteBuffer key,
+            @NotNull ByteBuffer value,
+            @NotNull Duration ttl) throws IOException {
+        throw new UnsupportedOperationException("Expiring values are not supported");
+    }
+
     /**
      * Removes value by given key.
      */
     void remove(@NotNull ByteBuffer key) throws IOException;
 
+    /**
+     * Removes all the keys from "from" (inclusive) until "to" (exclusive).
+     * Does nothing if "from" is not less than "to".
+     */
+    default void removeRange(
+            @NotNull ByteBuffer from,
+            @NotNull ByteBuffer to) throws IOException {
+        final Iterator<Record> records = range(from, to);
+        while (records.hasNext()) {
+            remove(records.next().getKey());
+        }
+    }
+
+    /**
+     * Applies the modifications of the batch in order.
+     * Implementations may apply the batch atomically, so that after a crash it is either applied as a whole
+     * or not at all, while this one applies the modifications one by one.
+     */
+    default void apply(@NotNull WriteBatch batch) throws IOException {
+        final DAO dao = this;
+        batch.forEach(new WriteBatch.Handler() {
+            @Override
+            public void upsert(
+                    @NotNull final ByteBuffer key,
+                    @NotNull final ByteBuffer value) throws IOException {
+                dao.upsert(key, value);
+            }
+
+            @Override
+            public void remove(@NotNull final ByteBuffer key) throws IOException {
+                dao.remove(key);
+            }
+        });
+    }
+
+    /**
+     * Takes a consistent read-only view of the storage for long scans,
+     * which proceed while writes and compactions continue.
+     */
+    @NotNull
+    default Snapshot snapshot() throws IOException {
+        throw new UnsupportedOperationException("Snapshots are not supported");
+    }
+
     /**
      * Perform compaction
      */
@@ -118,4 +210,26 @@ public interface DAO extends Closeable {
     default Iterator<Record> reverseIterator() throws IOException {
         throw new UnsupportedOperationException("Implement me when you get to stage 4");
     }
+
+    /**
+     * Provides reversed iterator (possibly empty) over {@link Record}s starting at "from" key (inclusive)
+     * down to given "to" key (exclusive) in <b>descending</b> order according to {@link Record#compareTo(Record)}.
+     * Starts at the last key if "from" is null and goes down to the first one if "to" is null.
+     */
+    @NotNull
+    default Iterator<Record> reverseRange(
+            @Nullable ByteBuffer from,
+            @Nullable ByteBuffer to) throws IOException {
+        if (from != null && to != null && from.compareTo(to) < 0) {
+            return Iters.empty();
+        }
+
+        final Iterator<Record> records = from == null ? reverseIterator() : reverseIterator(from);
+        if (to == null) {
+            return records;
+        }
+
+        final Record bound = new Record(to, ByteBuffer.allocate(0));
+        return Iters.until(records, bound, Comparator.reverseOrder());
+    }
 }
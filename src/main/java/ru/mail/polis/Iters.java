@@ -3,6 +3,7 @@ package ru.mail.polis;
 import com.google.common.base.Functions;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.util.function.Function;
@@ -38,7 +39,14 @@ public final class Iters {
     public static <E extends Comparable<E>> Iterator<E> until(
             @NotNull final Iterator<E> iter,
             @NotNull final E until) {
-        return new UntilIterator<>(iter, until);
+        return new UntilIterator<>(iter, until, Comparator.naturalOrder());
+    }
+
+    public static <E> Iterator<E> until(
+            @NotNull final Iterator<E> iter,
+            @NotNull final E until,
+            @NotNull final Comparator<? super E> comparator) {
+        return new UntilIterator<>(iter, until, comparator);
     }
 
     public static <E> Iterator<E> collapseEquals(
@@ -51,23 +59,26 @@ public final class Iters {
         return new CollapseEqualsIterator<>(iter);
     }
 
-    private static class UntilIterator<E extends Comparable<E>> implements Iterator<E> {
+    private static class UntilIterator<E> implements Iterator<E> {
         private final Iterator<E> iter;
         private final E until;
+        private final Comparator<? super E> comparator;
 
         private E next;
 
         UntilIterator(
                 @NotNull final Iterator<E> iter,
-                @NotNull final E until) {
+                @NotNull final E until,
+                @NotNull final Comparator<? super E> comparator) {
             this.iter = iter;
             this.until = until;
+            this.comparator = comparator;
             this.next = iter.hasNext() ? iter.next() : null;
         }
 
         @Override
         public boolean hasNext() {
-            return next != null && next.compareTo(until) < 0;
+            return next != null && comparator.compare(next, until) < 0;
         }
 
         @Override
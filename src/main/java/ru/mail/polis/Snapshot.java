@@ -0,0 +1,107 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Read-only view of {@link DAO} as of the moment it was taken.
+ * Writes and compactions made afterwards are not seen through it.
+ * The view keeps the storage files it reads from, so it should be closed once not needed.
+ */
+public interface Snapshot extends Closeable {
+
+    /**
+     * Provides iterator (possibly empty) over {@link Record}s starting at "from" key (inclusive)
+     * in <b>ascending</b> order according to {@link Record#compareTo(Record)}.
+     * The iterator keeps working after the snapshot is closed.
+     */
+    @NotNull
+    Iterator<Record> iterator(@NotNull ByteBuffer from) throws IOException;
+
+    /**
+     * Provides iterator (possibly empty) over {@link Record}s starting at "from" key (inclusive)
+     * until given "to" key (exclusive) in <b>ascending</b> order according to {@link Record#compareTo(Record)}.
+     */
+    @NotNull
+    default Iterator<Record> range(
+            @NotNull ByteBuffer from,
+            @Nullable ByteBuffer to) throws IOException {
+        if (to == null) {
+            return iterator(from);
+        }
+
+        if (from.compareTo(to) > 0) {
+            return Iters.empty();
+        }
+
+        final Record bound = new Record(to, ByteBuffer.allocate(0));
+        return Iters.until(iterator(from), bound);
+    }
+
+    /**
+     * Provides reversed iterator (possibly empty) over {@link Record}s starting at "from" key (inclusive)
+     * in <b>descending</b> order according to {@link Record#compareTo(Record)}.
+     */
+    @NotNull
+    Iterator<Record> reverseIterator(@NotNull ByteBuffer from) throws IOException;
+
+    /**
+     * Provides reversed iterator (possibly empty) over all {@link Record}s
+     * in <b>descending</b> order staring from last key according to {@link Record#compareTo(Record)}.
+     */
+    @NotNull
+    Iterator<Record> reverseIterator() throws IOException;
+
+    /**
+     * Provides reversed iterator (possibly empty) over {@link Record}s starting at "from" key (inclusive)
+     * down to given "to" key (exclusive) in <b>descending</b> order according to {@link Record#compareTo(Record)}.
+     * Starts at the last key if "from" is null and goes down to the first one if "to" is null.
+     */
+    @NotNull
+    default Iterator<Record> reverseRange(
+            @Nullable ByteBuffer from,
+            @Nullable ByteBuffer to) throws IOException {
+        if (from != null && to != null && from.compareTo(to) < 0) {
+            return Iters.empty();
+        }
+
+        final Iterator<Record> records = from == null ? reverseIterator() : reverseIterator(from);
+        if (to == null) {
+            return records;
+        }
+
+        final Record bound = new Record(to, ByteBuffer.allocate(0));
+        return Iters.until(records, bound, Comparator.reverseOrder());
+    }
+
+    /**
+     * Obtains {@link Record} corresponding to given key.
+     *
+     * @throws NoSuchElementException if no such record
+     */
+    @NotNull
+    ByteBuffer get(@NotNull ByteBuffer key) throws IOException, NoSuchElementException;
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Modifications to apply to {@link DAO} together by {@link DAO#apply(WriteBatch)}.
+ * They are applied in the order they were added, so the last modification of a key wins.
+ * The batch refers to the given buffers without copying them and isn't thread-safe.
+ */
+public final class WriteBatch {
+    private final List<ByteBuffer> keys = new ArrayList<>();
+    // Null marks a removal
+    private final List<ByteBuffer> values = new ArrayList<>();
+    private long sizeInBytes;
+
+    /**
+     * Adds insertion or update of value by given key.
+     */
+    @NotNull
+    public WriteBatch upsert(
+            @NotNull final ByteBuffer key,
+            @NotNull final ByteBuffer value) {
+        add(key.duplicate(), value.duplicate());
+        return this;
+    }
+
+    /**
+     * Adds removal of value by given key.
+     */
+    @NotNull
+    public WriteBatch remove(@NotNull final ByteBuffer key) {
+        add(key.duplicate(), null);
+        return this;
+    }
+
+    private void add(
+            @NotNull final ByteBuffer key,
+            @Nullable final ByteBuffer value) {
+        keys.add(key);
+        values.add(value);
+        sizeInBytes += key.remaining() + (value == null ? 0 : value.remaining());
+    }
+
+    /**
+     * Returns the number of modifications in the batch.
+     */
+    public int size() {
+        return keys.size();
+    }
+
+    public boolean isEmpty() {
+        return keys.isEmpty();
+    }
+
+    /**
+     * Returns the total size of the keys and values in the batch.
+     */
+    public long sizeInBytes() {
+        return sizeInBytes;
+    }
+
+    /**
+     * Passes the modifications to the handler in the order they were added.
+     */
+    public void forEach(@NotNull final Handler handler) throws IOException {
+        for (int i = 0; i < keys.size(); i++) {
+            final ByteBuffer value = values.get(i);
+            if (value == null) {
+                handler.remove(keys.get(i).duplicate());
+            } else {
+                handler.upsert(keys.get(i).duplicate(), value.duplicate());
+            }
+        }
+    }
+
+    /**
+     * Receives the modifications of a batch.
+     */
+    public interface Handler {
+        void upsert(
+                @NotNull ByteBuffer key,
+                @NotNull ByteBuffer value) throws IOException;
+
+        void remove(@NotNull ByteBuffer key) throws IOException;
+    }
+}
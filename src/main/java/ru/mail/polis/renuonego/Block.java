@@ -0,0 +1,116 @@
+package ru.mail.polis.renuonego;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Data block of a {@link BlockSSTable}.
+ *
+ * <p>Cells are stored as key size (4), key, timestamp (8), value size (4) and value;
+ * removed cells have negated timestamp and no value. Expiring values have {@code -(size + 1)}
+ * in place of the size, followed by the expiry (8). The cells are followed by the offset (4)
+ * of every cell and the number of cells (4), so the block can be searched and iterated both ways.
+ */
+final class Block {
+    @NotNull
+    private final ByteBuffer data;
+    private final int count;
+    private final int offsets;
+
+    Block(@NotNull final ByteBuffer data) {
+        this.data = data;
+        this.count = data.getInt(data.limit() - Integer.BYTES);
+        this.offsets = data.limit() - Integer.BYTES - count * Integer.BYTES;
+    }
+
+    int size() {
+        return count;
+    }
+
+    private int offset(final int i) {
+        assert 0 <= i && i < count;
+        return data.getInt(offsets + i * Integer.BYTES);
+    }
+
+    int compareKeyAt(final int i, @NotNull final ByteBuffer key) {
+        final int offset = offset(i);
+        return Bytes.compare(data, offset + Integer.BYTES, data.getInt(offset), key);
+    }
+
+    /**
+     * Searches the block for the key.
+     *
+     * @param key is the key to look up
+     * @return index of the key, if it is present, or {@code -(insertion point) - 1} as
+     *     {@link java.util.Arrays#binarySearch(int[], int)} does
+     */
+    int search(@NotNull final ByteBuffer key) {
+        return search(key, 0);
+    }
+
+    /**
+     * Searches the block for the key, which is known not to go before the given index.
+     *
+     * @param key  is the key to look up
+     * @param from is the index to start at
+     * @return index of the key or {@code -(insertion point) - 1}, as {@link #search(ByteBuffer)} does
+     */
+    int search(@NotNull final ByteBuffer key, final int from) {
+        int left = from;
+        int right = count - 1;
+        while (left <= right) {
+            final int mid = (left + right) >>> 1;
+            final int cmp = compareKeyAt(mid, key);
+            if (cmp < 0) {
+                left = mid + 1;
+            } else if (cmp > 0) {
+                right = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(left + 1);
+    }
+
+    @NotNull
+    private ByteBuffer keyAtOffset(final int offset) {
+        final ByteBuffer key = data.duplicate();
+        key.position(offset + Integer.BYTES);
+        key.limit(key.position() + data.getInt(offset));
+        return key.slice();
+    }
+
+    @NotNull
+    private Value valueAtOffset(final int offset) {
+        int position = offset + Integer.BYTES + data.getInt(offset);
+        final long timestamp = data.getLong(position);
+        if (timestamp < 0) {
+            return new Value(-timestamp, null);
+        }
+        position += Long.BYTES;
+        int size = data.getInt(position);
+        position += Integer.BYTES;
+        long expiresAt = Value.NEVER;
+        if (size < 0) {
+            size = -size - 1;
+            expiresAt = data.getLong(position);
+            position += Long.BYTES;
+        }
+        final ByteBuffer value = data.duplicate();
+        value.position(position);
+        value.limit(position + size);
+        return new Value(timestamp, value.slice(), expiresAt);
+    }
+
+    @NotNull
+    Value valueAt(final int i) {
+        return valueAtOffset(offset(i));
+    }
+
+    @NotNull
+    Cell cellAt(final int i) {
+        final int offset = offset(i);
+        return new Cell(keyAtOffset(offset), valueAtOffset(offset));
+    }
+}
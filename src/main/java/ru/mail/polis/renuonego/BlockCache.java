@@ -0,0 +1,168 @@
+package ru.mail.polis.renuonego;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of decompressed {@link Block} contents shared by the {@link SSTable}s of a {@link LSMDao}.
+ *
+ * <p>Every shard is a segmented LRU: a block enters the probationary segment and is promoted
+ * to the protected one on a second hit, so a long scan touching every block once only
+ * evicts other probationary blocks, not the hot ones.
+ */
+final class BlockCache {
+    private static final int SHARDS = 16;
+    private static final int PROTECTED_PERCENT = 80;
+    /**
+     * Rough heap footprint of a map entry, its key and buffer header.
+     */
+    private static final int ENTRY_OVERHEAD = 96;
+    private static final int OFFSET_BITS = 40;
+
+    @NotNull
+    private final Shard[] shards = new Shard[SHARDS];
+    private final boolean offHeap;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Creates a cache.
+     *
+     * @param capacity is the total size of the cached blocks in bytes
+     * @param offHeap  whether to copy the blocks to direct memory
+     */
+    BlockCache(final long capacity, final boolean offHeap) {
+        this.offHeap = offHeap;
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new Shard(capacity / SHARDS);
+        }
+    }
+
+    private static long key(final int generation, final long offset) {
+        assert offset < 1L << OFFSET_BITS;
+        return ((long) generation << OFFSET_BITS) | offset;
+    }
+
+    @NotNull
+    private Shard shard(final long key) {
+        final long hash = key * 0x9E3779B97F4A7C15L;
+        return shards[(int) (hash >>> (Long.SIZE - 4))];
+    }
+
+    /**
+     * Looks the block up.
+     *
+     * @param generation is the generation of the table
+     * @param offset     is the offset of the block in the table
+     * @return the block contents or null if the block is not cached
+     */
+    @Nullable
+    ByteBuffer get(final int generation, final long offset) {
+        final long key = key(generation, offset);
+        final ByteBuffer block = shard(key).get(key);
+        if (block == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return block;
+    }
+
+    /**
+     * Caches the block.
+     *
+     * @return the cached contents to use instead of the given ones
+     */
+    @NotNull
+    ByteBuffer put(final int generation, final long offset, @NotNull final ByteBuffer block) {
+        final ByteBuffer cached;
+        if (offHeap) {
+            cached = ByteBuffer.allocateDirect(block.remaining()).put(block.duplicate()).flip();
+        } else {
+            cached = block;
+        }
+        final long key = key(generation, offset);
+        shard(key).put(key, cached);
+        return cached;
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    private static final class Shard {
+        private final Map<Long, ByteBuffer> probation = new LinkedHashMap<>(16, 0.75f, true);
+        private final Map<Long, ByteBuffer> protect = new LinkedHashMap<>(16, 0.75f, true);
+        private final long capacity;
+        private final long protectedCapacity;
+        private long probationSize;
+        private long protectedSize;
+
+        Shard(final long capacity) {
+            this.capacity = capacity;
+            this.protectedCapacity = capacity * PROTECTED_PERCENT / 100;
+        }
+
+        private static long sizeOf(@NotNull final ByteBuffer block) {
+            return ENTRY_OVERHEAD + block.capacity();
+        }
+
+        @Nullable
+        synchronized ByteBuffer get(final long key) {
+            final ByteBuffer block = protect.get(key);
+            if (block != null) {
+                return block;
+            }
+
+            final ByteBuffer promoted = probation.remove(key);
+            if (promoted == null) {
+                return null;
+            }
+            probationSize -= sizeOf(promoted);
+            protect.put(key, promoted);
+            protectedSize += sizeOf(promoted);
+
+            // Demoted blocks get another chance in the probationary segment
+            final Iterator<Map.Entry<Long, ByteBuffer>> eldest = protect.entrySet().iterator();
+            while (protectedSize > protectedCapacity) {
+                final Map.Entry<Long, ByteBuffer> entry = eldest.next();
+                eldest.remove();
+                protectedSize -= sizeOf(entry.getValue());
+                probation.put(entry.getKey(), entry.getValue());
+                probationSize += sizeOf(entry.getValue());
+            }
+            evict();
+            return promoted;
+        }
+
+        synchronized void put(final long key, @NotNull final ByteBuffer block) {
+            if (protect.containsKey(key) || sizeOf(block) > capacity) {
+                return;
+            }
+            final ByteBuffer previous = probation.put(key, block);
+            if (previous != null) {
+                probationSize -= sizeOf(previous);
+            }
+            probationSize += sizeOf(block);
+            evict();
+        }
+
+        private void evict() {
+            final Iterator<ByteBuffer> eldest = probation.values().iterator();
+            while (probationSize + protectedSize > capacity && eldest.hasNext()) {
+                probationSize -= sizeOf(eldest.next());
+                eldest.remove();
+            }
+        }
+    }
+}
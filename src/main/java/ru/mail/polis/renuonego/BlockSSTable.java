@@ -0,0 +1,538 @@
+package ru.mail.polis.renuonego;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * {@link SSTable} split into {@link Block}s of about the configured size.
+ *
+ * <p>The blocks are followed by the index, the Bloom filter, the key range, the {@link RangeTombstones},
+ * the properties and the footer.
+ * The index holds the number of blocks (4) and, for every block, its offset (8), size (4),
+ * separator size (4) and separator: a key greater than every key of the previous blocks
+ * and not greater than the first key of the block. The key range holds the size (4) and the bytes
+ * of the first key followed by those of the last one, covering the range tombstones too. The properties are tagged values: their number (4)
+ * and pairs of tag (4) and value (8); unknown tags are ignored, missing statistics are taken as zero.
+ * The footer holds the properties offset (8) and size (4), the format version (4) and {@link #MAGIC}.
+ *
+ * <p>Unless the table is written with {@link Compression#NONE}, every block is stored as
+ * its raw size (4) followed by the compressed block, or by the raw one if it doesn't compress.
+ */
+final class BlockSSTable extends SSTable {
+    static final long MAGIC = 0x4C534D5353544232L;
+    static final int VERSION = 3;
+    /**
+     * Tables of the previous version differ only by having no expiring values.
+     */
+    private static final int MIN_VERSION = 2;
+    static final int FOOTER = Long.BYTES + Integer.BYTES + Integer.BYTES + Long.BYTES;
+
+    static final int INDEX_OFFSET = 1;
+    static final int INDEX_SIZE = 2;
+    static final int FILTER_OFFSET = 3;
+    static final int FILTER_SIZE = 4;
+    static final int ROWS = 5;
+    static final int MIN_TIMESTAMP = 6;
+    static final int MAX_TIMESTAMP = 7;
+    static final int COMPRESSION = 8;
+    static final int KEYS_OFFSET = 9;
+    static final int KEYS_SIZE = 10;
+    static final int RANGES_OFFSET = 11;
+    static final int RANGES_SIZE = 12;
+    static final int TOMBSTONES = 13;
+    static final int EXPIRING = 14;
+    static final int MAX_EXPIRES_AT = 15;
+
+    private static final int INDEX_ENTRY = Long.BYTES + 2 * Integer.BYTES;
+    private static final long MAX_SEGMENT = Integer.MAX_VALUE;
+
+    /**
+     * Mappings of the blocks, each one starting at a block and no longer than the maximum segment size,
+     * unless it is a single block longer than that.
+     */
+    @NotNull
+    private final ByteBuffer[] segments;
+    @NotNull
+    private final long[] segmentStarts;
+    @NotNull
+    private final ByteBuffer index;
+    @NotNull
+    private final int[] indexEntries;
+    @NotNull
+    private final BloomFilter filter;
+    private final long maxTimestamp;
+    private final long rows;
+    private final long tombstones;
+    private final long expiring;
+    private final long maxExpiresAt;
+    @NotNull
+    private final Compression compression;
+    @NotNull
+    private final BlockCache cache;
+    @NotNull
+    private final ByteBuffer firstKey;
+    @NotNull
+    private final ByteBuffer lastKey;
+    @NotNull
+    private final RangeTombstones rangeTombstones;
+
+    /**
+     * Opens the table.
+     *
+     * @param file       is the table file
+     * @param generation is the generation of the table, identifying its blocks in the cache
+     * @param level      is the level of the table
+     * @param cache      is the cache of decompressed blocks
+     * @throws IOException if the file can't be read or is not a table of a known version
+     */
+    BlockSSTable(@NotNull final File file,
+                 final int generation,
+                 final int level,
+                 @NotNull final BlockCache cache) throws IOException {
+        this(file, generation, level, cache, MAX_SEGMENT);
+    }
+
+    /**
+     * Opens the table, mapping the blocks in segments of at most the given size,
+     * which is less than the largest mapping in tests only.
+     *
+     * @param file       is the table file
+     * @param generation is the generation of the table, identifying its blocks in the cache
+     * @param level      is the level of the table
+     * @param cache      is the cache of decompressed blocks
+     * @param maxSegment is the maximum size of a mapping of the blocks
+     * @throws IOException if the file can't be read or is not a table of a known version
+     */
+    BlockSSTable(@NotNull final File file,
+                 final int generation,
+                 final int level,
+                 @NotNull final BlockCache cache,
+                 final long maxSegment) throws IOException {
+        super(file, generation, level);
+        assert 0 < maxSegment && maxSegment <= MAX_SEGMENT;
+        this.cache = cache;
+        try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long fileSize = fc.size();
+            final ByteBuffer footer = read(fc, fileSize - FOOTER, FOOTER);
+            final int version = footer.getInt(Long.BYTES + Integer.BYTES);
+            if (version < MIN_VERSION || version > VERSION) {
+                throw new IOException("Unsupported version " + version + " of " + file);
+            }
+            final ByteBuffer properties = read(fc, footer.getLong(0), footer.getInt(Long.BYTES));
+
+            long indexOffset = 0;
+            long indexSize = 0;
+            long filterOffset = 0;
+            long filterSize = 0;
+            long keysOffset = 0;
+            long keysSize = 0;
+            long rangesOffset = 0;
+            long rangesSize = 0;
+            ByteBuffer first = ByteBuffer.allocate(0);
+            ByteBuffer last = first;
+            long newest = 0;
+            long count = 0;
+            long removed = 0;
+            long expiringCount = 0;
+            long lastExpiry = 0;
+            Compression codec = Compression.NONE;
+            final int tags = properties.getInt();
+            for (int i = 0; i < tags; i++) {
+                final int tag = properties.getInt();
+                final long value = properties.getLong();
+                switch (tag) {
+                    case INDEX_OFFSET:
+                        indexOffset = value;
+                        break;
+                    case INDEX_SIZE:
+                        indexSize = value;
+                        break;
+                    case FILTER_OFFSET:
+                        filterOffset = value;
+                        break;
+                    case FILTER_SIZE:
+                        filterSize = value;
+                        break;
+                    case KEYS_OFFSET:
+                        keysOffset = value;
+                        break;
+                    case KEYS_SIZE:
+                        keysSize = value;
+                        break;
+                    case RANGES_OFFSET:
+                        rangesOffset = value;
+                        break;
+                    case RANGES_SIZE:
+                        rangesSize = value;
+                        break;
+                    case ROWS:
+                        count = value;
+                        break;
+                    case TOMBSTONES:
+                        removed = value;
+                        break;
+                    case EXPIRING:
+                        expiringCount = value;
+                        break;
+                    case MAX_EXPIRES_AT:
+                        lastExpiry = value;
+                        break;
+                    case MAX_TIMESTAMP:
+                        newest = value;
+                        break;
+                    case COMPRESSION:
+                        codec = Compression.of(value);
+                        break;
+                    default:
+                        // Written by a newer version
+                        break;
+                }
+            }
+            this.maxTimestamp = newest;
+            this.rows = count;
+            this.tombstones = removed;
+            this.expiring = expiringCount;
+            this.maxExpiresAt = lastExpiry;
+            this.compression = codec;
+
+            // The index, the filter and the properties are mapped at once, the blocks in segments
+            if (fileSize - indexOffset > MAX_SEGMENT) {
+                throw new IOException("Too large index of " + file);
+            }
+            final ByteBuffer meta = map(fc, indexOffset, fileSize - indexOffset);
+            this.filter = BloomFilter.readFrom(slice(meta, filterOffset - indexOffset, filterSize));
+            if (keysSize > 0) {
+                final ByteBuffer keys = slice(meta, keysOffset - indexOffset, keysSize);
+                final int firstSize = keys.getInt(0);
+                first = slice(keys, Integer.BYTES, firstSize);
+                last = slice(keys, 2 * Integer.BYTES + firstSize, keys.getInt(Integer.BYTES + firstSize));
+            }
+            this.rangeTombstones = rangesSize == 0
+                    ? RangeTombstones.EMPTY
+                    : RangeTombstones.readFrom(slice(meta, rangesOffset - indexOffset, rangesSize));
+
+            final ByteBuffer indexBlock = slice(meta, 0, indexSize);
+            this.indexEntries = new int[indexBlock.getInt()];
+            this.index = indexBlock.slice();
+            int position = 0;
+            for (int i = 0; i < indexEntries.length; i++) {
+                indexEntries[i] = position;
+                position += INDEX_ENTRY + index.getInt(position + Long.BYTES + Integer.BYTES);
+            }
+
+            final List<ByteBuffer> mapped = new ArrayList<>();
+            final List<Long> starts = new ArrayList<>();
+            long segmentStart = 0;
+            for (final int entry : indexEntries) {
+                final long offset = index.getLong(entry);
+                final long end = offset + index.getInt(entry + Long.BYTES);
+                if (end - segmentStart > maxSegment && offset > segmentStart) {
+                    mapped.add(map(fc, segmentStart, offset - segmentStart));
+                    starts.add(segmentStart);
+                    segmentStart = offset;
+                }
+            }
+            if (indexOffset > segmentStart) {
+                mapped.add(map(fc, segmentStart, indexOffset - segmentStart));
+                starts.add(segmentStart);
+            }
+            this.segments = mapped.toArray(new ByteBuffer[0]);
+            this.segmentStarts = starts.stream().mapToLong(Long::longValue).toArray();
+
+            if (keysSize == 0 && indexEntries.length > 0) {
+                // Written before the key range was stored
+                first = blockAt(0).cellAt(0).getKey();
+                final Block lastBlock = blockAt(indexEntries.length - 1);
+                last = lastBlock.cellAt(lastBlock.size() - 1).getKey();
+            }
+            this.firstKey = first;
+            this.lastKey = last;
+        }
+    }
+
+    /**
+     * Returns the offsets in the file of the mappings of the blocks.
+     *
+     * @return the offsets in ascending order, the first one being zero unless there are no blocks
+     */
+    @NotNull
+    long[] segmentStarts() {
+        return segmentStarts.clone();
+    }
+
+    @NotNull
+    private static ByteBuffer read(@NotNull final FileChannel fc,
+                                   final long position,
+                                   final int size) throws IOException {
+        final ByteBuffer result = ByteBuffer.allocate(size);
+        while (result.hasRemaining()) {
+            if (fc.read(result, position + result.position()) < 0) {
+                throw new IOException("Unexpected end of table");
+            }
+        }
+        return result.flip();
+    }
+
+    @NotNull
+    private static ByteBuffer map(@NotNull final FileChannel fc,
+                                  final long position,
+                                  final long size) throws IOException {
+        return fc.map(FileChannel.MapMode.READ_ONLY, position, size).order(ByteOrder.BIG_ENDIAN);
+    }
+
+    @NotNull
+    private static ByteBuffer slice(@NotNull final ByteBuffer buffer, final long offset, final long size) {
+        assert offset + size <= buffer.limit();
+        return buffer.duplicate()
+                .position((int) offset)
+                .limit((int) (offset + size))
+                .slice();
+    }
+
+    @Override
+    long maxTimestamp() {
+        return maxTimestamp;
+    }
+
+    @Override
+    long rows() {
+        return rows;
+    }
+
+    @Override
+    long tombstones() {
+        return tombstones;
+    }
+
+    @Override
+    long expiring() {
+        return expiring;
+    }
+
+    @Override
+    long maxExpiresAt() {
+        return maxExpiresAt;
+    }
+
+    @NotNull
+    @Override
+    public RangeTombstones rangeTombstones() {
+        return rangeTombstones;
+    }
+
+    @NotNull
+    @Override
+    ByteBuffer firstKey() {
+        return firstKey.duplicate();
+    }
+
+    @NotNull
+    @Override
+    ByteBuffer lastKey() {
+        return lastKey.duplicate();
+    }
+
+    @NotNull
+    private Block blockAt(final int i) {
+        final int entry = indexEntries[i];
+        final long offset = index.getLong(entry);
+        int segment = Arrays.binarySearch(segmentStarts, offset);
+        if (segment < 0) {
+            segment = -segment - 2;
+        }
+        final ByteBuffer stored = slice(
+                segments[segment],
+                offset - segmentStarts[segment],
+                index.getInt(entry + Long.BYTES));
+        if (compression == Compression.NONE) {
+            return new Block(stored);
+        }
+        final int rawSize = stored.getInt(0);
+        final ByteBuffer payload = stored.position(Integer.BYTES).slice();
+        if (payload.remaining() == rawSize) {
+            return new Block(payload);
+        }
+
+        // Only decompressed blocks are cached, the others are read from the mapping for free
+        final ByteBuffer cached = cache.get(generation(), offset);
+        if (cached != null) {
+            return new Block(cached);
+        }
+        return new Block(cache.put(generation(), offset, compression.decompress(payload, rawSize)));
+    }
+
+    /**
+     * Takes the separators of evenly spaced blocks from the index, which needs no block to be read.
+     */
+    @NotNull
+    @Override
+    List<ByteBuffer> sampleKeys(final int max) {
+        final List<ByteBuffer> result = new ArrayList<>();
+        final int step = Math.max(1, (indexEntries.length + max - 1) / max);
+        // The first block has an empty separator
+        for (int i = step; i < indexEntries.length; i += step) {
+            final int entry = indexEntries[i];
+            result.add(slice(index, entry + INDEX_ENTRY, index.getInt(entry + Long.BYTES + Integer.BYTES)));
+        }
+        return result;
+    }
+
+    /**
+     * Finds the last block whose separator is not greater than the given key.
+     *
+     * @return index of the block or -1 if the key goes before all the blocks
+     */
+    private int findBlock(@NotNull final ByteBuffer key) {
+        return findBlock(key, 0);
+    }
+
+    /**
+     * Finds the last block whose separator is not greater than the given key,
+     * which is known not to go before the block with the given index.
+     */
+    private int findBlock(@NotNull final ByteBuffer key, final int from) {
+        int left = from;
+        int right = indexEntries.length - 1;
+        while (left <= right) {
+            final int mid = (left + right) >>> 1;
+            final int entry = indexEntries[mid];
+            final int keySize = index.getInt(entry + Long.BYTES + Integer.BYTES);
+            final int cmp = Bytes.compare(index, entry + INDEX_ENTRY, keySize, key);
+            if (cmp < 0) {
+                left = mid + 1;
+            } else if (cmp > 0) {
+                right = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return right;
+    }
+
+    @Nullable
+    @Override
+    public Value get(@NotNull final ByteBuffer key) {
+        if (!filter.mightContain(key)) {
+            return null;
+        }
+        final int blockIndex = findBlock(key);
+        if (blockIndex < 0) {
+            return null;
+        }
+        final Block block = blockAt(blockIndex);
+        final int i = block.search(key);
+        return i < 0 ? null : block.valueAt(i);
+    }
+
+    /**
+     * Walks the index and the blocks forward only: every key is searched for
+     * after the block and the position of the previous one, and a block is read once for all its keys.
+     */
+    @Override
+    public void get(@NotNull final List<ByteBuffer> keys, @NotNull final Value[] values) {
+        int blockIndex = 0;
+        Block block = null;
+        int position = 0;
+        for (int i = 0; i < keys.size(); i++) {
+            final ByteBuffer key = keys.get(i);
+            if (values[i] != null || !filter.mightContain(key)) {
+                continue;
+            }
+            final int found = findBlock(key, blockIndex);
+            if (found < 0) {
+                continue;
+            }
+            if (block == null || found != blockIndex) {
+                blockIndex = found;
+                block = blockAt(blockIndex);
+                position = 0;
+            }
+            final int j = block.search(key, position);
+            if (j < 0) {
+                position = -j - 1;
+            } else {
+                values[i] = block.valueAt(j);
+                position = j + 1;
+            }
+        }
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> iterator(@NotNull final ByteBuffer from) {
+        final int blockIndex = findBlock(from);
+        if (blockIndex < 0) {
+            return new BlockIterator(0, 0, true);
+        }
+        final int i = blockAt(blockIndex).search(from);
+        return new BlockIterator(blockIndex, i < 0 ? -i - 1 : i, true);
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> reverseIterator(@NotNull final ByteBuffer from) {
+        final int blockIndex = findBlock(from);
+        if (blockIndex < 0) {
+            return new BlockIterator(-1, -1, false);
+        }
+        final int i = blockAt(blockIndex).search(from);
+        return new BlockIterator(blockIndex, i < 0 ? -i - 2 : i, false);
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> reverseIterator() {
+        final int last = indexEntries.length - 1;
+        return new BlockIterator(last, last < 0 ? -1 : blockAt(last).size() - 1, false);
+    }
+
+    private final class BlockIterator implements Iterator<Cell> {
+        private final boolean forward;
+        private int blockIndex;
+        private Block block;
+        private int next;
+
+        BlockIterator(final int blockIndex, final int next, final boolean forward) {
+            this.forward = forward;
+            this.blockIndex = blockIndex;
+            this.block = 0 <= blockIndex && blockIndex < indexEntries.length ? blockAt(blockIndex) : null;
+            this.next = next;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (block != null && (next < 0 || next >= block.size())) {
+                blockIndex += forward ? 1 : -1;
+                if (blockIndex < 0 || blockIndex >= indexEntries.length) {
+                    block = null;
+                } else {
+                    block = blockAt(blockIndex);
+                    next = forward ? 0 : block.size() - 1;
+                }
+            }
+            return block != null;
+        }
+
+        @Override
+        public Cell next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final Cell cell = block.cellAt(next);
+            next += forward ? 1 : -1;
+            return cell;
+        }
+    }
+}
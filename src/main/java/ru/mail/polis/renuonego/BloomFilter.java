@@ -0,0 +1,135 @@
+package ru.mail.polis.renuonego;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Bloom filter over keys of an {@link SSTable}.
+ *
+ * <p>Uses 10 bits and 7 probes per key, which gives about 1% of false positives.
+ * Probes are derived from a single 64-bit hash by double hashing.
+ * Serialized as probe count (4), word count (4) and the words.
+ */
+final class BloomFilter {
+    private static final int BITS_PER_KEY = 10;
+    private static final int HASHES = 7;
+    private static final long SEED = 0x9E3779B97F4A7C15L;
+    private static final long MULTIPLIER = 0xC6A4A7935BD1E995L;
+
+    private final long[] words;
+    private final int hashes;
+
+    private BloomFilter(@NotNull final long[] words, final int hashes) {
+        this.words = words;
+        this.hashes = hashes;
+    }
+
+    /**
+     * Creates an empty filter sized for the given number of keys.
+     *
+     * @param keys is expected number of keys
+     * @return empty filter
+     */
+    @NotNull
+    static BloomFilter create(final long keys) {
+        final long bits = Math.max(Long.SIZE, keys * BITS_PER_KEY);
+        final long words = (bits + Long.SIZE - 1) / Long.SIZE;
+        if (words > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many keys: " + keys);
+        }
+        return new BloomFilter(new long[(int) words], HASHES);
+    }
+
+    void add(@NotNull final ByteBuffer key) {
+        addHash(hash(key));
+    }
+
+    /**
+     * Adds a key by its {@link #hash(ByteBuffer)}, so keys may be hashed before the filter is sized.
+     */
+    void addHash(final long hash) {
+        final long bits = (long) words.length * Long.SIZE;
+        long combined = hash;
+        final long step = (hash >>> Integer.SIZE) | 1L;
+        for (int i = 0; i < hashes; i++) {
+            final long bit = Long.remainderUnsigned(combined, bits);
+            words[(int) (bit >>> 6)] |= 1L << bit;
+            combined += step;
+        }
+    }
+
+    boolean mightContain(@NotNull final ByteBuffer key) {
+        final long hash = hash(key);
+        final long bits = (long) words.length * Long.SIZE;
+        long combined = hash;
+        final long step = (hash >>> Integer.SIZE) | 1L;
+        for (int i = 0; i < hashes; i++) {
+            final long bit = Long.remainderUnsigned(combined, bits);
+            if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+            combined += step;
+        }
+        return true;
+    }
+
+    /**
+     * MurmurHash64A of the remaining bytes, reading the buffer with absolute gets only.
+     */
+    static long hash(@NotNull final ByteBuffer key) {
+        final int length = key.remaining();
+        final int start = key.position();
+        long h = SEED ^ (length * MULTIPLIER);
+
+        int i = 0;
+        for (; i + Long.BYTES <= length; i += Long.BYTES) {
+            long k = key.getLong(start + i);
+            k *= MULTIPLIER;
+            k ^= k >>> 47;
+            k *= MULTIPLIER;
+            h ^= k;
+            h *= MULTIPLIER;
+        }
+        if (i < length) {
+            long tail = 0;
+            for (int j = length - 1; j >= i; j--) {
+                tail = (tail << Byte.SIZE) | (key.get(start + j) & 0xFF);
+            }
+            h ^= tail;
+            h *= MULTIPLIER;
+        }
+
+        h ^= h >>> 47;
+        h *= MULTIPLIER;
+        h ^= h >>> 47;
+        return h;
+    }
+
+    int sizeInBytes() {
+        return 2 * Integer.BYTES + words.length * Long.BYTES;
+    }
+
+    void writeTo(@NotNull final ByteBuffer to) {
+        to.putInt(hashes);
+        to.putInt(words.length);
+        for (final long word : words) {
+            to.putLong(word);
+        }
+    }
+
+    /**
+     * Reads a filter written by {@link #writeTo(ByteBuffer)}.
+     *
+     * @param from is the buffer positioned at the filter
+     * @return filter
+     */
+    @NotNull
+    static BloomFilter readFrom(@NotNull final ByteBuffer from) {
+        final int hashes = from.getInt();
+        final long[] words = new long[from.getInt()];
+        from.asLongBuffer().get(words);
+        from.position(from.position() + words.length * Long.BYTES);
+        return new BloomFilter(words, hashes);
+    }
+}
@@ -0,0 +1,56 @@
+package ru.mail.polis.renuonego;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Cells of a table up to the bound (exclusive) in the direction of the scan. The table isn't read
+ * past the first cell beyond the bound, so a merge drops it as soon as it is done with the range.
+ */
+final class BoundedIterator implements Iterator<Cell> {
+    @NotNull
+    private final Iterator<Cell> cells;
+    @NotNull
+    private final ByteBuffer bound;
+    private final boolean ascending;
+    @Nullable
+    private Cell next;
+
+    BoundedIterator(@NotNull final Iterator<Cell> cells,
+                    @NotNull final ByteBuffer bound,
+                    final boolean ascending) {
+        this.cells = cells;
+        this.bound = bound;
+        this.ascending = ascending;
+        advance();
+    }
+
+    private void advance() {
+        if (cells.hasNext()) {
+            final Cell cell = cells.next();
+            final int position = cell.key().compareTo(bound);
+            next = (ascending ? position < 0 : position > 0) ? cell : null;
+        } else {
+            next = null;
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return next != null;
+    }
+
+    @Override
+    public Cell next() {
+        final Cell result = next;
+        if (result == null) {
+            throw new NoSuchElementException();
+        }
+        advance();
+        return result;
+    }
+}
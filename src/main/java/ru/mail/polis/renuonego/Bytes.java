@@ -1,5 +1,7 @@
 package ru.mail.polis.renuonego;
 
+import org.jetbrains.annotations.NotNull;
+
 import java.nio.ByteBuffer;
 
 final class Bytes {
@@ -33,4 +35,40 @@ final class Bytes {
                 .putLong(value)
                 .rewind();
     }
+
+    /**
+     * Compares bytes of the buffer at the given absolute position with the remaining bytes of the key
+     * as {@link ByteBuffer#compareTo(ByteBuffer)} does, but without slicing the buffer.
+     *
+     * @param buffer is the buffer holding the first sequence
+     * @param start  is the absolute position of the first sequence
+     * @param size   is the length of the first sequence
+     * @param key    is the second sequence
+     * @return negative, zero or positive as the first sequence is less, equal or greater
+     */
+    static int compare(@NotNull final ByteBuffer buffer,
+                       final int start,
+                       final int size,
+                       @NotNull final ByteBuffer key) {
+        final int length = Math.min(size, key.remaining());
+        for (int i = 0; i < length; i++) {
+            final int cmp = Byte.compare(buffer.get(start + i), key.get(key.position() + i));
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return size - key.remaining();
+    }
+
+    /**
+     * Copies the remaining bytes of the buffer to the heap,
+     * so the copy doesn't keep a larger buffer it is sliced from reachable.
+     *
+     * @param buffer is the buffer to copy
+     * @return the copy
+     */
+    @NotNull
+    static ByteBuffer copy(@NotNull final ByteBuffer buffer) {
+        return ByteBuffer.allocate(buffer.remaining()).put(buffer.duplicate()).flip();
+    }
 }
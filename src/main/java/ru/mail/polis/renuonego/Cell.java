@@ -3,12 +3,8 @@ package ru.mail.polis.renuonego;
 import org.jetbrains.annotations.NotNull;
 
 import java.nio.ByteBuffer;
-import java.util.Comparator;
 
 final class Cell {
-    static final Comparator<Cell> COMPARATOR =
-            Comparator.comparing(Cell::getKey).thenComparing(Cell::getValue);
-
     @NotNull
     private final ByteBuffer key;
     @NotNull
@@ -24,6 +20,19 @@ final class Cell {
         return key.asReadOnlyBuffer();
     }
 
+    /**
+     * Returns the key itself rather than a read-only copy, for lookups which must not allocate.
+     * The caller must not change the buffer.
+     */
+    @NotNull
+    ByteBuffer key() {
+        return key;
+    }
+
+    int compareKeyTo(@NotNull final Cell other) {
+        return key.compareTo(other.key);
+    }
+
     @NotNull
     Value getValue() {
         return value;
@@ -0,0 +1,55 @@
+package ru.mail.polis.renuonego;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tables chosen to be merged into a level, or a single table to be moved there as is.
+ */
+final class Compaction {
+    @NotNull
+    final List<SSTable> inputs;
+    final int outputLevel;
+    /**
+     * No table below the output level holds the keys of the inputs,
+     * so tombstones shadow nothing there and may be dropped.
+     */
+    final boolean dropTombstones;
+    /**
+     * Size after which the output goes on in the next table.
+     */
+    final long maxTableSize;
+    final boolean trivialMove;
+
+    private Compaction(@NotNull final List<SSTable> inputs,
+                       final int outputLevel,
+                       final boolean dropTombstones,
+                       final long maxTableSize,
+                       final boolean trivialMove) {
+        this.inputs = Collections.unmodifiableList(inputs);
+        this.outputLevel = outputLevel;
+        this.dropTombstones = dropTombstones;
+        this.maxTableSize = maxTableSize;
+        this.trivialMove = trivialMove;
+    }
+
+    @NotNull
+    static Compaction merge(@NotNull final List<SSTable> inputs,
+                            final int outputLevel,
+                            final boolean dropTombstones,
+                            final long maxTableSize) {
+        return new Compaction(inputs, outputLevel, dropTombstones, maxTableSize, false);
+    }
+
+    @NotNull
+    static Compaction move(@NotNull final SSTable input, final int outputLevel) {
+        return new Compaction(List.of(input), outputLevel, false, Long.MAX_VALUE, true);
+    }
+
+    @Override
+    public String toString() {
+        return (trivialMove ? "move of " : "merge of ") + inputs.size() + " tables into L" + outputLevel;
+    }
+}
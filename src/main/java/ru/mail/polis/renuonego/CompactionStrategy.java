@@ -0,0 +1,30 @@
+package ru.mail.polis.renuonego;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+/**
+ * Decides which {@link SSTable}s are merged together.
+ * Implementations are called under the compaction lock only, so they may keep state between calls.
+ */
+interface CompactionStrategy {
+    /**
+     * Chooses the next compaction the tables need.
+     *
+     * @param ssTables are the current tables by level and newest first within a level
+     * @return the compaction or null if the tables are fine as they are
+     */
+    @Nullable
+    Compaction pick(@NotNull List<SSTable> ssTables);
+
+    /**
+     * Chooses a compaction of all the tables, which leaves a single copy of every key and no tombstones.
+     *
+     * @param ssTables are the current tables, not empty
+     * @return the compaction
+     */
+    @NotNull
+    Compaction major(@NotNull List<SSTable> ssTables);
+}
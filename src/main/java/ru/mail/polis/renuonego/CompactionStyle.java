@@ -0,0 +1,35 @@
+package ru.mail.polis.renuonego;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Defines how {@link LSMDao} merges its {@link SSTable}s in the background.
+ */
+public enum CompactionStyle {
+    /**
+     * Tables are kept in levels of growing size with disjoint tables in every level but the first,
+     * which bounds both the number of tables a lookup checks and the space taken by stale values
+     * at the cost of rewriting data once per level.
+     */
+    LEVELED {
+        @NotNull
+        @Override
+        CompactionStrategy strategy(@NotNull final Config config) {
+            return new LeveledCompaction(config);
+        }
+    },
+    /**
+     * Tables of similar size are merged into a larger one, which rewrites data less often
+     * than {@link #LEVELED} at the cost of more tables to check and more space taken by stale values.
+     */
+    SIZE_TIERED {
+        @NotNull
+        @Override
+        CompactionStrategy strategy(@NotNull final Config config) {
+            return new SizeTieredCompaction(config);
+        }
+    };
+
+    @NotNull
+    abstract CompactionStrategy strategy(@NotNull Config config);
+}
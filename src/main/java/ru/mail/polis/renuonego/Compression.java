@@ -0,0 +1,126 @@
+package ru.mail.polis.renuonego;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Codec of {@link SSTable} blocks. The codec id is stored in the table,
+ * so tables written with different codecs can be read together.
+ */
+public enum Compression {
+    /**
+     * Blocks are stored as is.
+     */
+    NONE(0) {
+        @Override
+        boolean compress(@NotNull final ByteBuffer raw, @NotNull final ByteBuffer to) {
+            return false;
+        }
+
+        @NotNull
+        @Override
+        ByteBuffer decompress(@NotNull final ByteBuffer compressed, final int rawSize) {
+            throw new UnsupportedOperationException("Blocks are not compressed");
+        }
+    },
+    /**
+     * Blocks are compressed with {@link Deflater} at the fastest level.
+     */
+    DEFLATE(1) {
+        private final ThreadLocal<Deflater> deflaters =
+                ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+        private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+        @Override
+        boolean compress(@NotNull final ByteBuffer raw, @NotNull final ByteBuffer to) {
+            final Deflater deflater = deflaters.get();
+            deflater.reset();
+            deflater.setInput(raw.duplicate());
+            deflater.finish();
+            final ByteBuffer compressed = to.duplicate();
+            compressed.limit(compressed.position() + raw.remaining() - 1);
+            while (!deflater.finished() && compressed.hasRemaining()) {
+                deflater.deflate(compressed);
+            }
+            if (!deflater.finished()) {
+                return false;
+            }
+            to.position(compressed.position());
+            return true;
+        }
+
+        @NotNull
+        @Override
+        ByteBuffer decompress(@NotNull final ByteBuffer compressed, final int rawSize) {
+            final Inflater inflater = inflaters.get();
+            inflater.reset();
+            inflater.setInput(compressed.duplicate());
+            final ByteBuffer raw = ByteBuffer.allocate(rawSize);
+            try {
+                while (!inflater.finished() && raw.hasRemaining()) {
+                    if (inflater.inflate(raw) == 0 && inflater.needsInput()) {
+                        break;
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new UncheckedIOException(new IOException("Corrupted block", e));
+            }
+            if (!inflater.finished() || raw.hasRemaining()) {
+                throw new UncheckedIOException(new IOException("Truncated block"));
+            }
+            return raw.flip();
+        }
+    };
+
+    private final int id;
+
+    Compression(final int id) {
+        this.id = id;
+    }
+
+    int id() {
+        return id;
+    }
+
+    /**
+     * Finds the codec a table was written with.
+     *
+     * @param id is the stored codec id
+     * @return the codec
+     * @throws IOException if the codec is unknown
+     */
+    @NotNull
+    static Compression of(final long id) throws IOException {
+        for (final Compression compression : values()) {
+            if (compression.id == id) {
+                return compression;
+            }
+        }
+        throw new IOException("Unknown compression " + id);
+    }
+
+    /**
+     * Compresses the remaining bytes of the block into the target buffer.
+     *
+     * @param raw is the block
+     * @param to  is the target buffer with at least as much space as the raw block takes
+     * @return false, leaving the target intact, if the compressed block is not smaller than the raw one
+     */
+    abstract boolean compress(@NotNull ByteBuffer raw, @NotNull ByteBuffer to);
+
+    /**
+     * Restores the block compressed by {@link #compress(ByteBuffer, ByteBuffer)}.
+     *
+     * @param compressed is the compressed block
+     * @param rawSize    is the size of the raw block
+     * @return the raw block
+     */
+    @NotNull
+    abstract ByteBuffer decompress(@NotNull ByteBuffer compressed, int rawSize);
+}
@@ -0,0 +1,353 @@
+package ru.mail.polis.renuonego;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.time.Duration;
+
+/**
+ * Tunables of {@link LSMDao}.
+ */
+public final class Config {
+    private static final long DEFAULT_FLUSH_THRESHOLD = 2 * 1024 * 1024;
+    private static final int DEFAULT_BLOCK_SIZE = 16 * 1024;
+    private static final long DEFAULT_BLOCK_CACHE_SIZE = 8 * 1024 * 1024;
+    private static final long DEFAULT_LEVEL_BASE_SIZE = 10 * 1024 * 1024;
+    private static final long DEFAULT_TARGET_TABLE_SIZE = 2 * 1024 * 1024;
+    private static final long DEFAULT_MIN_TABLE_SIZE = 8 * 1024 * 1024;
+    private static final double DEFAULT_TOMBSTONE_THRESHOLD = 0.2;
+
+    final long flushThreshold;
+    final boolean offHeapMemTable;
+    @NotNull
+    final SyncPolicy syncPolicy;
+    @NotNull
+    final Duration groupCommitWindow;
+    final long groupCommitBytes;
+    @NotNull
+    final Duration syncPeriod;
+    final int blockSize;
+    @NotNull
+    final Compression compression;
+    final long blockCacheSize;
+    final boolean offHeapBlockCache;
+    final int level0CompactionTrigger;
+    final long levelBaseSize;
+    final int levelSizeRatio;
+    final long targetTableSize;
+    @NotNull
+    final CompactionStyle compactionStyle;
+    final int sizeTieredMinThreshold;
+    final int sizeTieredMaxThreshold;
+    final double sizeTieredBucketLow;
+    final double sizeTieredBucketHigh;
+    final long sizeTieredMinTableSize;
+    final double tombstoneThreshold;
+
+    private Config(@NotNull final Builder builder) {
+        this.flushThreshold = builder.flushThreshold;
+        this.offHeapMemTable = builder.offHeapMemTable;
+        this.syncPolicy = builder.syncPolicy;
+        this.groupCommitWindow = builder.groupCommitWindow;
+        this.groupCommitBytes = builder.groupCommitBytes;
+        this.syncPeriod = builder.syncPeriod;
+        this.blockSize = builder.blockSize;
+        this.compression = builder.compression;
+        this.blockCacheSize = builder.blockCacheSize;
+        this.offHeapBlockCache = builder.offHeapBlockCache;
+        this.level0CompactionTrigger = builder.level0CompactionTrigger;
+        this.levelBaseSize = builder.levelBaseSize;
+        this.levelSizeRatio = builder.levelSizeRatio;
+        this.targetTableSize = builder.targetTableSize;
+        this.compactionStyle = builder.compactionStyle;
+        this.sizeTieredMinThreshold = builder.sizeTieredMinThreshold;
+        this.sizeTieredMaxThreshold = builder.sizeTieredMaxThreshold;
+        this.sizeTieredBucketLow = builder.sizeTieredBucketLow;
+        this.sizeTieredBucketHigh = builder.sizeTieredBucketHigh;
+        this.sizeTieredMinTableSize = builder.sizeTieredMinTableSize;
+        this.tombstoneThreshold = builder.tombstoneThreshold;
+    }
+
+    @NotNull
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static final class Builder {
+        private long flushThreshold = DEFAULT_FLUSH_THRESHOLD;
+        private boolean offHeapMemTable;
+        private SyncPolicy syncPolicy = SyncPolicy.PERIODIC;
+        private Duration groupCommitWindow = Duration.ofMillis(1);
+        private long groupCommitBytes = 1024 * 1024;
+        private Duration syncPeriod = Duration.ofMillis(100);
+        private int blockSize = DEFAULT_BLOCK_SIZE;
+        private Compression compression = Compression.DEFLATE;
+        private long blockCacheSize = DEFAULT_BLOCK_CACHE_SIZE;
+        private boolean offHeapBlockCache;
+        private int level0CompactionTrigger = 4;
+        private long levelBaseSize = DEFAULT_LEVEL_BASE_SIZE;
+        private int levelSizeRatio = 10;
+        private long targetTableSize = DEFAULT_TARGET_TABLE_SIZE;
+        private CompactionStyle compactionStyle = CompactionStyle.LEVELED;
+        private int sizeTieredMinThreshold = 4;
+        private int sizeTieredMaxThreshold = 32;
+        private double sizeTieredBucketLow = 0.5;
+        private double sizeTieredBucketHigh = 1.5;
+        private long sizeTieredMinTableSize = DEFAULT_MIN_TABLE_SIZE;
+        private double tombstoneThreshold = DEFAULT_TOMBSTONE_THRESHOLD;
+
+        private Builder() {
+        }
+
+        /**
+         * Sets the size of {@link MemTable} which triggers a flush.
+         *
+         * @param flushThreshold is threshold of MemTable's size in bytes
+         * @return this builder
+         */
+        @NotNull
+        public Builder flushThreshold(final long flushThreshold) {
+            if (flushThreshold < 0) {
+                throw new IllegalArgumentException("Negative flush threshold: " + flushThreshold);
+            }
+            this.flushThreshold = flushThreshold;
+            return this;
+        }
+
+        /**
+         * Makes memtables copy keys and values to direct memory slabs
+         * instead of keeping the caller's buffers on the heap.
+         * The storage takes up to three flush thresholds of direct memory for them,
+         * which must fit in {@code -XX:MaxDirectMemorySize}, {@code -Xmx} by default, see {@link OffHeapMemTable}.
+         *
+         * @param offHeapMemTable whether to use {@link OffHeapMemTable}
+         * @return this builder
+         */
+        @NotNull
+        public Builder offHeapMemTable(final boolean offHeapMemTable) {
+            this.offHeapMemTable = offHeapMemTable;
+            return this;
+        }
+
+        /**
+         * Sets when the write-ahead log is forced to disk.
+         *
+         * @param syncPolicy is the policy, {@link SyncPolicy#PERIODIC} by default
+         * @return this builder
+         */
+        @NotNull
+        public Builder syncPolicy(@NotNull final SyncPolicy syncPolicy) {
+            this.syncPolicy = syncPolicy;
+            return this;
+        }
+
+        /**
+         * Limits the {@link SyncPolicy#GROUP} commit: the log is forced once the window elapses
+         * after the first pending write or once the given amount of bytes is pending.
+         *
+         * @param window is the longest time a write waits for others to join its group
+         * @param bytes  is the amount of pending bytes forcing the log right away
+         * @return this builder
+         */
+        @NotNull
+        public Builder groupCommit(@NotNull final Duration window, final long bytes) {
+            if (window.isNegative() || bytes < 0) {
+                throw new IllegalArgumentException("Negative group commit limits");
+            }
+            this.groupCommitWindow = window;
+            this.groupCommitBytes = bytes;
+            return this;
+        }
+
+        /**
+         * Sets how often the log is forced with {@link SyncPolicy#PERIODIC}.
+         *
+         * @param syncPeriod is the longest time an acknowledged write may stay in the page cache
+         * @return this builder
+         */
+        @NotNull
+        public Builder syncPeriod(@NotNull final Duration syncPeriod) {
+            if (syncPeriod.isNegative() || syncPeriod.isZero()) {
+                throw new IllegalArgumentException("Non-positive sync period: " + syncPeriod);
+            }
+            this.syncPeriod = syncPeriod;
+            return this;
+        }
+
+        /**
+         * Sets the size of {@link SSTable} blocks. Larger blocks make the index smaller,
+         * smaller blocks make point lookups read less.
+         *
+         * @param blockSize is the size of a block in bytes, a cell larger than that takes a block of its own
+         * @return this builder
+         */
+        @NotNull
+        public Builder blockSize(final int blockSize) {
+            if (blockSize <= 0) {
+                throw new IllegalArgumentException("Non-positive block size: " + blockSize);
+            }
+            this.blockSize = blockSize;
+            return this;
+        }
+
+        /**
+         * Sets the codec of blocks of new {@link SSTable}s, both flushed and compacted.
+         * Blocks which don't get smaller are stored as is.
+         *
+         * @param compression is the codec, {@link Compression#DEFLATE} by default
+         * @return this builder
+         */
+        @NotNull
+        public Builder compression(@NotNull final Compression compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        /**
+         * Sets the size of the cache of decompressed blocks shared by all the {@link SSTable}s.
+         *
+         * @param blockCacheSize is the size in bytes, 0 disables the cache
+         * @return this builder
+         */
+        @NotNull
+        public Builder blockCacheSize(final long blockCacheSize) {
+            if (blockCacheSize < 0) {
+                throw new IllegalArgumentException("Negative block cache size: " + blockCacheSize);
+            }
+            this.blockCacheSize = blockCacheSize;
+            return this;
+        }
+
+        /**
+         * Makes the block cache keep blocks in direct memory, so it doesn't take the heap.
+         *
+         * @param offHeapBlockCache whether to allocate cached blocks off heap
+         * @return this builder
+         */
+        @NotNull
+        public Builder offHeapBlockCache(final boolean offHeapBlockCache) {
+            this.offHeapBlockCache = offHeapBlockCache;
+            return this;
+        }
+
+        /**
+         * Sets the number of flushed tables in level 0 which triggers their compaction into level 1.
+         *
+         * @param level0CompactionTrigger is the number of tables, 4 by default
+         * @return this builder
+         */
+        @NotNull
+        public Builder level0CompactionTrigger(final int level0CompactionTrigger) {
+            if (level0CompactionTrigger <= 0) {
+                throw new IllegalArgumentException("Non-positive level 0 trigger: " + level0CompactionTrigger);
+            }
+            this.level0CompactionTrigger = level0CompactionTrigger;
+            return this;
+        }
+
+        /**
+         * Sets the size limits of levels: level 1 holds up to the base size,
+         * and every next level holds the given times more. A level over its limit
+         * has one of its tables compacted into the next level.
+         *
+         * @param baseSize is the size of level 1 in bytes, 10 MB by default
+         * @param ratio    is the ratio of sizes of adjacent levels, 10 by default
+         * @return this builder
+         */
+        @NotNull
+        public Builder levelSize(final long baseSize, final int ratio) {
+            if (baseSize <= 0 || ratio < 2) {
+                throw new IllegalArgumentException("Invalid level size " + baseSize + " or ratio " + ratio);
+            }
+            this.levelBaseSize = baseSize;
+            this.levelSizeRatio = ratio;
+            return this;
+        }
+
+        /**
+         * Sets the size compaction splits its output by, so a compaction rewrites
+         * only the tables overlapping a few others rather than whole levels.
+         *
+         * @param targetTableSize is the size of a compacted table in bytes, 2 MB by default
+         * @return this builder
+         */
+        @NotNull
+        public Builder targetTableSize(final long targetTableSize) {
+            if (targetTableSize <= 0) {
+                throw new IllegalArgumentException("Non-positive target table size: " + targetTableSize);
+            }
+            this.targetTableSize = targetTableSize;
+            return this;
+        }
+
+        /**
+         * Sets how tables are merged in the background.
+         *
+         * @param compactionStyle is the style, {@link CompactionStyle#LEVELED} by default
+         * @return this builder
+         */
+        @NotNull
+        public Builder compactionStyle(@NotNull final CompactionStyle compactionStyle) {
+            this.compactionStyle = compactionStyle;
+            return this;
+        }
+
+        /**
+         * Sets how many similar tables {@link CompactionStyle#SIZE_TIERED} compaction merges.
+         *
+         * @param min is the number of similar tables which triggers compaction, 4 by default
+         * @param max is the largest number of tables merged at once, 32 by default
+         * @return this builder
+         */
+        @NotNull
+        public Builder sizeTieredThreshold(final int min, final int max) {
+            if (min < 2 || max < min) {
+                throw new IllegalArgumentException("Invalid size-tiered threshold " + min + ".." + max);
+            }
+            this.sizeTieredMinThreshold = min;
+            this.sizeTieredMaxThreshold = max;
+            return this;
+        }
+
+        /**
+         * Sets which tables {@link CompactionStyle#SIZE_TIERED} compaction considers similar:
+         * a table is similar to a group if its size is within the bounds of the average size of the group,
+         * and all the tables below the minimal size are similar to each other.
+         *
+         * @param low          is the lower bound relative to the average, 0.5 by default
+         * @param high         is the upper bound relative to the average, 1.5 by default
+         * @param minTableSize is the minimal size in bytes, 8 MB by default
+         * @return this builder
+         */
+        @NotNull
+        public Builder sizeTieredBucket(final double low, final double high, final long minTableSize) {
+            if (low <= 0 || low > 1 || high < 1 || minTableSize < 0) {
+                throw new IllegalArgumentException("Invalid size-tiered bucket " + low + ".." + high);
+            }
+            this.sizeTieredBucketLow = low;
+            this.sizeTieredBucketHigh = high;
+            this.sizeTieredMinTableSize = minTableSize;
+            return this;
+        }
+
+        /**
+         * Sets the share of tombstones and expired values which gets a table compacted
+         * to drop them once no other compaction is due, even if its size alone wouldn't.
+         *
+         * @param tombstoneThreshold is the share from 0 to 1, 0.2 by default; 1 disables such compactions
+         * @return this builder
+         */
+        @NotNull
+        public Builder tombstoneThreshold(final double tombstoneThreshold) {
+            if (tombstoneThreshold < 0 || tombstoneThreshold > 1) {
+                throw new IllegalArgumentException("Invalid tombstone threshold " + tombstoneThreshold);
+            }
+            this.tombstoneThreshold = tombstoneThreshold;
+            return this;
+        }
+
+        @NotNull
+        public Config build() {
+            return new Config(this);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package ru.mail.polis.renuonego;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+
+/**
+ * Frees direct buffers right away instead of leaving them to GC, which collects them
+ * only once the heap needs collecting, however much direct memory they hold.
+ */
+final class DirectMemory {
+    private static final Logger log = LoggerFactory.getLogger(DirectMemory.class);
+
+    @Nullable
+    private static final MethodHandle INVOKE_CLEANER = invokeCleaner();
+
+    private DirectMemory() {
+    }
+
+    /**
+     * Looks up {@code sun.misc.Unsafe#invokeCleaner}, which the JDK exports for this very purpose.
+     */
+    @Nullable
+    private static MethodHandle invokeCleaner() {
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(theUnsafe.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.warn("Can't free direct buffers explicitly, leaving them to GC", e);
+            return null;
+        }
+    }
+
+    /**
+     * Frees the memory of the buffer, which must not be accessed afterwards, nor any slice of it.
+     *
+     * @param buffer is a direct buffer as allocated, not a slice or a duplicate
+     */
+    static void free(@NotNull final ByteBuffer buffer) {
+        assert buffer.isDirect();
+        if (INVOKE_CLEANER == null) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invokeExact(buffer);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException("Can't free direct buffer", e);
+        }
+    }
+}
@@ -0,0 +1,400 @@
+package ru.mail.polis.renuonego;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * {@link SSTable} of the original format: cells followed by an offset (8) per cell
+ * and the number of cells (8). Only read, new tables are written as {@link BlockSSTable}s.
+ * The Bloom filter is kept in a separate file, as the format has no room for it.
+ */
+final class FlatSSTable extends SSTable {
+    private static final String FILTER_SUFFIX = ".bloom";
+    private static final String FILTER_TEMP = ".bloom.tmp";
+
+    private final ByteBuffer cells;
+    private final LongBuffer offsets;
+    private final int rows;
+    private final BloomFilter filter;
+    private final long maxTimestamp;
+    private final long tombstones;
+
+    /**
+     * Creates a new SSTable representation of data file.
+     *
+     * @param file       to get a table
+     * @param generation is the generation of the table
+     * @param level      is the level of the table
+     * @throws IOException if an I/O error is thrown by a visitor method
+     */
+    FlatSSTable(@NotNull final File file, final int generation, final int level) throws IOException {
+        super(file, generation, level);
+        final long fileSize = file.length();
+        assert fileSize != 0 && fileSize <= Integer.MAX_VALUE;
+
+        final ByteBuffer mapped;
+        try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            mapped = fc.map(FileChannel.MapMode.READ_ONLY, 0L, fileSize).order(ByteOrder.BIG_ENDIAN);
+        }
+
+        final long rowsLong = mapped.getLong((int) (fileSize - Long.BYTES));
+        assert rowsLong <= Integer.MAX_VALUE;
+        this.rows = (int) rowsLong;
+
+        final ByteBuffer offsetBuffer = mapped.duplicate();
+        offsetBuffer.position(mapped.limit() - Long.BYTES * this.rows - Long.BYTES);
+        offsetBuffer.limit(mapped.limit() - Long.BYTES);
+        this.offsets = offsetBuffer.slice().asLongBuffer();
+
+        final ByteBuffer cellBuffer = mapped.duplicate();
+        cellBuffer.limit(offsetBuffer.position());
+        this.cells = cellBuffer.slice();
+
+        this.filter = loadFilter();
+        // The format keeps no statistics, so they are gathered from the cells
+        long newest = 0;
+        long removed = 0;
+        for (int i = 0; i < rows; i++) {
+            final int offset = (int) offsets.get(i);
+            final long timestamp = cells.getLong(offset + Integer.BYTES + cells.getInt(offset));
+            newest = Math.max(newest, Math.abs(timestamp));
+            if (timestamp < 0) {
+                removed++;
+            }
+        }
+        this.maxTimestamp = newest;
+        this.tombstones = removed;
+    }
+
+    @NotNull
+    private static File sidecar(@NotNull final File table, @NotNull final String suffix) {
+        final String name = table.getName();
+        return new File(table.getParentFile(), name.substring(0, name.lastIndexOf('.')) + suffix);
+    }
+
+    /**
+     * Reads the Bloom filter stored alongside the table.
+     * Tables written without one get it built from their keys and stored.
+     */
+    @NotNull
+    private BloomFilter loadFilter() throws IOException {
+        final File filterFile = sidecar(file(), FILTER_SUFFIX);
+        if (filterFile.exists()) {
+            return BloomFilter.readFrom(ByteBuffer.wrap(Files.readAllBytes(filterFile.toPath())));
+        }
+
+        final BloomFilter result = BloomFilter.create(rows);
+        for (int i = 0; i < rows; i++) {
+            result.add(keyAt(i));
+        }
+
+        final ByteBuffer serialized = ByteBuffer.allocate(result.sizeInBytes());
+        result.writeTo(serialized);
+        serialized.flip();
+        final File tmp = sidecar(file(), FILTER_TEMP);
+        try (FileChannel fc = FileChannel.open(
+                tmp.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            while (serialized.hasRemaining()) {
+                fc.write(serialized);
+            }
+        }
+        Files.move(tmp.toPath(), filterFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return result;
+    }
+
+    @NotNull
+    @Override
+    public RangeTombstones rangeTombstones() {
+        return RangeTombstones.EMPTY;
+    }
+
+    @Override
+    long maxTimestamp() {
+        return maxTimestamp;
+    }
+
+    @Override
+    long rows() {
+        return rows;
+    }
+
+    @Override
+    long tombstones() {
+        return tombstones;
+    }
+
+    @Override
+    long expiring() {
+        return 0;
+    }
+
+    @Override
+    long maxExpiresAt() {
+        return 0;
+    }
+
+    @NotNull
+    @Override
+    ByteBuffer firstKey() {
+        return keyAt(0);
+    }
+
+    @NotNull
+    @Override
+    ByteBuffer lastKey() {
+        return keyAt(rows - 1);
+    }
+
+    @NotNull
+    @Override
+    List<ByteBuffer> sampleKeys(final int max) {
+        final List<ByteBuffer> result = new ArrayList<>();
+        final int step = Math.max(1, (rows + max - 1) / max);
+        for (int i = step; i < rows; i += step) {
+            result.add(keyAt(i));
+        }
+        return result;
+    }
+
+    private ByteBuffer keyAt(final int i) {
+        assert 0 <= i && i <= rows;
+
+        final long offset = offsets.get(i);
+        assert offset <= Integer.MAX_VALUE;
+        final ByteBuffer key = cells.duplicate();
+
+        key.position((int) (offset + Integer.BYTES));
+        key.limit(key.position() + cells.getInt((int) offset));
+
+        return key.slice();
+    }
+
+    private int compareKeyAt(final int i, @NotNull final ByteBuffer key) {
+        final int offset = (int) offsets.get(i);
+        return Bytes.compare(cells, offset + Integer.BYTES, cells.getInt(offset), key);
+    }
+
+    @Nullable
+    @Override
+    public Value get(@NotNull final ByteBuffer key) {
+        if (!filter.mightContain(key)) {
+            return null;
+        }
+        final int i = search(key, 0);
+        return i < 0 ? null : valueAt(i);
+    }
+
+    /**
+     * Searches for every key after the position of the previous one.
+     */
+    @Override
+    public void get(@NotNull final List<ByteBuffer> keys, @NotNull final Value[] values) {
+        int position = 0;
+        for (int i = 0; i < keys.size(); i++) {
+            final ByteBuffer key = keys.get(i);
+            if (values[i] != null || !filter.mightContain(key)) {
+                continue;
+            }
+            final int j = search(key, position);
+            if (j < 0) {
+                position = -j - 1;
+            } else {
+                values[i] = valueAt(j);
+                position = j + 1;
+            }
+        }
+    }
+
+    /**
+     * Searches for the key, which is known not to go before the given index.
+     *
+     * @return index of the key or {@code -(insertion point) - 1}
+     */
+    private int search(@NotNull final ByteBuffer key, final int from) {
+        int left = from;
+        int right = rows - 1;
+        while (left <= right) {
+            final int mid = (left + right) >>> 1;
+            final int cmp = compareKeyAt(mid, key);
+            if (cmp < 0) {
+                left = mid + 1;
+            } else if (cmp > 0) {
+                right = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(left + 1);
+    }
+
+    @NotNull
+    private Value valueAt(final int i) {
+        int offset = (int) offsets.get(i);
+        offset += Integer.BYTES + cells.getInt(offset);
+        final long timestamp = cells.getLong(offset);
+        if (timestamp < 0) {
+            return new Value(-timestamp, null);
+        }
+        offset += Long.BYTES;
+        final ByteBuffer value = cells.duplicate();
+        value.position(offset + Integer.BYTES);
+        value.limit(value.position() + cells.getInt(offset));
+        return new Value(timestamp, value.slice());
+    }
+
+    private Cell cellAt(final int i) {
+        assert 0 <= i && i < rows;
+        long offset = offsets.get(i);
+        assert offset <= Integer.MAX_VALUE;
+
+        final int keySize = cells.getInt((int) offset);
+        offset += Integer.BYTES;
+        final ByteBuffer key = keyAt(i);
+        offset += keySize;
+
+        final long timestamp = cells.getLong((int) offset);
+        offset += Long.BYTES;
+
+        if (timestamp < 0) {
+            return new Cell(key.slice(), new Value(-timestamp, null));
+        } else {
+            final int valueSize = cells.getInt((int) offset);
+            offset += Integer.BYTES;
+            final ByteBuffer value = cells.duplicate();
+
+            value.position((int) offset);
+            value.limit(value.position() + valueSize);
+
+            return new Cell(key.slice(), new Value(timestamp, value.slice()));
+        }
+    }
+
+    private int position(@NotNull final ByteBuffer from, @NotNull final Boolean isDirect) {
+        int left = 0;
+        int right = rows - 1;
+
+        while (left <= right) {
+            final int mid = left + (right - left) / 2;
+            final int cmp = from.compareTo(keyAt(mid));
+
+            if (cmp < 0) {
+                right = mid - 1;
+            } else if (cmp > 0) {
+                left = mid + 1;
+            } else {
+                return mid;
+            }
+        }
+        return isDirect ? left : right;
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> iterator(@NotNull final ByteBuffer from) {
+        return new Iterator<>() {
+            int next = position(from, true);
+
+            @Override
+            public boolean hasNext() {
+                return next < rows;
+            }
+
+            @Override
+            public Cell next() {
+                assert hasNext();
+                return cellAt(next++);
+            }
+        };
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> reverseIterator(@NotNull final ByteBuffer from) {
+        return new Iterator<>() {
+            int next = position(from, false);
+
+            @Override
+            public boolean hasNext() {
+                return next >= 0;
+            }
+
+            @Override
+            public Cell next() {
+                assert hasNext();
+                return cellAt(next--);
+            }
+        };
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> reverseIterator() {
+        return new Iterator<>() {
+            int last = rows - 1;
+
+            @Override
+            public boolean hasNext() {
+                return last >= 0;
+            }
+
+            @Override
+            public Cell next() {
+                assert hasNext();
+                return cellAt(last--);
+            }
+        };
+    }
+
+    @Override
+    void deleteSSTableFile() throws IOException {
+        deleteFilter(file());
+        super.deleteSSTableFile();
+    }
+
+    @Override
+    void moveSSTableFile(@NotNull final File to) throws IOException {
+        final File filterFile = sidecar(file(), FILTER_SUFFIX);
+        if (filterFile.exists()) {
+            Files.move(filterFile.toPath(), sidecar(to, FILTER_SUFFIX).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        super.moveSSTableFile(to);
+    }
+
+    /**
+     * Deletes the Bloom filter stored alongside the table, if the table has one.
+     *
+     * @param table is the table file
+     * @throws IOException if the file can't be deleted
+     */
+    static void deleteFilter(@NotNull final File table) throws IOException {
+        Files.deleteIfExists(sidecar(table, FILTER_SUFFIX).toPath());
+    }
+
+    /**
+     * Deletes a Bloom filter file left without its table by a crash.
+     *
+     * @param filterFile is the filter file
+     * @throws IOException if the file can't be deleted
+     */
+    static void deleteOrphanFilter(@NotNull final File filterFile) throws IOException {
+        if (filterFile.getName().endsWith(FILTER_SUFFIX) && !sidecar(filterFile, LSMDao.SUFFIX).exists()) {
+            Files.delete(filterFile.toPath());
+        }
+    }
+}
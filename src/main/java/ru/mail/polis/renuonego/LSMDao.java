@@ -1,38 +1,79 @@
 package ru.mail.polis.renuonego;
 
 import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.PeekingIterator;
+import com.google.common.math.LongMath;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import ru.mail.polis.DAO;
 import ru.mail.polis.Iters;
 import ru.mail.polis.Record;
+import ru.mail.polis.Snapshot;
+import ru.mail.polis.WriteBatch;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.file.FileVisitOption;
-import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
-import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.EnumSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
 
 public final class LSMDao implements DAO {
-    private static final String SUFFIX = ".dat";
+    private static final Logger log = LoggerFactory.getLogger(LSMDao.class);
+
+    static final String SUFFIX = ".dat";
     private static final String TEMP = ".tmp";
     private static final String PREFIX = "SSTABLE";
+    private static final char LEVEL_SEPARATOR = '-';
     private static final ByteBuffer MAX_REACHABLE_VALUE = ByteBuffer.allocate(0);
+    private static final int MAX_PENDING_FLUSHES = 2;
 
-    private Table memTable = new MemTable();
     private final File base;
-    private int generation;
+    private final Config config;
     private final long flushThreshold;
-    private final Collection<SSTable> ssTables;
+    private final BlockCache blockCache;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ExecutorService flusher;
+    private final ExecutorService compactor;
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+    private final Semaphore pendingFlushes = new Semaphore(MAX_PENDING_FLUSHES);
+    private final WriteAheadLog wal;
+    private final AtomicInteger lastGeneration;
+    private final Manifest manifest;
+    // Used by the compactor thread only
+    private final CompactionStrategy strategy;
+    // Guarded by the write lock
+    private int memTableGeneration;
+    private volatile TableSet tables;
 
     /**
      * Creates LSM Dao.
@@ -42,136 +83,1007 @@ public final class LSMDao implements DAO {
      * @throws IOException if an I/O error is thrown by a visitor method
      */
     public LSMDao(@NotNull final File base, final long flushThreshold) throws IOException {
+        this(base, Config.builder().flushThreshold(flushThreshold).build());
+    }
+
+    /**
+     * Creates LSM Dao.
+     *
+     * @param base   is directory with SSTables
+     * @param config is set of tunables
+     * @throws IOException if an I/O error is thrown by a visitor method
+     */
+    public LSMDao(@NotNull final File base, @NotNull final Config config) throws IOException {
+        this(base, config, Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder()
+                        .setNameFormat("lsm-flusher-%d")
+                        .setDaemon(true)
+                        .build()));
+    }
+
+    /**
+     * Creates LSM Dao flushing memtables on the given executor, which tests use to hold flushes back.
+     *
+     * @param base    is directory with SSTables
+     * @param config  is set of tunables
+     * @param flusher runs the flushes one at a time in the order they are submitted, shut down on close
+     * @throws IOException if an I/O error is thrown by a visitor method
+     */
+    LSMDao(@NotNull final File base,
+           @NotNull final Config config,
+           @NotNull final ExecutorService flusher) throws IOException {
         this.base = base;
-        assert flushThreshold >= 0L;
-        this.flushThreshold = flushThreshold;
-        ssTables = new ArrayList<>();
-
-        final var options = EnumSet.of(FileVisitOption.FOLLOW_LINKS);
-        final int maxDepth = 1;
-
-        Files.walkFileTree(base.toPath(), options, maxDepth, new SimpleFileVisitor<>() {
-            @Override
-            public FileVisitResult visitFile(final Path path, final BasicFileAttributes attrs) throws IOException {
-                if (path.getFileName().toString().endsWith(SUFFIX)
-                        && path.getFileName().toString().startsWith(PREFIX)) {
-                    ssTables.add(new SSTable(path.toFile()));
+        this.config = config;
+        this.flushThreshold = config.flushThreshold;
+        this.blockCache = new BlockCache(config.blockCacheSize, config.offHeapBlockCache);
+        final Supplier<Table> memTables = config.offHeapMemTable ? OffHeapMemTable::new : MemTable::new;
+        final String[] names = base.list();
+        if (names == null) {
+            throw new IOException("Can't list " + base);
+        }
+        final List<String> tableNames = new ArrayList<>();
+        final List<String> logNames = new ArrayList<>();
+        for (final String name : names) {
+            if (name.endsWith(SUFFIX) && name.startsWith(PREFIX)) {
+                tableNames.add(name);
+            } else if (name.endsWith(WriteAheadLog.SUFFIX) && name.startsWith(WriteAheadLog.PREFIX)) {
+                logNames.add(name);
+            } else if (name.endsWith(TEMP) && name.startsWith(PREFIX)) {
+                // Leftover of an interrupted flush or compaction
+                Files.delete(new File(base, name).toPath());
+            }
+        }
+
+        final Manifest existing = Manifest.exists(base) ? Manifest.read(base) : null;
+        final List<SSTable> ssTables = existing == null ? scanTables(tableNames) : openTables(existing, tableNames);
+        for (final String name : names) {
+            if (name.startsWith(PREFIX) && !name.endsWith(SUFFIX) && !name.endsWith(TEMP)) {
+                FlatSSTable.deleteOrphanFilter(new File(base, name));
+            }
+        }
+
+        int maxGeneration = existing == null ? 0 : existing.lastGeneration();
+        final int flushedGeneration = existing == null ? 0 : existing.flushedGeneration();
+        final Set<Integer> generations = new HashSet<>();
+        for (final SSTable ssTable : ssTables) {
+            generations.add(ssTable.generation());
+            maxGeneration = Math.max(maxGeneration, ssTable.generation());
+        }
+
+        // Segments not covered by a published table are replayed to the tables they belong to
+        logNames.sort(Comparator.comparingInt(name -> generationOf(name, WriteAheadLog.PREFIX, WriteAheadLog.SUFFIX)));
+        final List<File> logFiles = new ArrayList<>();
+        for (final String name : logNames) {
+            final File file = new File(base, name);
+            final int generation = generationOf(name, WriteAheadLog.PREFIX, WriteAheadLog.SUFFIX);
+            maxGeneration = Math.max(maxGeneration, generation);
+            if (generation > flushedGeneration && !generations.contains(generation)) {
+                final Table replayed = memTables.get();
+                final int records = WriteAheadLog.replay(file, replayed);
+                if (replayed.sizeInBytes() > 0) {
+                    ssTables.add(writeSSTable(replayed, generation));
                 }
-                return FileVisitResult.CONTINUE;
+                replayed.release();
+                log.info("Replayed {} records of generation {}", records, generation);
             }
-        });
+            logFiles.add(file);
+        }
+
+        // Segments are deleted only once the manifest names the tables they are replayed to
+        this.manifest = existing == null ? Manifest.create(base) : existing;
+        manifest.rewrite(ssTables, maxGeneration, maxGeneration);
+        for (final File file : logFiles) {
+            Files.delete(file.toPath());
+        }
 
-        generation = ssTables.size() + 1;
+        this.lastGeneration = new AtomicInteger(maxGeneration + 1);
+        this.memTableGeneration = lastGeneration.get();
+        this.tables = new TableSet(ssTables, memTables);
+        this.strategy = config.compactionStyle.strategy(config);
+        this.wal = new WriteAheadLog(base, memTableGeneration, config);
+        this.flusher = flusher;
+        this.compactor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder()
+                        .setNameFormat("lsm-compactor-%d")
+                        .setDaemon(true)
+                        .build());
+        scheduleCompaction();
+    }
+
+    /**
+     * Creates the tables named by the manifest and deletes table files it doesn't name,
+     * which are outputs of flushes and compactions interrupted before they were logged.
+     * Tables the manifest describes completely are opened once read, the others right away.
+     */
+    @NotNull
+    private List<SSTable> openTables(@NotNull final Manifest manifest,
+                                     @NotNull final List<String> tableNames) throws IOException {
+        final List<SSTable> ssTables = new ArrayList<>();
+        final Set<String> live = new HashSet<>();
+        final Set<String> present = new HashSet<>(tableNames);
+        for (final Manifest.Entry entry : manifest.tables()) {
+            final File file = tableFile(entry.generation);
+            if (!present.contains(file.getName())) {
+                throw new IOException("Missing table " + file + " named by the manifest");
+            }
+            live.add(file.getName());
+            if (entry.isComplete()) {
+                ssTables.add(new LazySSTable(file, entry, blockCache));
+            } else {
+                ssTables.add(SSTable.open(file, entry.generation, entry.level, blockCache));
+            }
+        }
+        for (final String name : tableNames) {
+            if (!live.contains(name)) {
+                log.info("Deleting {} not named by the manifest", name);
+                Files.delete(new File(base, name).toPath());
+            }
+        }
+        return ssTables;
+    }
+
+    /**
+     * Opens every table file of a storage written before the manifest was introduced.
+     * Tables of deeper levels used to have the level in the file name, they are renamed.
+     */
+    @NotNull
+    private List<SSTable> scanTables(@NotNull final List<String> tableNames) throws IOException {
+        final List<SSTable> ssTables = new ArrayList<>();
+        for (final String name : tableNames) {
+            final int generation = generationOf(name, PREFIX, SUFFIX);
+            final int level = levelOf(name);
+            if (level > LeveledCompaction.MAX_LEVEL) {
+                throw new IOException("Unknown level " + level + " of " + name);
+            }
+            SSTable ssTable = SSTable.open(new File(base, name), generation, level, blockCache);
+            if (ssTable.rows() == 0 && ssTable.rangeTombstones().isEmpty()) {
+                // Everything was removed by compaction of the original format
+                ssTable.close();
+                ssTable.deleteSSTableFile();
+                continue;
+            }
+            if (level > 0) {
+                final File dest = tableFile(generation);
+                ssTable.moveSSTableFile(dest);
+                ssTable.close();
+                ssTable = SSTable.open(dest, generation, level, blockCache);
+            }
+            ssTables.add(ssTable);
+        }
+        return ssTables;
+    }
+
+    private static int generationOf(@NotNull final String name,
+                                    @NotNull final String prefix,
+                                    @NotNull final String suffix) {
+        final int separator = name.indexOf(LEVEL_SEPARATOR, prefix.length());
+        final int end = separator < 0 ? name.length() - suffix.length() : separator;
+        return Integer.parseInt(name.substring(prefix.length(), end));
+    }
+
+    /**
+     * Tables of deeper levels used to have the level appended to the name before the manifest kept it.
+     */
+    private static int levelOf(@NotNull final String name) {
+        final int separator = name.indexOf(LEVEL_SEPARATOR, PREFIX.length());
+        if (separator < 0) {
+            return 0;
+        }
+        return Integer.parseInt(name.substring(separator + 1, name.length() - SUFFIX.length()));
+    }
+
+    @NotNull
+    private File tableFile(final int generation) {
+        return new File(base, PREFIX + generation + SUFFIX);
     }
 
     @NotNull
     @Override
     public Iterator<Record> iterator(@NotNull final ByteBuffer from) throws IOException {
-        return Iterators.transform(cellIterator(from, true),
-                cell -> Record.of(cell.getKey(), cell.getValue().getData()));
+        return records(cellIterator(acquireTables(), from, null, true, Time.nowInNano()));
     }
 
     @NotNull
     @Override
     public Iterator<Record> reverseIterator(@NotNull final ByteBuffer from) throws IOException {
-        return Iterators.transform(cellIterator(from, false),
-                cell -> Record.of(cell.getKey(), cell.getValue().getData()));
+        return records(cellIterator(acquireTables(), from, null, false, Time.nowInNano()));
+    }
+
+    /**
+     * Bounds the iterator of every table, so the tables stop at "to" and leave the merge once done.
+     */
+    @NotNull
+    @Override
+    public Iterator<Record> range(@NotNull final ByteBuffer from,
+                                 @Nullable final ByteBuffer to) throws IOException {
+        if (to != null && from.compareTo(to) > 0) {
+            return Iters.empty();
+        }
+        return records(cellIterator(acquireTables(), from, to, true, Time.nowInNano()));
+    }
+
+    /**
+     * Splits the range at keys sampled from the indexes of the {@link SSTable}s,
+     * every split merging the tables over its own part of the range.
+     */
+    @NotNull
+    @Override
+    public Spliterator<Record> spliterator(@NotNull final ByteBuffer from,
+                                           @Nullable final ByteBuffer to) throws IOException {
+        if (to != null && from.compareTo(to) >= 0) {
+            return Spliterators.emptySpliterator();
+        }
+        return new RangeSpliterator(acquireTables(), from, to, Time.nowInNano());
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Record> reverseRange(@Nullable final ByteBuffer from,
+                                        @Nullable final ByteBuffer to) throws IOException {
+        if (from != null && to != null && from.compareTo(to) < 0) {
+            return Iters.empty();
+        }
+        return records(cellIterator(
+                acquireTables(),
+                from == null ? MAX_REACHABLE_VALUE : from,
+                to,
+                false,
+                Time.nowInNano()));
     }
 
     @NotNull
     @Override
     public Iterator<Record> reverseIterator() throws IOException {
-        return Iterators.transform(cellIterator(MAX_REACHABLE_VALUE, false),
-                cell -> Record.of(cell.getKey(), cell.getValue().getData()));
+        return records(cellIterator(acquireTables(), MAX_REACHABLE_VALUE, null, false, Time.nowInNano()));
     }
 
     @NotNull
-    private Iterator<Cell> cellIterator(@NotNull final ByteBuffer from, final boolean isDirect) throws IOException {
+    private static Iterator<Record> records(@NotNull final Iterator<Cell> cells) {
+        return Iterators.transform(cells, cell -> Record.of(cell.getKey(), cell.getValue().getData()));
+    }
 
-        final List<Iterator<Cell>> ssTablesIterator = new ArrayList<>();
+    /**
+     * Looks the key up in the tables from the newest to the oldest and stops at the first
+     * value or tombstone, skipping the {@link SSTable}s whose key ranges or Bloom filters rule the key out.
+     * The value is then checked against the range tombstones of all the tables.
+     */
+    @NotNull
+    @Override
+    public ByteBuffer get(@NotNull final ByteBuffer key) throws IOException, NoSuchElementException {
+        final TableSet snapshot = acquireTables();
+        try {
+            return get(snapshot, key, Time.nowInNano());
+        } finally {
+            snapshot.release();
+        }
+    }
 
-        if (isDirect) {
-            for (final SSTable ssTable : ssTables) {
-                ssTablesIterator.add(ssTable.iterator(from));
+    @NotNull
+    private static ByteBuffer get(@NotNull final TableSet snapshot,
+                                  @NotNull final ByteBuffer key,
+                                  final long now) throws IOException {
+        Value value = snapshot.memTable.get(key);
+        long removedAt = snapshot.memTable.rangeTombstones().removedAt(key);
+        for (int i = snapshot.flushing.size() - 1; i >= 0; i--) {
+            final Table table = snapshot.flushing.get(i);
+            if (value == null) {
+                value = table.get(key);
             }
-            ssTablesIterator.add(memTable.iterator(from));
-        } else {
-            if (isUnreachableLastKey(from)) {
-                for (final SSTable ssTable : ssTables) {
-                    ssTablesIterator.add(ssTable.reverseIterator());
+            removedAt = Math.max(removedAt, table.rangeTombstones().removedAt(key));
+        }
+        for (int i = 0; i < snapshot.ssTables.size(); i++) {
+            final SSTable table = snapshot.ssTables.get(i);
+            if (!table.mayContain(key)) {
+                continue;
+            }
+            if (value == null) {
+                value = table.get(key);
+            }
+            removedAt = Math.max(removedAt, table.rangeTombstones().removedAt(key));
+        }
+
+        if (value == null || value.isDeadAt(now) || value.getTimeStamp() < removedAt) {
+            throw new NoSuchElementException("Not found");
+        }
+        return value.getData();
+    }
+
+    /**
+     * Sorts the keys and looks them up in every table at once, so each table walks its index forward
+     * and reads each block once for all the keys in it, skipping the {@link SSTable}s
+     * whose key ranges miss all the keys. Otherwise it works as {@link #get(ByteBuffer)} does.
+     */
+    @NotNull
+    @Override
+    public Map<ByteBuffer, ByteBuffer> multiGet(@NotNull final Collection<ByteBuffer> keys) throws IOException {
+        final List<ByteBuffer> sorted = new ArrayList<>(new TreeSet<>(keys));
+        if (sorted.isEmpty()) {
+            return new HashMap<>();
+        }
+        final TableSet snapshot = acquireTables();
+        try {
+            final Value[] values = new Value[sorted.size()];
+            final long[] removedAt = new long[sorted.size()];
+            get(snapshot.memTable, sorted, values, removedAt);
+            for (final Table table : Lists.reverse(snapshot.flushing)) {
+                get(table, sorted, values, removedAt);
+            }
+            final ByteBuffer first = sorted.get(0);
+            final ByteBuffer last = sorted.get(sorted.size() - 1);
+            for (final SSTable table : snapshot.ssTables) {
+                if (table.overlaps(first, last)) {
+                    get(table, sorted, values, removedAt);
                 }
-                ssTablesIterator.add(memTable.reverseIterator());
-            } else {
-                for (final SSTable ssTable : ssTables) {
-                    ssTablesIterator.add(ssTable.reverseIterator(from));
+            }
+
+            final long now = Time.nowInNano();
+            final Map<ByteBuffer, ByteBuffer> result = new HashMap<>();
+            for (int i = 0; i < values.length; i++) {
+                final Value value = values[i];
+                if (value != null && !value.isDeadAt(now) && value.getTimeStamp() >= removedAt[i]) {
+                    result.put(sorted.get(i), value.getData());
                 }
-                ssTablesIterator.add(memTable.reverseIterator(from));
+            }
+            return result;
+        } finally {
+            snapshot.release();
+        }
+    }
+
+    private static void get(@NotNull final Table table,
+                            @NotNull final List<ByteBuffer> keys,
+                            @NotNull final Value[] values,
+                            @NotNull final long[] removedAt) throws IOException {
+        table.get(keys, values);
+        final RangeTombstones tombstones = table.rangeTombstones();
+        if (tombstones.isEmpty()) {
+            return;
+        }
+        for (int i = 0; i < keys.size(); i++) {
+            removedAt[i] = Math.max(removedAt[i], tombstones.removedAt(keys.get(i)));
+        }
+    }
+
+    /**
+     * Takes the current table set, so that its {@link SSTable}s aren't deleted until it is released.
+     */
+    @NotNull
+    private TableSet acquireTables() throws IOException {
+        TableSet snapshot;
+        do {
+            // A table is released only after a newer set is published, so the retry sees that one
+            snapshot = tables;
+        } while (!snapshot.acquire());
+        return snapshot;
+    }
+
+    /**
+     * Iterates over the acquired tables from "from" (inclusive) until "to" (exclusive) in the direction given,
+     * releasing the tables once done.
+     */
+    @NotNull
+    private static Iterator<Cell> cellIterator(@NotNull final TableSet snapshot,
+                                               @NotNull final ByteBuffer from,
+                                               @Nullable final ByteBuffer to,
+                                               final boolean isDirect,
+                                               final long now) throws IOException {
+        try {
+            return new PinnedIterator<>(mergedCells(snapshot, from, to, isDirect, now), snapshot);
+        } catch (IOException | RuntimeException e) {
+            snapshot.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Merges the tables from "from" (inclusive) until "to" (exclusive) in the direction given.
+     */
+    @NotNull
+    static Iterator<Cell> mergedCells(@NotNull final TableSet snapshot,
+                                              @NotNull final ByteBuffer from,
+                                              @Nullable final ByteBuffer to,
+                                              final boolean isDirect,
+                                              final long now) throws IOException {
+        // Newest first, as the merge prefers the earlier of the sources having the same cell
+        final List<Table> sources = new ArrayList<>();
+        sources.add(snapshot.memTable);
+        sources.addAll(Lists.reverse(snapshot.flushing));
+        final ByteBuffer start = isDirect || !isUnreachableLastKey(from) ? from : null;
+        for (final SSTable ssTable : snapshot.ssTables) {
+            // Neither the cells nor the range tombstones of the table outside its key range affect the scan
+            if (ssTable.mayContain(start, to, isDirect)) {
+                sources.add(ssTable);
             }
         }
 
-        final Iterator<Cell> mergedCells = Iterators.mergeSorted(ssTablesIterator, Cell.COMPARATOR);
-        final Iterator<Cell> cells = Iters.collapseEquals(mergedCells, Cell::getKey);
+        final List<Iterator<Cell>> ssTablesIterator = new ArrayList<>();
+        final List<RangeTombstones> ranges = new ArrayList<>();
+        for (final Table table : sources) {
+            ranges.add(table.rangeTombstones());
+        }
+        final RangeTombstones rangeTombstones = RangeTombstones.merge(ranges);
 
-        return Iterators.filter(cells, cell -> !cell.getValue().isRemoved());
+        // Every table stops at the bound, so the merge drops it once it is done with the range
+        if (isDirect) {
+            for (final Table table : sources) {
+                ssTablesIterator.add(table.iterator(from, to));
+            }
+        } else {
+            for (final Table table : sources) {
+                ssTablesIterator.add(table.reverseIterator(start, to));
+            }
+        }
+
+        return new MergingIterator(ssTablesIterator, isDirect, rangeTombstones, true, now);
     }
 
     @SuppressWarnings("ReferenceEquality")
-    private boolean isUnreachableLastKey(@NotNull final ByteBuffer from) {
+    private static boolean isUnreachableLastKey(@NotNull final ByteBuffer from) {
         return from == MAX_REACHABLE_VALUE;
     }
 
     @Override
     public void upsert(@NotNull final ByteBuffer key,
                        @NotNull final ByteBuffer value) throws IOException {
-        memTable.upsert(key, value);
-        if (memTable.sizeInBytes() >= flushThreshold) flush();
+        upsert(key, value, Long.MAX_VALUE);
     }
 
-    private void flush() throws IOException {
-        final File tmp = new File(base, PREFIX + generation + TEMP);
-        SSTable.write(memTable.iterator(ByteBuffer.allocate(0)), tmp);
+    /**
+     * Stores the value along with its expiry, so reads skip it once expired
+     * and compaction drops it as it drops tombstones, with no tombstone written.
+     */
+    @Override
+    public void upsert(@NotNull final ByteBuffer key,
+                       @NotNull final ByteBuffer value,
+                       @NotNull final Duration ttl) throws IOException {
+        if (ttl.isNegative() || ttl.isZero()) {
+            throw new IllegalArgumentException("Non-positive TTL " + ttl);
+        }
+        long ttlNanos;
+        try {
+            ttlNanos = ttl.toNanos();
+        } catch (ArithmeticException e) {
+            ttlNanos = Long.MAX_VALUE;
+        }
+        upsert(key, value, ttlNanos);
+    }
 
-        final File dest = new File(base, PREFIX + generation + SUFFIX);
-        Files.move(tmp.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE);
-        ssTables.add(new SSTable(dest));
+    private void upsert(@NotNull final ByteBuffer key,
+                        @NotNull final ByteBuffer value,
+                        final long ttlNanos) throws IOException {
+        final long sequence;
+        final boolean needsFlush;
+        lock.readLock().lock();
+        try {
+            final long timestamp = Time.currentTimeInNano();
+            // Saturates to Value.NEVER
+            final long expiresAt = LongMath.saturatedAdd(timestamp, ttlNanos);
+            sequence = wal.upsert(key, value, timestamp, expiresAt);
+            final Table memTable = tables.memTable;
+            memTable.upsert(key, value, timestamp, expiresAt);
+            needsFlush = memTable.sizeInBytes() >= flushThreshold;
+        } finally {
+            lock.readLock().unlock();
+        }
+        wal.sync(sequence);
+        if (needsFlush) flush(false);
+    }
 
-        generation++;
-        memTable = new MemTable();
+    /**
+     * Writes a single range tombstone instead of a tombstone per key.
+     * Readers skip the covered cells, compaction drops them.
+     */
+    @Override
+    public void removeRange(@NotNull final ByteBuffer from, @NotNull final ByteBuffer to) throws IOException {
+        if (from.compareTo(to) >= 0) {
+            return;
+        }
+        final long sequence;
+        final boolean needsFlush;
+        lock.readLock().lock();
+        try {
+            final long timestamp = Time.currentTimeInNano();
+            sequence = wal.removeRange(from, to, timestamp);
+            final Table memTable = tables.memTable;
+            memTable.removeRange(from, to, timestamp);
+            needsFlush = memTable.sizeInBytes() >= flushThreshold;
+        } finally {
+            lock.readLock().unlock();
+        }
+        wal.sync(sequence);
+        if (needsFlush) flush(false);
     }
 
     @Override
     public void remove(@NotNull final ByteBuffer key) throws IOException {
-        memTable.remove(key);
-        if (memTable.sizeInBytes() >= flushThreshold) flush();
+        final long sequence;
+        final boolean needsFlush;
+        lock.readLock().lock();
+        try {
+            final long timestamp = Time.currentTimeInNano();
+            sequence = wal.remove(key, timestamp);
+            final Table memTable = tables.memTable;
+            memTable.remove(key, timestamp);
+            needsFlush = memTable.sizeInBytes() >= flushThreshold;
+        } finally {
+            lock.readLock().unlock();
+        }
+        wal.sync(sequence);
+        if (needsFlush) flush(false);
+    }
+
+    /**
+     * Applies the batch as a single log record with consecutive timestamps, so after a crash it is
+     * either replayed as a whole or not at all. The batch goes to the memtable in one pass
+     * and the flush threshold is checked once for it.
+     */
+    @Override
+    public void apply(@NotNull final WriteBatch batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        final long sequence;
+        final boolean needsFlush;
+        lock.readLock().lock();
+        try {
+            final long timestamp = Time.currentTimeInNano(batch.size());
+            sequence = wal.batch(batch, timestamp);
+            final Table memTable = tables.memTable;
+            batch.forEach(new WriteBatch.Handler() {
+                private long next = timestamp;
+
+                @Override
+                public void upsert(@NotNull final ByteBuffer key,
+                                   @NotNull final ByteBuffer value) throws IOException {
+                    memTable.upsert(key, value, next++, Value.NEVER);
+                }
+
+                @Override
+                public void remove(@NotNull final ByteBuffer key) throws IOException {
+                    memTable.remove(key, next++);
+                }
+            });
+            needsFlush = memTable.sizeInBytes() >= flushThreshold;
+        } finally {
+            lock.readLock().unlock();
+        }
+        wal.sync(sequence);
+        if (needsFlush) flush(false);
+    }
+
+    /**
+     * Swaps the current {@link MemTable} for an empty one and hands it to the background flusher.
+     * Blocks only if there are already too many tables waiting to be flushed.
+     *
+     * @param force flushes any non-empty table instead of the full one only
+     */
+    private void flush(final boolean force) throws IOException {
+        pendingFlushes.acquireUninterruptibly();
+        boolean submitted = false;
+        try {
+            lock.writeLock().lock();
+            try {
+                final TableSet current = tables;
+                final long size = current.memTable.sizeInBytes();
+                if (size == 0 || (!force && size < flushThreshold)) {
+                    return;
+                }
+
+                switchMemTable();
+                submitted = true;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } finally {
+            if (!submitted) {
+                pendingFlushes.release();
+            }
+        }
+    }
+
+    /**
+     * Hands the memtable to the flusher, having taken a permit of pending flushes. Requires the write lock.
+     */
+    private void switchMemTable() throws IOException {
+        final TableSet current = tables;
+        final int generation = memTableGeneration;
+        memTableGeneration = lastGeneration.incrementAndGet();
+        wal.rotate(memTableGeneration);
+        tables = current.markAsFlushing();
+        final Table flushing = current.memTable;
+        flusher.execute(() -> flushInBackground(flushing, generation));
+    }
+
+    /**
+     * Pins the view of the memtable as of now along with the rest of the tables,
+     * so the snapshot reads them as they are while writes go on. The memtable keeps taking writes,
+     * handing the values they replace to the view, and is flushed as usual.
+     */
+    @NotNull
+    @Override
+    public Snapshot snapshot() throws IOException {
+        lock.writeLock().lock();
+        try {
+            // Values written later have newer timestamps, so this also is the clock of expiry
+            final long timestamp = Time.currentTimeInNano();
+            final TableSet current = tables;
+            final MemTableView view = current.memTable.pin(timestamp);
+            final TableSet frozen = current.frozen(view);
+            // Tables of the current set are released only after it is replaced, which takes the lock
+            final boolean acquired = frozen.acquire();
+            assert acquired;
+            // The snapshot holds the view through the set from now on
+            view.release();
+            return new LSMSnapshot(frozen, timestamp);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void flushInBackground(@NotNull final Table flushing, final int generation) {
+        try {
+            final SSTable ssTable = writeSSTable(flushing, generation);
+            // Logs of the older tables left by failed flushes are to be replayed after a restart
+            final int flushedGeneration = tables.flushing.indexOf(flushing) == 0 ? generation : 0;
+            try {
+                manifest.log(Collections.emptyList(), Collections.singletonList(ssTable),
+                        lastGeneration.get(), flushedGeneration);
+            } catch (IOException e) {
+                ssTable.close();
+                ssTable.deleteSSTableFile();
+                throw e;
+            }
+            lock.writeLock().lock();
+            try {
+                tables = tables.flushed(flushing, ssTable);
+            } finally {
+                lock.writeLock().unlock();
+            }
+            // Readers of the older sets keep their own references
+            flushing.release();
+            wal.delete(generation);
+        } catch (IOException e) {
+            log.error("Can't flush generation {}, keeping it in memory", generation, e);
+        } finally {
+            pendingFlushes.release();
+        }
+        scheduleCompaction();
+    }
+
+    /**
+     * Makes the compactor check the tables, unless a check is already pending.
+     */
+    private void scheduleCompaction() {
+        if (compactionScheduled.compareAndSet(false, true)) {
+            compactor.execute(this::compactInBackground);
+        }
+    }
+
+    /**
+     * Runs the compactions the strategy chooses, one after another, until the tables are fine.
+     * Readers keep using the table set they have obtained, each compaction publishes a new one.
+     */
+    private void compactInBackground() {
+        compactionScheduled.set(false);
+        try {
+            Compaction next = strategy.pick(tables.ssTables);
+            while (next != null) {
+                compact(next);
+                next = strategy.pick(tables.ssTables);
+            }
+        } catch (IOException e) {
+            log.error("Can't compact, keeping the tables as they are", e);
+        }
+    }
+
+    /**
+     * Waits until every table handed to the flusher so far is written to disk.
+     */
+    private void awaitFlushes() throws IOException {
+        try {
+            flusher.submit(() -> { }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for flush", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Can't wait for flush", e);
+        }
+    }
+
+    /**
+     * Waits until the tables handed to the flusher so far are written and the compactions
+     * scheduled by then are done, so the tables stay as they are until the next write or compaction.
+     *
+     * @throws IOException if interrupted while waiting
+     */
+    public void awaitCompactions() throws IOException {
+        awaitFlushes();
+        // Flushes schedule their compactions before they complete, and the compactor runs them in order
+        try {
+            compactor.submit(() -> { }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for compaction", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Can't wait for compaction", e);
+        }
+    }
+
+    /**
+     * Writes the memtable to level 0, dropping the cells removed by its own range tombstones.
+     */
+    @NotNull
+    private SSTable writeSSTable(@NotNull final Table memTable, final int generation) throws IOException {
+        final RangeTombstones rangeTombstones = memTable.rangeTombstones();
+        final Iterator<Cell> cells = rangeTombstones.dropCovered(memTable.iterator(ByteBuffer.allocate(0)));
+        return writeSSTable(Iterators.peekingIterator(cells), rangeTombstones, null, generation, 0, Long.MAX_VALUE);
+    }
+
+    @NotNull
+    private SSTable writeSSTable(@NotNull final PeekingIterator<Cell> cells,
+                                 @NotNull final RangeTombstones rangeTombstones,
+                                 @Nullable final ByteBuffer lower,
+                                 final int generation,
+                                 final int level,
+                                 final long maxSize) throws IOException {
+        final File tmp = new File(base, PREFIX + generation + TEMP);
+        SSTable.write(cells, rangeTombstones, lower, tmp, config, maxSize);
+
+        final File dest = tableFile(generation);
+        Files.move(tmp.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return SSTable.open(dest, generation, level, blockCache);
     }
 
+    /**
+     * Flushes the memtable and merges all the tables, dropping overwritten values and tombstones.
+     * The merge runs on the compactor thread, while readers and writers proceed.
+     */
     @Override
     public void compact() throws IOException {
-        final Iterator<Cell> cells = cellIterator(ByteBuffer.allocate(0), true);
-        final File temp = new File(base, PREFIX + 1 + TEMP);
-        SSTable.write(cells, temp);
+        flush(true);
+        awaitFlushes();
 
-        for (final SSTable ssTable : ssTables) {
-            ssTable.deleteSSTableFile();
+        final Future<?> major = compactor.submit(() -> {
+            final List<SSTable> ssTables = tables.ssTables;
+            if (!ssTables.isEmpty()) {
+                compact(strategy.major(ssTables));
+            }
+            return null;
+        });
+        try {
+            major.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for compaction", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Can't compact", e.getCause());
+        }
+    }
+
+    /**
+     * Writes the merged inputs as tables of the target size, logs the swap to the manifest
+     * and publishes it. Runs on the compactor thread only, so the inputs stay in place.
+     * The inputs are deleted once the readers which have acquired them release them.
+     */
+    private void compact(@NotNull final Compaction compaction) throws IOException {
+        final List<SSTable> result = new ArrayList<>();
+        if (compaction.trivialMove) {
+            // The level is kept by the manifest only, so the file stays as it is
+            final SSTable input = compaction.inputs.get(0);
+            result.add(SSTable.open(input.file(), input.generation(), compaction.outputLevel, blockCache));
+            manifest.log(compaction.inputs, result, lastGeneration.get(), 0);
+        } else {
+            final List<Iterator<Cell>> iterators = new ArrayList<>();
+            final List<RangeTombstones> inputRanges = new ArrayList<>();
+            for (final SSTable input : compaction.inputs) {
+                iterators.add(input.iterator(ByteBuffer.allocate(0)));
+                inputRanges.add(input.rangeTombstones());
+            }
+            final RangeTombstones rangeTombstones = RangeTombstones.merge(inputRanges);
+            // Expired values hide the older ones as tombstones do, so they are dropped along with them
+            final PeekingIterator<Cell> cells = Iterators.peekingIterator(new MergingIterator(
+                    iterators,
+                    true,
+                    rangeTombstones,
+                    compaction.dropTombstones,
+                    Time.nowInNano()));
+            final RangeTombstones kept = keptRangeTombstones(compaction, rangeTombstones);
+            try {
+                if (cells.hasNext() || !kept.isEmpty()) {
+                    // Every next table starts at the first cell left by the previous one
+                    ByteBuffer lower = null;
+                    do {
+                        result.add(writeSSTable(
+                                cells,
+                                kept,
+                                lower,
+                                lastGeneration.incrementAndGet(),
+                                compaction.outputLevel,
+                                compaction.maxTableSize));
+                        lower = cells.hasNext() ? cells.peek().getKey() : null;
+                    } while (lower != null);
+                }
+                manifest.log(compaction.inputs, result, lastGeneration.get(), 0);
+            } catch (IOException e) {
+                for (final SSTable written : result) {
+                    written.close();
+                    written.deleteSSTableFile();
+                }
+                throw e;
+            }
         }
 
-        ssTables.clear();
+        lock.writeLock().lock();
+        try {
+            tables = tables.compacted(compaction.inputs, result);
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        for (final SSTable input : compaction.inputs) {
+            if (!compaction.trivialMove) {
+                input.markObsolete();
+            }
+            input.release();
+        }
+        log.info("Completed {}", compaction);
+    }
+
+    /**
+     * Returns the range tombstones of the inputs which may still cover cells of the other tables.
+     * Tombstones are dropped along with the point ones, as long as no other table overlaps them:
+     * the compactor is the only one to replace tables, and the tables flushed meanwhile are newer.
+     */
+    @NotNull
+    private RangeTombstones keptRangeTombstones(@NotNull final Compaction compaction,
+                                                @NotNull final RangeTombstones rangeTombstones) {
+        if (!compaction.dropTombstones || rangeTombstones.isEmpty()) {
+            return rangeTombstones;
+        }
+        final List<SSTable> others = new ArrayList<>(tables.ssTables);
+        others.removeAll(compaction.inputs);
+        final List<RangeTombstone> kept = new ArrayList<>();
+        for (final RangeTombstone fragment : rangeTombstones.fragments()) {
+            for (final SSTable other : others) {
+                if (other.overlaps(fragment.getFrom(), fragment.getTo())) {
+                    kept.add(fragment);
+                    break;
+                }
+            }
+        }
+        return RangeTombstones.of(kept);
+    }
 
-        final File dest = new File(base, PREFIX + 1 + SUFFIX);
-        Files.move(temp.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE);
-        ssTables.add(new SSTable(dest));
+    /**
+     * Returns the number of lookups served by the block cache.
+     *
+     * @return hit count since the storage was opened
+     */
+    public long blockCacheHits() {
+        return blockCache.hits();
+    }
 
-        generation = ssTables.size() + 1;
+    /**
+     * Returns the number of lookups which had to read and decompress a block.
+     *
+     * @return miss count since the storage was opened
+     */
+    public long blockCacheMisses() {
+        return blockCache.misses();
     }
 
     @Override
     public void close() throws IOException {
-        if (memTable.sizeInBytes() != 0) {
-            flush();
+        flush(true);
+        flusher.shutdown();
+        try {
+            if (!flusher.awaitTermination(1, TimeUnit.MINUTES)) {
+                throw new IOException("Can't await termination of flusher");
+            }
+            // Flushes may have scheduled compactions, which are let finish
+            compactor.shutdown();
+            if (!compactor.awaitTermination(1, TimeUnit.MINUTES)) {
+                throw new IOException("Can't await termination of compactor");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while closing", e);
         }
 
-        for (final SSTable ssTable : ssTables) {
+        wal.close();
+        manifest.close();
+        final TableSet current = tables;
+        // Closing doesn't release the references, so iterators of a closed storage keep working
+        for (final SSTable ssTable : current.ssTables) {
             ssTable.close();
         }
+        if (!current.flushing.isEmpty()) {
+            throw new IOException("Can't flush " + current.flushing.size() + " tables");
+        }
+    }
+
+    /**
+     * Snapshot over a pinned table set reading a view of the memtable. Its iterators pin the set once more,
+     * so they outlive the snapshot.
+     */
+    private static final class LSMSnapshot implements Snapshot {
+        @NotNull
+        private final TableSet tables;
+        private final long timestamp;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        LSMSnapshot(@NotNull final TableSet tables, final long timestamp) {
+            this.tables = tables;
+            this.timestamp = timestamp;
+        }
+
+        @NotNull
+        @Override
+        public Iterator<Record> iterator(@NotNull final ByteBuffer from) throws IOException {
+            return records(cellIterator(acquireTables(), from, null, true, timestamp));
+        }
+
+        @NotNull
+        @Override
+        public Iterator<Record> reverseIterator(@NotNull final ByteBuffer from) throws IOException {
+            return records(cellIterator(acquireTables(), from, null, false, timestamp));
+        }
+
+        @NotNull
+        @Override
+        public Iterator<Record> range(@NotNull final ByteBuffer from,
+                                     @Nullable final ByteBuffer to) throws IOException {
+            if (to != null && from.compareTo(to) > 0) {
+                return Iters.empty();
+            }
+            return records(cellIterator(acquireTables(), from, to, true, timestamp));
+        }
+
+        @NotNull
+        @Override
+        public Iterator<Record> reverseRange(@Nullable final ByteBuffer from,
+                                            @Nullable final ByteBuffer to) throws IOException {
+            if (from != null && to != null && from.compareTo(to) < 0) {
+                return Iters.empty();
+            }
+            return records(cellIterator(
+                    acquireTables(),
+                    from == null ? MAX_REACHABLE_VALUE : from,
+                    to,
+                    false,
+                    timestamp));
+        }
+
+        @NotNull
+        @Override
+        public Iterator<Record> reverseIterator() throws IOException {
+            return records(cellIterator(acquireTables(), MAX_REACHABLE_VALUE, null, false, timestamp));
+        }
+
+        @NotNull
+        @Override
+        public ByteBuffer get(@NotNull final ByteBuffer key) throws IOException, NoSuchElementException {
+            final TableSet snapshot = acquireTables();
+            try {
+                return LSMDao.get(snapshot, key, timestamp);
+            } finally {
+                snapshot.release();
+            }
+        }
+
+        @NotNull
+        private TableSet acquireTables() throws IOException {
+            if (closed.get() || !tables.acquire()) {
+                throw new IllegalStateException("Snapshot is closed");
+            }
+            return tables;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed.compareAndSet(false, true)) {
+                tables.release();
+            }
+        }
     }
 }
@@ -0,0 +1,179 @@
+package ru.mail.polis.renuonego;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * {@link SSTable} named by the {@link Manifest}, which answers from the manifest entry whatever
+ * ordering and picking tables needs and opens the file on the first read of the contents,
+ * so the storage opens without reading its tables.
+ */
+final class LazySSTable extends SSTable {
+    @NotNull
+    private final Manifest.Entry entry;
+    @NotNull
+    private final Manifest.Stats stats;
+    @NotNull
+    private final BlockCache cache;
+    @Nullable
+    private volatile SSTable table;
+
+    /**
+     * Creates the table of a complete entry, see {@link Manifest.Entry#isComplete()}.
+     */
+    LazySSTable(@NotNull final File file,
+                @NotNull final Manifest.Entry entry,
+                @NotNull final BlockCache cache) {
+        super(file, entry.generation, entry.level, Objects.requireNonNull(entry.stats).sizeInBytes);
+        assert entry.isComplete();
+        this.entry = entry;
+        this.stats = entry.stats;
+        this.cache = cache;
+    }
+
+    @NotNull
+    private SSTable table() throws IOException {
+        SSTable result = table;
+        if (result == null) {
+            synchronized (this) {
+                result = table;
+                if (result == null) {
+                    result = SSTable.open(file(), generation(), level(), cache);
+                    table = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    @NotNull
+    private SSTable uncheckedTable() {
+        try {
+            return table();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can't open " + file(), e);
+        }
+    }
+
+    @Override
+    long maxTimestamp() {
+        return entry.maxTimestamp;
+    }
+
+    @Override
+    long rows() {
+        return stats.rows;
+    }
+
+    @Override
+    long tombstones() {
+        return stats.tombstones;
+    }
+
+    @Override
+    long expiring() {
+        return stats.expiring;
+    }
+
+    @Override
+    long maxExpiresAt() {
+        return stats.maxExpiresAt;
+    }
+
+    @NotNull
+    @Override
+    ByteBuffer firstKey() {
+        return entry.firstKey.duplicate();
+    }
+
+    @NotNull
+    @Override
+    ByteBuffer lastKey() {
+        return entry.lastKey.duplicate();
+    }
+
+    @NotNull
+    @Override
+    List<ByteBuffer> sampleKeys(final int max) {
+        return uncheckedTable().sampleKeys(max);
+    }
+
+    @NotNull
+    @Override
+    public RangeTombstones rangeTombstones() {
+        return uncheckedTable().rangeTombstones();
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> iterator(@NotNull final ByteBuffer from) throws IOException {
+        return table().iterator(from);
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> iterator(@NotNull final ByteBuffer from,
+                                   @Nullable final ByteBuffer to) throws IOException {
+        return table().iterator(from, to);
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> reverseIterator(@NotNull final ByteBuffer from) throws IOException {
+        return table().reverseIterator(from);
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> reverseIterator() throws IOException {
+        return table().reverseIterator();
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> reverseIterator(@Nullable final ByteBuffer from,
+                                          @Nullable final ByteBuffer to) throws IOException {
+        return table().reverseIterator(from, to);
+    }
+
+    @Nullable
+    @Override
+    public Value get(@NotNull final ByteBuffer key) throws IOException {
+        return table().get(key);
+    }
+
+    @Override
+    public void get(@NotNull final List<ByteBuffer> keys, @NotNull final Value[] values) throws IOException {
+        table().get(keys, values);
+    }
+
+    @Override
+    public void close() throws IOException {
+        final SSTable opened = table;
+        if (opened != null) {
+            opened.close();
+        }
+    }
+
+    /**
+     * Deletes the file without opening it, along with the Bloom filter of the original format, if any.
+     */
+    @Override
+    void deleteSSTableFile() throws IOException {
+        FlatSSTable.deleteFilter(file());
+        super.deleteSSTableFile();
+    }
+
+    @Override
+    void moveSSTableFile(@NotNull final File to) throws IOException {
+        table().moveSSTableFile(to);
+    }
+}
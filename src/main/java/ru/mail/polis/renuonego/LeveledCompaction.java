@@ -0,0 +1,205 @@
+package ru.mail.polis.renuonego;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Chooses compactions keeping the {@link SSTable}s in levels as LevelDB does.
+ *
+ * <p>Level 0 holds flushed tables, which may overlap. Every next level holds tables
+ * with disjoint key ranges and is allowed to grow the configured times larger than the previous one.
+ * Once level 0 has too many tables, all of them are merged with the overlapping tables of level 1.
+ * Once a deeper level grows over its limit, one of its tables, taken round-robin by key,
+ * is merged with the overlapping tables of the next level, or just moved there if there are none.
+ * Once the levels are within their limits, a table with enough tombstones and expired values
+ * is merged alone if no deeper table holds its keys, so they are dropped, or else pushed down.
+ */
+final class LeveledCompaction implements CompactionStrategy {
+    static final int MAX_LEVEL = 6;
+
+    private static final Comparator<SSTable> BY_FIRST_KEY = Comparator.comparing(SSTable::firstKey);
+
+    private final int level0Trigger;
+    private final long levelBaseSize;
+    private final int levelSizeRatio;
+    private final long targetTableSize;
+    private final double tombstoneThreshold;
+    /**
+     * Last key of the latest table compacted out of every level, where the next compaction starts.
+     */
+    @NotNull
+    private final ByteBuffer[] compactPointers = new ByteBuffer[MAX_LEVEL + 1];
+
+    LeveledCompaction(@NotNull final Config config) {
+        this.level0Trigger = config.level0CompactionTrigger;
+        this.levelBaseSize = config.levelBaseSize;
+        this.levelSizeRatio = config.levelSizeRatio;
+        this.targetTableSize = config.targetTableSize;
+        this.tombstoneThreshold = config.tombstoneThreshold;
+    }
+
+    @NotNull
+    private static List<List<SSTable>> byLevel(@NotNull final List<SSTable> ssTables) {
+        final List<List<SSTable>> levels = new ArrayList<>();
+        for (int level = 0; level <= MAX_LEVEL; level++) {
+            levels.add(new ArrayList<>());
+        }
+        for (final SSTable ssTable : ssTables) {
+            levels.get(ssTable.level()).add(ssTable);
+        }
+        return levels;
+    }
+
+    private static long sizeOf(@NotNull final List<SSTable> level) {
+        long size = 0;
+        for (final SSTable ssTable : level) {
+            size += ssTable.sizeInBytes();
+        }
+        return size;
+    }
+
+    private long maxSizeOf(final int level) {
+        long size = levelBaseSize;
+        for (int i = 1; i < level; i++) {
+            size *= levelSizeRatio;
+        }
+        return size;
+    }
+
+    @Nullable
+    @Override
+    public Compaction pick(@NotNull final List<SSTable> ssTables) {
+        final List<List<SSTable>> levels = byLevel(ssTables);
+        if (levels.get(0).size() >= level0Trigger) {
+            return pickLevel0(levels);
+        }
+        for (int level = 1; level < MAX_LEVEL; level++) {
+            if (sizeOf(levels.get(level)) > maxSizeOf(level)) {
+                return pickLevel(levels, level);
+            }
+        }
+        final long now = Time.nowInNano();
+        for (int level = 1; level <= MAX_LEVEL; level++) {
+            for (final SSTable ssTable : levels.get(level)) {
+                if (ssTable.droppableRatio(now) > tombstoneThreshold) {
+                    return pickDroppable(levels, level, ssTable);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Merges all the tables into the deepest level they occupy.
+     */
+    @NotNull
+    @Override
+    public Compaction major(@NotNull final List<SSTable> ssTables) {
+        int bottom = 1;
+        for (final SSTable ssTable : ssTables) {
+            bottom = Math.max(bottom, ssTable.level());
+        }
+        return Compaction.merge(new ArrayList<>(ssTables), bottom, true, targetTableSize);
+    }
+
+    @NotNull
+    private Compaction pickLevel0(@NotNull final List<List<SSTable>> levels) {
+        final List<SSTable> inputs = new ArrayList<>(levels.get(0));
+        ByteBuffer from = inputs.get(0).firstKey();
+        ByteBuffer to = inputs.get(0).lastKey();
+        for (final SSTable input : inputs) {
+            from = min(from, input.firstKey());
+            to = max(to, input.lastKey());
+        }
+        return pickOverlapping(levels, 0, inputs, from, to);
+    }
+
+    @NotNull
+    private Compaction pickLevel(@NotNull final List<List<SSTable>> levels, final int level) {
+        final List<SSTable> candidates = new ArrayList<>(levels.get(level));
+        candidates.sort(BY_FIRST_KEY);
+        SSTable picked = candidates.get(0);
+        final ByteBuffer pointer = compactPointers[level];
+        if (pointer != null) {
+            for (final SSTable candidate : candidates) {
+                if (candidate.firstKey().compareTo(pointer) > 0) {
+                    picked = candidate;
+                    break;
+                }
+            }
+        }
+        compactPointers[level] = picked.lastKey();
+
+        final List<SSTable> inputs = new ArrayList<>();
+        inputs.add(picked);
+        return pickOverlapping(levels, level, inputs, picked.firstKey(), picked.lastKey());
+    }
+
+    @NotNull
+    private Compaction pickDroppable(@NotNull final List<List<SSTable>> levels,
+                                     final int level,
+                                     @NotNull final SSTable picked) {
+        final List<SSTable> inputs = new ArrayList<>();
+        inputs.add(picked);
+        final ByteBuffer first = picked.firstKey();
+        final ByteBuffer last = picked.lastKey();
+        for (int deeper = level + 1; deeper <= MAX_LEVEL; deeper++) {
+            for (final SSTable ssTable : levels.get(deeper)) {
+                if (ssTable.overlaps(first, last)) {
+                    return pickOverlapping(levels, level, inputs, first, last);
+                }
+            }
+        }
+        return Compaction.merge(inputs, level, true, targetTableSize);
+    }
+
+    /**
+     * Adds the tables of the next level overlapping the inputs, or moves a lone input down.
+     */
+    @NotNull
+    private Compaction pickOverlapping(@NotNull final List<List<SSTable>> levels,
+                                       final int level,
+                                       @NotNull final List<SSTable> inputs,
+                                       @NotNull final ByteBuffer first,
+                                       @NotNull final ByteBuffer last) {
+        final int outputLevel = level + 1;
+        ByteBuffer from = first;
+        ByteBuffer to = last;
+        for (final SSTable ssTable : levels.get(outputLevel)) {
+            if (ssTable.overlaps(first, last)) {
+                inputs.add(ssTable);
+                from = min(from, ssTable.firstKey());
+                to = max(to, ssTable.lastKey());
+            }
+        }
+        if (inputs.size() == 1) {
+            return Compaction.move(inputs.get(0), outputLevel);
+        }
+
+        boolean bottom = true;
+        for (int deeper = outputLevel + 1; bottom && deeper <= MAX_LEVEL; deeper++) {
+            for (final SSTable ssTable : levels.get(deeper)) {
+                if (ssTable.overlaps(from, to)) {
+                    bottom = false;
+                    break;
+                }
+            }
+        }
+        return Compaction.merge(inputs, outputLevel, bottom, targetTableSize);
+    }
+
+    @NotNull
+    private static ByteBuffer min(@NotNull final ByteBuffer a, @NotNull final ByteBuffer b) {
+        return a.compareTo(b) <= 0 ? a : b;
+    }
+
+    @NotNull
+    private static ByteBuffer max(@NotNull final ByteBuffer a, @NotNull final ByteBuffer b) {
+        return a.compareTo(b) >= 0 ? a : b;
+    }
+}
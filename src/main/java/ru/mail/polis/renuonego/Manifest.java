@@ -0,0 +1,409 @@
+package ru.mail.polis.renuonego;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the changes of the {@link SSTable} set, so the storage opens the tables it names
+ * instead of scanning the directory for them.
+ *
+ * <p>The file starts with {@link #MAGIC} (8) and the format version (4), followed by edits framed
+ * as {@link WriteAheadLog} records are: size (4), CRC32 of the payload (4) and payload.
+ * An edit holds the last generation (4), the generation of the last flushed memtable (4),
+ * the number of removed tables (4) and their generations (4 each), the number of added tables (4)
+ * and, for every one, its generation (4), level (4), newest timestamp (8), file size (8),
+ * number of cells (8), tombstones (8) and expiring values (8), the latest expiry (8) and the size (4)
+ * and bytes of its first and last keys, cut to {@link #MAX_KEY_SIZE} to keep the manifest small.
+ * Edits of version 1 have neither the file size nor the counts.
+ *
+ * <p>An edit is forced before the tables it adds are published, so after a crash the manifest names
+ * exactly the live tables, and table files it doesn't name are leftovers. An entry with uncut keys
+ * describes its table well enough to order and pick tables, so the file is opened only once it is read,
+ * see {@link LazySSTable}. The manifest is rewritten
+ * as a single edit on open and whenever the edits outgrow the live tables.
+ */
+final class Manifest implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(Manifest.class);
+
+    static final String NAME = "MANIFEST";
+    private static final String TEMP = "MANIFEST.tmp";
+    private static final long MAGIC = 0x4C534D4D414E4631L;
+    private static final int VERSION = 2;
+    private static final int MIN_VERSION = 1;
+    private static final int FILE_HEADER = Long.BYTES + Integer.BYTES;
+    private static final int HEADER = 2 * Integer.BYTES;
+    private static final long MIN_REWRITE_SIZE = 1024 * 1024;
+    static final int MAX_KEY_SIZE = 1024;
+
+    @NotNull
+    private final File base;
+    private final Map<Integer, Entry> live = new TreeMap<>();
+    private int lastGeneration;
+    private int flushedGeneration;
+    private FileChannel channel;
+    private long size;
+    private long snapshotSize;
+
+    private Manifest(@NotNull final File base) {
+        this.base = base;
+    }
+
+    static boolean exists(@NotNull final File base) {
+        return new File(base, NAME).exists();
+    }
+
+    /**
+     * Reads the manifest, ignoring a torn edit at the tail.
+     *
+     * @param base is directory with the manifest
+     * @return the manifest, which has to be rewritten before logging edits
+     * @throws IOException if the manifest can't be read or has unknown format
+     */
+    @NotNull
+    static Manifest read(@NotNull final File base) throws IOException {
+        final File file = new File(base, NAME);
+        final ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        if (data.remaining() < FILE_HEADER || data.getLong(0) != MAGIC) {
+            throw new IOException("Not a manifest: " + file);
+        }
+        final int version = data.getInt(Long.BYTES);
+        if (version < MIN_VERSION || version > VERSION) {
+            throw new IOException("Unsupported version " + version + " of " + file);
+        }
+        data.position(FILE_HEADER);
+
+        final Manifest manifest = new Manifest(base);
+        while (data.remaining() >= HEADER) {
+            final int payloadSize = data.getInt(data.position());
+            final int checksum = data.getInt(data.position() + Integer.BYTES);
+            if (payloadSize <= 0 || payloadSize > data.remaining() - HEADER) {
+                break;
+            }
+            final ByteBuffer payload = data.duplicate()
+                    .position(data.position() + HEADER)
+                    .limit(data.position() + HEADER + payloadSize);
+            final CRC32 crc = new CRC32();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            manifest.apply(payload.slice(), version);
+            data.position(payload.limit());
+        }
+        if (data.hasRemaining()) {
+            log.warn("Ignoring {} bytes of a torn edit at the end of {}", data.remaining(), file);
+        }
+        return manifest;
+    }
+
+    /**
+     * Creates an empty manifest for a storage having none.
+     *
+     * @param base is directory to keep the manifest in
+     * @return the manifest, which has to be rewritten before logging edits
+     */
+    @NotNull
+    static Manifest create(@NotNull final File base) {
+        return new Manifest(base);
+    }
+
+    private void apply(@NotNull final ByteBuffer edit, final int version) {
+        lastGeneration = Math.max(lastGeneration, edit.getInt());
+        flushedGeneration = Math.max(flushedGeneration, edit.getInt());
+        final int removed = edit.getInt();
+        for (int i = 0; i < removed; i++) {
+            live.remove(edit.getInt());
+        }
+        final int added = edit.getInt();
+        for (int i = 0; i < added; i++) {
+            final int generation = edit.getInt();
+            final int level = edit.getInt();
+            final long maxTimestamp = edit.getLong();
+            final Stats stats = version == 1 ? null : new Stats(
+                    edit.getLong(), edit.getLong(), edit.getLong(), edit.getLong(), edit.getLong());
+            final ByteBuffer firstKey = key(edit);
+            final ByteBuffer lastKey = key(edit);
+            live.put(generation, new Entry(generation, level, maxTimestamp, stats, firstKey, lastKey));
+        }
+    }
+
+    @NotNull
+    private static ByteBuffer key(@NotNull final ByteBuffer edit) {
+        final int keySize = edit.getInt();
+        final ByteBuffer key = edit.slice().limit(keySize);
+        edit.position(edit.position() + keySize);
+        return key;
+    }
+
+    @NotNull
+    private static ByteBuffer encode(@NotNull final Collection<Integer> removed,
+                                     @NotNull final Collection<Entry> added,
+                                     final int lastGeneration,
+                                     final int flushedGeneration) {
+        int payloadSize = 4 * Integer.BYTES + removed.size() * Integer.BYTES;
+        for (final Entry entry : added) {
+            payloadSize += 4 * Integer.BYTES + 6 * Long.BYTES + entry.firstKey.remaining() + entry.lastKey.remaining();
+        }
+        final ByteBuffer record = ByteBuffer.allocate(HEADER + payloadSize);
+        record.position(HEADER);
+        record.putInt(lastGeneration);
+        record.putInt(flushedGeneration);
+        record.putInt(removed.size());
+        for (final int generation : removed) {
+            record.putInt(generation);
+        }
+        record.putInt(added.size());
+        for (final Entry entry : added) {
+            record.putInt(entry.generation);
+            record.putInt(entry.level);
+            record.putLong(entry.maxTimestamp);
+            final Stats stats = entry.stats;
+            // Entries are written only for open tables, which have their statistics
+            assert stats != null;
+            record.putLong(stats.sizeInBytes);
+            record.putLong(stats.rows);
+            record.putLong(stats.tombstones);
+            record.putLong(stats.expiring);
+            record.putLong(stats.maxExpiresAt);
+            record.putInt(entry.firstKey.remaining());
+            record.put(entry.firstKey.duplicate());
+            record.putInt(entry.lastKey.remaining());
+            record.put(entry.lastKey.duplicate());
+        }
+
+        final CRC32 crc = new CRC32();
+        crc.update(record.duplicate().flip().position(HEADER));
+        record.putInt(0, payloadSize);
+        record.putInt(Integer.BYTES, (int) crc.getValue());
+        return record.flip();
+    }
+
+    @NotNull
+    private static List<Entry> entries(@NotNull final Collection<SSTable> ssTables) {
+        final List<Entry> result = new ArrayList<>(ssTables.size());
+        for (final SSTable ssTable : ssTables) {
+            result.add(Entry.of(ssTable));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the live tables.
+     *
+     * @return the tables by generation
+     */
+    @NotNull
+    synchronized Collection<Entry> tables() {
+        return Collections.unmodifiableList(new ArrayList<>(live.values()));
+    }
+
+    /**
+     * Returns the largest generation given to a table or a memtable so far.
+     *
+     * @return the generation
+     */
+    synchronized int lastGeneration() {
+        return lastGeneration;
+    }
+
+    /**
+     * Returns the generation of the last flushed memtable, whose log and the older ones aren't needed anymore.
+     *
+     * @return the generation
+     */
+    synchronized int flushedGeneration() {
+        return flushedGeneration;
+    }
+
+    /**
+     * Replaces the manifest with a single edit adding the given tables and starts logging edits after it.
+     *
+     * @param ssTables          are the live tables
+     * @param lastGeneration    is the largest generation given so far
+     * @param flushedGeneration is the generation of the last flushed memtable
+     * @throws IOException if the manifest can't be written
+     */
+    synchronized void rewrite(@NotNull final Collection<SSTable> ssTables,
+                              final int lastGeneration,
+                              final int flushedGeneration) throws IOException {
+        live.clear();
+        for (final Entry entry : entries(ssTables)) {
+            live.put(entry.generation, entry);
+        }
+        this.lastGeneration = lastGeneration;
+        this.flushedGeneration = flushedGeneration;
+        rewrite();
+    }
+
+    private void rewrite() throws IOException {
+        final ByteBuffer edit = encode(Collections.emptyList(), live.values(), lastGeneration, flushedGeneration);
+        final File tmp = new File(base, TEMP);
+        try (FileChannel fc = FileChannel.open(
+                tmp.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            final ByteBuffer header = ByteBuffer.allocate(FILE_HEADER).putLong(MAGIC).putInt(VERSION).flip();
+            while (header.hasRemaining()) {
+                fc.write(header);
+            }
+            while (edit.hasRemaining()) {
+                fc.write(edit);
+            }
+            fc.force(true);
+        }
+        final File file = new File(base, NAME);
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+        if (channel != null) {
+            channel.close();
+        }
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        size = channel.size();
+        snapshotSize = size;
+    }
+
+    /**
+     * Appends and forces an edit replacing some tables with others.
+     *
+     * @param removed           are tables which are not live anymore
+     * @param added             are new live tables
+     * @param lastGeneration    is the largest generation given so far
+     * @param flushedGeneration is the generation of the flushed memtable, if the edit adds one
+     * @throws IOException if the edit can't be written
+     */
+    synchronized void log(@NotNull final Collection<SSTable> removed,
+                          @NotNull final Collection<SSTable> added,
+                          final int lastGeneration,
+                          final int flushedGeneration) throws IOException {
+        final List<Integer> removedGenerations = new ArrayList<>(removed.size());
+        for (final SSTable ssTable : removed) {
+            removedGenerations.add(ssTable.generation());
+        }
+        final List<Entry> addedEntries = entries(added);
+        final ByteBuffer edit = encode(removedGenerations, addedEntries, lastGeneration, flushedGeneration);
+        while (edit.hasRemaining()) {
+            size += channel.write(edit);
+        }
+        channel.force(false);
+
+        this.lastGeneration = Math.max(this.lastGeneration, lastGeneration);
+        this.flushedGeneration = Math.max(this.flushedGeneration, flushedGeneration);
+        live.keySet().removeAll(removedGenerations);
+        for (final Entry entry : addedEntries) {
+            live.put(entry.generation, entry);
+        }
+        if (size - snapshotSize > Math.max(snapshotSize, MIN_REWRITE_SIZE)) {
+            rewrite();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    /**
+     * Live table as recorded in the manifest. Keys longer than {@link #MAX_KEY_SIZE} are cut,
+     * so the first key is a lower bound of the table and the last key is a prefix of its last key.
+     */
+    static final class Entry {
+        final int generation;
+        final int level;
+        final long maxTimestamp;
+        @Nullable
+        final Stats stats;
+        @NotNull
+        final ByteBuffer firstKey;
+        @NotNull
+        final ByteBuffer lastKey;
+
+        Entry(final int generation,
+              final int level,
+              final long maxTimestamp,
+              @Nullable final Stats stats,
+              @NotNull final ByteBuffer firstKey,
+              @NotNull final ByteBuffer lastKey) {
+            this.generation = generation;
+            this.level = level;
+            this.maxTimestamp = maxTimestamp;
+            this.stats = stats;
+            this.firstKey = firstKey;
+            this.lastKey = lastKey;
+        }
+
+        @NotNull
+        static Entry of(@NotNull final SSTable ssTable) {
+            return new Entry(
+                    ssTable.generation(),
+                    ssTable.level(),
+                    ssTable.maxTimestamp(),
+                    new Stats(
+                            ssTable.sizeInBytes(),
+                            ssTable.rows(),
+                            ssTable.tombstones(),
+                            ssTable.expiring(),
+                            ssTable.maxExpiresAt()),
+                    prefix(ssTable.firstKey()),
+                    prefix(ssTable.lastKey()));
+        }
+
+        @NotNull
+        private static ByteBuffer prefix(@NotNull final ByteBuffer key) {
+            return key.remaining() <= MAX_KEY_SIZE ? key : key.limit(key.position() + MAX_KEY_SIZE);
+        }
+
+        /**
+         * Checks whether the entry may stand in for the table until it is read:
+         * it has the statistics and the keys are not cut, so they bound the table exactly.
+         *
+         * @return true if the table may be opened lazily
+         */
+        boolean isComplete() {
+            return stats != null && firstKey.remaining() < MAX_KEY_SIZE && lastKey.remaining() < MAX_KEY_SIZE;
+        }
+    }
+
+    /**
+     * Statistics of a table, absent from the entries of version 1.
+     */
+    static final class Stats {
+        final long sizeInBytes;
+        final long rows;
+        final long tombstones;
+        final long expiring;
+        final long maxExpiresAt;
+
+        Stats(final long sizeInBytes,
+              final long rows,
+              final long tombstones,
+              final long expiring,
+              final long maxExpiresAt) {
+            this.sizeInBytes = sizeInBytes;
+            this.rows = rows;
+            this.tombstones = tombstones;
+            this.expiring = expiring;
+            this.maxExpiresAt = maxExpiresAt;
+        }
+    }
+}
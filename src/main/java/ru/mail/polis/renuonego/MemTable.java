@@ -2,16 +2,29 @@ package ru.mail.polis.renuonego;
 
 import com.google.common.collect.Iterators;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NavigableMap;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
 
 class MemTable implements Table {
+    /**
+     * Rough heap footprint of a map entry, its {@link Value} and buffer headers.
+     */
+    private static final int ENTRY_OVERHEAD = 128;
+
     @NotNull
-    private final NavigableMap<ByteBuffer, Value> storage = new TreeMap<>();
-    private long sizeInBytes;
+    private final NavigableMap<ByteBuffer, Value> storage = new ConcurrentSkipListMap<>();
+    private final LongAdder sizeInBytes = new LongAdder();
+    // Written under the lock of the table, so concurrent range removals don't rebuild the set on retries
+    private volatile RangeTombstones rangeTombstones = RangeTombstones.EMPTY;
+    private final List<MemTableView> pinned = new CopyOnWriteArrayList<>();
 
     @NotNull
     @Override
@@ -39,31 +52,108 @@ class MemTable implements Table {
         );
     }
 
+    @NotNull
+    @Override
+    public Iterator<Cell> iterator(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) {
+        if (to == null) {
+            return iterator(from);
+        }
+        if (from.compareTo(to) >= 0) {
+            return Collections.emptyIterator();
+        }
+        return Iterators.transform(
+                storage.subMap(from, true, to, false).entrySet().iterator(),
+                e -> new Cell(e.getKey(), e.getValue()));
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> reverseIterator(@Nullable final ByteBuffer from, @Nullable final ByteBuffer to) {
+        if (from != null && to != null && from.compareTo(to) <= 0) {
+            return Collections.emptyIterator();
+        }
+        NavigableMap<ByteBuffer, Value> cells = storage.descendingMap();
+        if (from != null) {
+            cells = cells.tailMap(from, true);
+        }
+        if (to != null) {
+            cells = cells.headMap(to, false);
+        }
+        return Iterators.transform(
+                cells.entrySet().iterator(),
+                e -> new Cell(e.getKey(), e.getValue()));
+    }
+
+    @Nullable
+    @Override
+    public Value get(@NotNull final ByteBuffer key) {
+        return storage.get(key);
+    }
+
     @Override
     public void upsert(@NotNull final ByteBuffer key,
-                       @NotNull final ByteBuffer value) {
-        final Value previous = storage.put(key, Value.of(value));
-        if (previous == null) {
-            sizeInBytes += key.remaining() + value.remaining();
-        } else if (previous.isRemoved()) {
-            sizeInBytes += value.remaining();
-        } else {
-            sizeInBytes += value.remaining() - previous.getData().remaining();
+                       @NotNull final ByteBuffer value,
+                       final long timestamp,
+                       final long expiresAt) {
+        put(key, Value.of(value, timestamp, expiresAt));
+    }
+
+    @Override
+    public void remove(@NotNull final ByteBuffer key, final long timestamp) {
+        put(key, Value.tombstone(timestamp));
+    }
+
+    @Override
+    public void removeRange(@NotNull final ByteBuffer from,
+                            @NotNull final ByteBuffer to,
+                            final long timestamp) {
+        final RangeTombstone tombstone = new RangeTombstone(from.duplicate(), to.duplicate(), timestamp);
+        synchronized (this) {
+            rangeTombstones = rangeTombstones.with(tombstone);
         }
+        sizeInBytes.add(ENTRY_OVERHEAD + from.remaining() + to.remaining());
     }
 
+    @NotNull
     @Override
-    public void remove(@NotNull final ByteBuffer key) {
-        final Value previous = storage.put(key, Value.tombstone());
-        if (previous == null) {
-            sizeInBytes += key.remaining();
-        } else if (!previous.isRemoved()) {
-            sizeInBytes -= previous.getData().remaining();
+    public RangeTombstones rangeTombstones() {
+        return rangeTombstones;
+    }
+
+    /**
+     * Stores the value unless the key already has a newer one,
+     * so concurrent writers and log replay agree on the winner.
+     */
+    private void put(@NotNull final ByteBuffer key, @NotNull final Value value) {
+        while (true) {
+            final Value previous = storage.putIfAbsent(key, value);
+            if (previous == null) {
+                sizeInBytes.add(ENTRY_OVERHEAD + key.remaining() + sizeOf(value));
+                return;
+            }
+            if (previous.getTimeStamp() > value.getTimeStamp()) {
+                return;
+            }
+            MemTableView.replacing(pinned, key, previous);
+            if (storage.replace(key, previous, value)) {
+                sizeInBytes.add(sizeOf(value) - sizeOf(previous));
+                return;
+            }
         }
     }
 
+    private static int sizeOf(@NotNull final Value value) {
+        return value.isRemoved() ? 0 : value.getData().remaining();
+    }
+
     @Override
     public long sizeInBytes() {
-        return sizeInBytes;
+        return sizeInBytes.sum();
+    }
+
+    @NotNull
+    @Override
+    public MemTableView pin(final long timestamp) {
+        return new MemTableView(this, timestamp, pinned);
     }
 }
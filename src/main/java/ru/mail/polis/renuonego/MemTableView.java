@@ -0,0 +1,199 @@
+package ru.mail.polis.renuonego;
+
+import com.google.common.collect.Iterators;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Read-only view of a memtable as of a timestamp, which lets a snapshot read the memtable
+ * while it keeps taking writes, instead of handing it to the flusher.
+ *
+ * <p>Cells written later are skipped. The memtable keeps only the newest value of a key,
+ * so it hands the values it replaces to the views pinned on it before replacing them,
+ * see {@link #replacing(List, ByteBuffer, Value)}. Every write of the memtable takes its timestamp
+ * and completes under the read lock of the storage, while views are pinned under the write lock,
+ * so no value older than the view comes after it is pinned.
+ *
+ * <p>The view is pinned until the last reference to it is released, as {@link SSTable}s are.
+ */
+final class MemTableView implements Table {
+    @NotNull
+    private final Table memTable;
+    private final long timestamp;
+    @NotNull
+    private final RangeTombstones rangeTombstones;
+    @NotNull
+    private final List<MemTableView> pinned;
+    // Values the view sees, which the memtable has replaced since it was pinned
+    private final Map<ByteBuffer, Value> replaced = new ConcurrentHashMap<>();
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    /**
+     * Pins the view on the memtable, having a single reference taken by the caller.
+     *
+     * @param memTable  is the table to read
+     * @param timestamp is the timestamp of the last write to see
+     * @param pinned    are the views of the memtable, which it hands the replaced values to
+     */
+    MemTableView(@NotNull final Table memTable,
+                 final long timestamp,
+                 @NotNull final List<MemTableView> pinned) {
+        // Taken under the write lock, so the memtable still has the reference of the storage
+        final boolean acquired = memTable.acquire();
+        assert acquired;
+        this.memTable = memTable;
+        this.timestamp = timestamp;
+        // Range removals replace the tombstones as a whole, so the current ones stay as they are
+        this.rangeTombstones = memTable.rangeTombstones();
+        this.pinned = pinned;
+        pinned.add(this);
+    }
+
+    /**
+     * Hands the value about to be replaced to the views which see it. Must be called before the value is
+     * replaced, so a reader finding the newer value in the memtable finds the older one in the views.
+     *
+     * @param pinned   are the views pinned on the memtable
+     * @param key      is the key of the value, which must not be changed afterwards
+     * @param previous is the value being replaced
+     */
+    static void replacing(@NotNull final List<MemTableView> pinned,
+                          @NotNull final ByteBuffer key,
+                          @NotNull final Value previous) {
+        for (final MemTableView view : pinned) {
+            if (previous.getTimeStamp() <= view.timestamp) {
+                // The first replacement after pinning has replaced the value seen by the view
+                view.replaced.putIfAbsent(key, previous);
+            }
+        }
+    }
+
+    /**
+     * Takes a reference, which keeps the view pinned until released.
+     *
+     * @return false if the view is already unpinned
+     */
+    @Override
+    public boolean acquire() {
+        int current;
+        do {
+            current = references.get();
+            if (current == 0) {
+                return false;
+            }
+        } while (!references.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    /**
+     * Releases a reference. The last one unpins the view, so the memtable stops handing it values,
+     * and releases the memtable.
+     */
+    @Override
+    public void release() throws IOException {
+        final int left = references.decrementAndGet();
+        assert left >= 0;
+        if (left == 0) {
+            pinned.remove(this);
+            memTable.release();
+        }
+    }
+
+    @Nullable
+    private Value visible(@NotNull final ByteBuffer key, @NotNull final Value value) {
+        return value.getTimeStamp() <= timestamp ? value : replaced.get(key);
+    }
+
+    @Nullable
+    private Cell visible(@NotNull final Cell cell) {
+        final Value value = cell.getValue();
+        if (value.getTimeStamp() <= timestamp) {
+            return cell;
+        }
+        final Value seen = replaced.get(cell.key());
+        return seen == null ? null : new Cell(cell.key(), seen);
+    }
+
+    @NotNull
+    private Iterator<Cell> visible(@NotNull final Iterator<Cell> cells) {
+        return Iterators.filter(Iterators.transform(cells, this::visible), Objects::nonNull);
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> iterator(@NotNull final ByteBuffer from) throws IOException {
+        return visible(memTable.iterator(from));
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> reverseIterator(@NotNull final ByteBuffer from) throws IOException {
+        return visible(memTable.reverseIterator(from));
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> reverseIterator() throws IOException {
+        return visible(memTable.reverseIterator());
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> iterator(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) throws IOException {
+        return visible(memTable.iterator(from, to));
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> reverseIterator(@Nullable final ByteBuffer from,
+                                          @Nullable final ByteBuffer to) throws IOException {
+        return visible(memTable.reverseIterator(from, to));
+    }
+
+    @Nullable
+    @Override
+    public Value get(@NotNull final ByteBuffer key) throws IOException {
+        final Value value = memTable.get(key);
+        return value == null ? null : visible(key, value);
+    }
+
+    @Override
+    public void upsert(@NotNull final ByteBuffer key,
+                       @NotNull final ByteBuffer value,
+                       final long timestamp,
+                       final long expiresAt) {
+        throw new UnsupportedOperationException("View is read-only");
+    }
+
+    @Override
+    public void remove(@NotNull final ByteBuffer key, final long timestamp) {
+        throw new UnsupportedOperationException("View is read-only");
+    }
+
+    @Override
+    public void removeRange(@NotNull final ByteBuffer from,
+                            @NotNull final ByteBuffer to,
+                            final long timestamp) {
+        throw new UnsupportedOperationException("View is read-only");
+    }
+
+    @NotNull
+    @Override
+    public RangeTombstones rangeTombstones() {
+        return rangeTombstones;
+    }
+
+    @Override
+    public long sizeInBytes() throws IOException {
+        return memTable.sizeInBytes();
+    }
+}
@@ -0,0 +1,148 @@
+package ru.mail.polis.renuonego;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Merges the sorted cells of tables into the newest cell of every key, skipping the cells hidden
+ * by range tombstones and, if asked, the removed and expired ones.
+ *
+ * <p>The sources are kept in a binary heap by their current cells, ordered by key in the direction
+ * of the scan, then by timestamp and position of the source, newest first. A step compares keys
+ * in place and moves the sources on, so the merge allocates nothing beyond what the sources do.
+ */
+final class MergingIterator implements Iterator<Cell> {
+    @NotNull
+    private final List<Iterator<Cell>> sources;
+    @NotNull
+    private final Cell[] heads;
+    @NotNull
+    private final int[] heap;
+    private final boolean ascending;
+    @NotNull
+    private final RangeTombstones rangeTombstones;
+    private final boolean dropDead;
+    private final long now;
+    private int size;
+    @Nullable
+    private Cell next;
+
+    /**
+     * Creates the merge of the sources.
+     *
+     * @param sources         are the cells of the tables, newest table first
+     * @param ascending       is the order of the sources and of the merge
+     * @param rangeTombstones are the range tombstones of all the tables
+     * @param dropDead        tells to skip the removed and expired cells as well
+     * @param now             is the time to check the expiry at
+     */
+    MergingIterator(@NotNull final List<Iterator<Cell>> sources,
+                    final boolean ascending,
+                    @NotNull final RangeTombstones rangeTombstones,
+                    final boolean dropDead,
+                    final long now) {
+        this.sources = sources;
+        this.heads = new Cell[sources.size()];
+        this.heap = new int[sources.size()];
+        this.ascending = ascending;
+        this.rangeTombstones = rangeTombstones;
+        this.dropDead = dropDead;
+        this.now = now;
+        for (int i = 0; i < sources.size(); i++) {
+            final Iterator<Cell> source = sources.get(i);
+            if (source.hasNext()) {
+                heads[i] = source.next();
+                heap[size++] = i;
+            }
+        }
+        for (int i = size / 2 - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+        advance();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return next != null;
+    }
+
+    @Override
+    public Cell next() {
+        final Cell result = next;
+        if (result == null) {
+            throw new NoSuchElementException();
+        }
+        advance();
+        return result;
+    }
+
+    private void advance() {
+        while (size > 0) {
+            final Cell cell = heads[heap[0]];
+            // The older cells of the key come right after the newest one
+            do {
+                moveOn();
+            } while (size > 0 && heads[heap[0]].compareKeyTo(cell) == 0);
+
+            if (!(dropDead && cell.getValue().isDeadAt(now)) && !rangeTombstones.covers(cell)) {
+                next = cell;
+                return;
+            }
+        }
+        next = null;
+    }
+
+    /**
+     * Replaces the top cell with the next one of its source, dropping the source once exhausted.
+     */
+    private void moveOn() {
+        final int top = heap[0];
+        final Iterator<Cell> source = sources.get(top);
+        if (source.hasNext()) {
+            heads[top] = source.next();
+        } else {
+            heads[top] = null;
+            heap[0] = heap[--size];
+        }
+        if (size > 0) {
+            siftDown(0);
+        }
+    }
+
+    private void siftDown(final int from) {
+        final int source = heap[from];
+        int i = from;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && precedes(heap[child + 1], heap[child])) {
+                child++;
+            }
+            if (!precedes(heap[child], source)) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = source;
+    }
+
+    private boolean precedes(final int left, final int right) {
+        final int byKey = heads[left].compareKeyTo(heads[right]);
+        if (byKey != 0) {
+            return ascending ? byKey < 0 : byKey > 0;
+        }
+        final long leftTimestamp = heads[left].getValue().getTimeStamp();
+        final long rightTimestamp = heads[right].getValue().getTimeStamp();
+        if (leftTimestamp != rightTimestamp) {
+            return leftTimestamp > rightTimestamp;
+        }
+        return left < right;
+    }
+}
@@ -0,0 +1,499 @@
+package ru.mail.polis.renuonego;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link Table} keeping keys and values in large direct memory slabs.
+ *
+ * <p>Entries form a skip list whose nodes live in the slabs themselves and reference
+ * each other by primitive addresses, so there are no per-entry heap objects.
+ * Keys and values are copied, hence the caller may reuse its buffers right away.
+ * Neither writers nor readers block: writers take space by bumping the top of the current slab
+ * and link nodes and replace values by compare-and-set, and nodes are fully written before they are linked.
+ * Only starting a new slab is serialized. Range tombstones are rare, so they are kept on heap
+ * and range removals are serialized among themselves only.
+ *
+ * <p>Node layout: value address (8), key size (4), height (4), next addresses (8 * height), key.
+ * Value layout: timestamp (8), expiry (8), value size or -1 for tombstone (4), value.
+ *
+ * <p>The slabs are freed as soon as the last reference to the table is released, see {@link #release()},
+ * rather than once GC collects them, so readers get copies of the keys and values on heap.
+ * Replaced values are left in the slabs until then and count towards the size of the table.
+ * The storage holds the memtable taking writes and up to two more waiting to be flushed,
+ * so it takes up to three flush thresholds of direct memory, rounded up to the slabs of 1 MB,
+ * plus the memtables kept by snapshots and unfinished iterators and the ones left by failed flushes.
+ * Direct memory is limited by {@code -XX:MaxDirectMemorySize}, which is {@code -Xmx} by default,
+ * and a memtable failing to get a slab throws {@link OutOfMemoryError}.
+ */
+final class OffHeapMemTable implements Table {
+    private static final VarHandle ADDRESS =
+            MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private static final int SLAB_SIZE = 1024 * 1024;
+    private static final int MAX_HEIGHT = 16;
+    private static final long NIL = 0L;
+    private static final long HEAD = 0L;
+    private static final long RETRY = -1L;
+    private static final int TOMBSTONE = -1;
+
+    private static final int VALUE_ADDRESS = 0;
+    private static final int KEY_SIZE = Long.BYTES;
+    private static final int HEIGHT = KEY_SIZE + Integer.BYTES;
+    private static final int NEXT = HEIGHT + Integer.BYTES;
+
+    private static final int TIMESTAMP = 0;
+    private static final int EXPIRES_AT = TIMESTAMP + Long.BYTES;
+    private static final int VALUE_SIZE = EXPIRES_AT + Long.BYTES;
+    private static final int VALUE_DATA = VALUE_SIZE + Integer.BYTES;
+
+    private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+    // The buffers allocated for the slabs, which are sliced to be aligned. Guarded by the table.
+    private final List<ByteBuffer> allocated = new ArrayList<>();
+    // Address of the free space of the last slab
+    private final AtomicLong top = new AtomicLong();
+    private final LongAdder sizeInBytes = new LongAdder();
+    private final AtomicInteger references = new AtomicInteger(1);
+    // Written under the lock of the table, so concurrent range removals don't rebuild the set on retries
+    private volatile RangeTombstones rangeTombstones = RangeTombstones.EMPTY;
+    private final List<MemTableView> pinned = new CopyOnWriteArrayList<>();
+
+    OffHeapMemTable() {
+        final long head = allocate(NEXT + Long.BYTES * MAX_HEIGHT);
+        assert head == HEAD;
+        slab(head).putInt(offset(head) + HEIGHT, MAX_HEIGHT);
+        sizeInBytes.reset();
+    }
+
+    private static int slabIndex(final long address) {
+        return (int) (address >>> Integer.SIZE);
+    }
+
+    private static int offset(final long address) {
+        return (int) address;
+    }
+
+    private static int align(final int size) {
+        return (size + Long.BYTES - 1) & -Long.BYTES;
+    }
+
+    @NotNull
+    private ByteBuffer slab(final long address) {
+        return slabs[slabIndex(address)];
+    }
+
+    private long next(final long node, final int level) {
+        return (long) ADDRESS.getAcquire(slab(node), offset(node) + NEXT + level * Long.BYTES);
+    }
+
+    private void setNext(final long node, final int level, final long next) {
+        ADDRESS.setRelease(slab(node), offset(node) + NEXT + level * Long.BYTES, next);
+    }
+
+    private boolean casNext(final long node, final int level, final long expected, final long next) {
+        return ADDRESS.compareAndSet(slab(node), offset(node) + NEXT + level * Long.BYTES, expected, next);
+    }
+
+    private long valueAddress(final long node) {
+        return (long) ADDRESS.getAcquire(slab(node), offset(node) + VALUE_ADDRESS);
+    }
+
+    private boolean casValueAddress(final long node, final long expected, final long valueAddress) {
+        return ADDRESS.compareAndSet(slab(node), offset(node) + VALUE_ADDRESS, expected, valueAddress);
+    }
+
+    /**
+     * Reserves aligned space in the current slab, starting a new one if it doesn't fit.
+     * Entries larger than a slab get a dedicated one.
+     */
+    private long allocate(final int size) {
+        final int aligned = align(size);
+        while (true) {
+            final long address = top.get();
+            final ByteBuffer[] current = slabs;
+            final int index = slabIndex(address);
+            if (index < current.length && offset(address) + aligned <= current[index].capacity()) {
+                if (top.compareAndSet(address, address + aligned)) {
+                    sizeInBytes.add(aligned);
+                    return address;
+                }
+            } else {
+                final long started = startSlab(address, aligned);
+                if (started != RETRY) {
+                    sizeInBytes.add(aligned);
+                    return started;
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts a new slab with the given space taken, unless another writer has moved the top meanwhile.
+     *
+     * @return the address of the space taken, or {@link #RETRY} if the top has moved
+     */
+    private synchronized long startSlab(final long expectedTop, final int aligned) {
+        if (top.get() != expectedTop) {
+            return RETRY;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(SLAB_SIZE, aligned) + Long.BYTES);
+        allocated.add(buffer);
+        final ByteBuffer slab = buffer.alignedSlice(Long.BYTES).order(ByteOrder.nativeOrder());
+        final ByteBuffer[] current = Arrays.copyOf(slabs, slabs.length + 1);
+        current[current.length - 1] = slab;
+        slabs = current;
+        final long address = (long) (current.length - 1) << Integer.SIZE;
+        // Published after the slab, so writers taking space from the top find the slab
+        top.set(address + aligned);
+        return address;
+    }
+
+    private int compareKey(final long node, @NotNull final ByteBuffer key) {
+        final ByteBuffer slab = slab(node);
+        final int keySize = slab.getInt(offset(node) + KEY_SIZE);
+        final int keyStart = offset(node) + NEXT + slab.getInt(offset(node) + HEIGHT) * Long.BYTES;
+        final int length = Math.min(keySize, key.remaining());
+        for (int i = 0; i < length; i++) {
+            final int cmp = Byte.compare(slab.get(keyStart + i), key.get(key.position() + i));
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return keySize - key.remaining();
+    }
+
+    /**
+     * Finds the last node whose key is less than the given one (or is equal to it, if inclusive).
+     */
+    private long findPredecessor(@NotNull final ByteBuffer key, final boolean inclusive) {
+        long node = HEAD;
+        for (int level = MAX_HEIGHT - 1; level >= 0; level--) {
+            long next = next(node, level);
+            while (next != NIL) {
+                final int cmp = compareKey(next, key);
+                if (cmp > 0 || (cmp == 0 && !inclusive)) {
+                    break;
+                }
+                node = next;
+                next = next(node, level);
+            }
+        }
+        return node;
+    }
+
+    private long writeValue(final long timestamp, final ByteBuffer value, final long expiresAt) {
+        final int size = value == null ? 0 : value.remaining();
+        final long address = allocate(VALUE_DATA + size);
+        final ByteBuffer slab = slab(address);
+        final int offset = offset(address);
+        slab.putLong(offset + TIMESTAMP, timestamp);
+        slab.putLong(offset + EXPIRES_AT, expiresAt);
+        if (value == null) {
+            slab.putInt(offset + VALUE_SIZE, TOMBSTONE);
+        } else {
+            slab.putInt(offset + VALUE_SIZE, size);
+            slab.duplicate().position(offset + VALUE_DATA).put(value.duplicate());
+        }
+        return address;
+    }
+
+    /**
+     * Inserts the node of the key or replaces its value, unless it already has a newer one.
+     * Nodes are never unlinked, so an insert only has to find the predecessors again
+     * if another writer has linked a node next to them.
+     */
+    private void put(@NotNull final ByteBuffer key,
+                     final ByteBuffer value,
+                     final long timestamp,
+                     final long expiresAt) {
+        final long valueAddress = writeValue(timestamp, value, expiresAt);
+        final long[] predecessors = new long[MAX_HEIGHT];
+        final long[] successors = new long[MAX_HEIGHT];
+        long node = NIL;
+        int height = 0;
+        while (true) {
+            findPredecessors(key, predecessors, successors);
+            final long next = successors[0];
+            if (next != NIL && compareKey(next, key) == 0) {
+                // Space of the node, if taken by a lost race, is left as garbage as replaced values are
+                replaceValue(next, valueAddress, timestamp);
+                return;
+            }
+
+            if (node == NIL) {
+                height = randomHeight();
+                node = allocate(NEXT + height * Long.BYTES + key.remaining());
+                final ByteBuffer slab = slab(node);
+                final int offset = offset(node);
+                slab.putLong(offset + VALUE_ADDRESS, valueAddress);
+                slab.putInt(offset + KEY_SIZE, key.remaining());
+                slab.putInt(offset + HEIGHT, height);
+                slab.duplicate().position(offset + NEXT + height * Long.BYTES).put(key.duplicate());
+            }
+            for (int level = 0; level < height; level++) {
+                setNext(node, level, successors[level]);
+            }
+            // Linking at the bottom level inserts the key, the upper levels only speed up searches
+            if (casNext(predecessors[0], 0, next, node)) {
+                break;
+            }
+        }
+
+        for (int level = 1; level < height; level++) {
+            while (!casNext(predecessors[level], level, successors[level], node)) {
+                findPredecessors(key, predecessors, successors);
+                // The node is not yet reachable at this level, so it may be pointed elsewhere
+                setNext(node, level, successors[level]);
+            }
+        }
+    }
+
+    /**
+     * Fills the last nodes whose keys are less than the given one and the nodes next to them at every level.
+     */
+    private void findPredecessors(@NotNull final ByteBuffer key,
+                                  @NotNull final long[] predecessors,
+                                  @NotNull final long[] successors) {
+        long node = HEAD;
+        for (int level = MAX_HEIGHT - 1; level >= 0; level--) {
+            long next = next(node, level);
+            while (next != NIL && compareKey(next, key) < 0) {
+                node = next;
+                next = next(node, level);
+            }
+            predecessors[level] = node;
+            successors[level] = next;
+        }
+    }
+
+    private void replaceValue(final long node, final long valueAddress, final long timestamp) {
+        while (true) {
+            final long previous = valueAddress(node);
+            if (slab(previous).getLong(offset(previous) + TIMESTAMP) > timestamp) {
+                return;
+            }
+            if (!pinned.isEmpty()) {
+                MemTableView.replacing(pinned, keyAt(node), valueAt(previous));
+            }
+            // Old value space is left as garbage until the whole table is released
+            if (casValueAddress(node, previous, valueAddress)) {
+                return;
+            }
+        }
+    }
+
+    private static int randomHeight() {
+        int height = 1;
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (height < MAX_HEIGHT && random.nextInt(4) == 0) {
+            height++;
+        }
+        return height;
+    }
+
+    @NotNull
+    private Cell cellAt(final long node) {
+        return new Cell(keyAt(node), valueAt(valueAddress(node)));
+    }
+
+    /**
+     * Copies the key of the node to the heap, as the slab may be freed while the key is in use.
+     */
+    @NotNull
+    private ByteBuffer keyAt(final long node) {
+        final ByteBuffer slab = slab(node);
+        final int offset = offset(node);
+        final int keyStart = offset + NEXT + slab.getInt(offset + HEIGHT) * Long.BYTES;
+        return copy(slab, keyStart, slab.getInt(offset + KEY_SIZE));
+    }
+
+    /**
+     * Copies the value at the address to the heap, as the slab may be freed while the value is in use.
+     */
+    @NotNull
+    private Value valueAt(final long valueAddress) {
+        final ByteBuffer valueSlab = slab(valueAddress);
+        final int valueOffset = offset(valueAddress);
+        final long timestamp = valueSlab.getLong(valueOffset + TIMESTAMP);
+        final int valueSize = valueSlab.getInt(valueOffset + VALUE_SIZE);
+        if (valueSize == TOMBSTONE) {
+            return new Value(timestamp, null);
+        }
+        final ByteBuffer value = copy(valueSlab, valueOffset + VALUE_DATA, valueSize);
+        return new Value(timestamp, value, valueSlab.getLong(valueOffset + EXPIRES_AT));
+    }
+
+    @NotNull
+    private static ByteBuffer copy(@NotNull final ByteBuffer slab, final int start, final int size) {
+        return Bytes.copy(slab.duplicate().position(start).limit(start + size));
+    }
+
+    @Nullable
+    @Override
+    public Value get(@NotNull final ByteBuffer key) {
+        final long node = findPredecessor(key, true);
+        if (node == HEAD || compareKey(node, key) != 0) {
+            return null;
+        }
+        return valueAt(valueAddress(node));
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> iterator(@NotNull final ByteBuffer from) {
+        return new Iterator<>() {
+            long next = OffHeapMemTable.this.next(findPredecessor(from, false), 0);
+
+            @Override
+            public boolean hasNext() {
+                return next != NIL;
+            }
+
+            @Override
+            public Cell next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final Cell cell = cellAt(next);
+                next = OffHeapMemTable.this.next(next, 0);
+                return cell;
+            }
+        };
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> reverseIterator(@NotNull final ByteBuffer from) {
+        return new ReverseIterator(findPredecessor(from, true));
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> reverseIterator() {
+        long last = HEAD;
+        for (int level = MAX_HEIGHT - 1; level >= 0; level--) {
+            long next = next(last, level);
+            while (next != NIL) {
+                last = next;
+                next = next(last, level);
+            }
+        }
+        return new ReverseIterator(last);
+    }
+
+    @Override
+    public void upsert(@NotNull final ByteBuffer key,
+                       @NotNull final ByteBuffer value,
+                       final long timestamp,
+                       final long expiresAt) {
+        put(key, value, timestamp, expiresAt);
+    }
+
+    @Override
+    public void remove(@NotNull final ByteBuffer key, final long timestamp) {
+        put(key, null, timestamp, Value.NEVER);
+    }
+
+    @Override
+    public void removeRange(@NotNull final ByteBuffer from,
+                            @NotNull final ByteBuffer to,
+                            final long timestamp) {
+        final RangeTombstone tombstone = new RangeTombstone(Bytes.copy(from), Bytes.copy(to), timestamp);
+        synchronized (this) {
+            rangeTombstones = rangeTombstones.with(tombstone);
+        }
+        sizeInBytes.add(from.remaining() + to.remaining());
+    }
+
+    @NotNull
+    @Override
+    public RangeTombstones rangeTombstones() {
+        return rangeTombstones;
+    }
+
+    @Override
+    public long sizeInBytes() {
+        return sizeInBytes.sum();
+    }
+
+    @Override
+    public boolean acquire() {
+        int current;
+        do {
+            current = references.get();
+            if (current == 0) {
+                return false;
+            }
+        } while (!references.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    /**
+     * Releases a reference. The last one frees the slabs right away.
+     */
+    @Override
+    public void release() {
+        final int left = references.decrementAndGet();
+        assert left >= 0;
+        if (left == 0) {
+            free();
+        }
+    }
+
+    private synchronized void free() {
+        // Any access left is a bug, which fails here instead of reading freed memory
+        slabs = new ByteBuffer[0];
+        for (final ByteBuffer buffer : allocated) {
+            DirectMemory.free(buffer);
+        }
+        allocated.clear();
+    }
+
+    @NotNull
+    @Override
+    public MemTableView pin(final long timestamp) {
+        return new MemTableView(this, timestamp, pinned);
+    }
+
+    /**
+     * Walks backwards by looking up the predecessor of the last returned key,
+     * the list being singly linked.
+     */
+    private final class ReverseIterator implements Iterator<Cell> {
+        private long next;
+
+        ReverseIterator(final long last) {
+            this.next = last;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != HEAD;
+        }
+
+        @Override
+        public Cell next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final Cell cell = cellAt(next);
+            next = findPredecessor(cell.getKey(), false);
+            return cell;
+        }
+    }
+}
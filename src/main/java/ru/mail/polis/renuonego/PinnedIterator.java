@@ -0,0 +1,75 @@
+package ru.mail.polis.renuonego;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.ref.Cleaner;
+import java.util.Iterator;
+
+/**
+ * Iterator over an acquired {@link TableSet}, which releases the tables once exhausted,
+ * or once it becomes unreachable if the caller stops iterating earlier.
+ */
+final class PinnedIterator<E> implements Iterator<E> {
+    private static final Logger log = LoggerFactory.getLogger(PinnedIterator.class);
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    @NotNull
+    private final Iterator<E> delegate;
+    @NotNull
+    private final Cleaner.Cleanable cleanable;
+
+    PinnedIterator(@NotNull final Iterator<E> delegate, @NotNull final TableSet tables) {
+        this.delegate = delegate;
+        this.cleanable = releaseWhenUnreachable(this, tables);
+    }
+
+    /**
+     * Releases the acquired tables once the owner becomes unreachable, or once cleaned explicitly.
+     *
+     * @param owner  is the object using the tables
+     * @param tables are the acquired tables
+     * @return the cleanable to release the tables earlier
+     */
+    @NotNull
+    static Cleaner.Cleanable releaseWhenUnreachable(@NotNull final Object owner, @NotNull final TableSet tables) {
+        return CLEANER.register(owner, new Release(tables));
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (delegate.hasNext()) {
+            return true;
+        }
+        cleanable.clean();
+        return false;
+    }
+
+    @Override
+    public E next() {
+        return delegate.next();
+    }
+
+    /**
+     * Must not refer to the iterator, or the iterator never becomes unreachable.
+     */
+    private static final class Release implements Runnable {
+        @NotNull
+        private final TableSet tables;
+
+        Release(@NotNull final TableSet tables) {
+            this.tables = tables;
+        }
+
+        @Override
+        public void run() {
+            try {
+                tables.release();
+            } catch (IOException e) {
+                log.error("Can't release tables", e);
+            }
+        }
+    }
+}
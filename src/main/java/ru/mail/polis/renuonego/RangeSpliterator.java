@@ -0,0 +1,176 @@
+package ru.mail.polis.renuonego;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.Record;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Splittable scan of acquired tables from "from" (inclusive) until "to" (exclusive).
+ * The range is split at keys sampled from the indexes of the {@link SSTable}s, and every split
+ * merges the tables over its own part of the range only, so the splits may be scanned in parallel
+ * and together yield every key once.
+ *
+ * <p>Every split holds a reference to the tables, released once it is exhausted or unreachable.
+ */
+final class RangeSpliterator implements Spliterator<Record> {
+    private static final int MAX_SAMPLES = 1024;
+
+    @NotNull
+    private final TableSet tables;
+    @NotNull
+    private final Cleaner.Cleanable cleanable;
+    @Nullable
+    private final ByteBuffer to;
+    private final long now;
+    @NotNull
+    private ByteBuffer from;
+    /**
+     * Keys within the range to split it at, ascending.
+     */
+    @NotNull
+    private List<ByteBuffer> boundaries;
+    private long estimate;
+    @Nullable
+    private Iterator<Cell> cells;
+
+    /**
+     * Creates a scan of the tables, taking over the reference acquired to them.
+     *
+     * @param tables are the acquired tables
+     * @param from   is the first key
+     * @param to     is the key to stop at, or null to read until the end
+     * @param now    is the time to check the expiry at
+     */
+    RangeSpliterator(@NotNull final TableSet tables,
+                     @NotNull final ByteBuffer from,
+                     @Nullable final ByteBuffer to,
+                     final long now) {
+        this.tables = tables;
+        this.cleanable = PinnedIterator.releaseWhenUnreachable(this, tables);
+        this.from = from;
+        this.to = to;
+        this.now = now;
+
+        final List<ByteBuffer> samples = new ArrayList<>();
+        for (final SSTable ssTable : tables.ssTables) {
+            if (ssTable.mayContain(from, to, true)) {
+                estimate += ssTable.rows();
+                for (final ByteBuffer key : ssTable.sampleKeys(MAX_SAMPLES)) {
+                    if (key.compareTo(from) > 0 && (to == null || key.compareTo(to) < 0)) {
+                        samples.add(key);
+                    }
+                }
+            }
+        }
+        samples.sort(Comparator.naturalOrder());
+        final List<ByteBuffer> distinct = new ArrayList<>();
+        for (final ByteBuffer key : samples) {
+            if (distinct.isEmpty() || !distinct.get(distinct.size() - 1).equals(key)) {
+                distinct.add(key);
+            }
+        }
+        if (distinct.size() <= MAX_SAMPLES) {
+            this.boundaries = distinct;
+        } else {
+            this.boundaries = new ArrayList<>(MAX_SAMPLES);
+            for (int i = 0; i < MAX_SAMPLES; i++) {
+                boundaries.add(distinct.get((int) ((long) i * distinct.size() / MAX_SAMPLES)));
+            }
+        }
+    }
+
+    private RangeSpliterator(@NotNull final TableSet tables,
+                             @NotNull final ByteBuffer from,
+                             @NotNull final ByteBuffer to,
+                             @NotNull final List<ByteBuffer> boundaries,
+                             final long now,
+                             final long estimate) {
+        this.tables = tables;
+        this.cleanable = PinnedIterator.releaseWhenUnreachable(this, tables);
+        this.from = from;
+        this.to = to;
+        this.boundaries = boundaries;
+        this.now = now;
+        this.estimate = estimate;
+    }
+
+    @Override
+    public boolean tryAdvance(@NotNull final Consumer<? super Record> action) {
+        if (cells == null) {
+            try {
+                cells = LSMDao.mergedCells(tables, from, to, true, now);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        if (!cells.hasNext()) {
+            cleanable.clean();
+            return false;
+        }
+        final Cell cell = cells.next();
+        action.accept(Record.of(cell.getKey(), cell.getValue().getData()));
+        return true;
+    }
+
+    /**
+     * Hands the first half of the sampled keys to a new split, unless the scan has started.
+     */
+    @Nullable
+    @Override
+    public Spliterator<Record> trySplit() {
+        if (cells != null || boundaries.isEmpty()) {
+            return null;
+        }
+        try {
+            if (!tables.acquire()) {
+                return null;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        final int middle = boundaries.size() / 2;
+        final ByteBuffer key = boundaries.get(middle);
+        final long prefixEstimate = estimate * (middle + 1) / (boundaries.size() + 1);
+        final RangeSpliterator prefix = new RangeSpliterator(
+                tables,
+                from,
+                key,
+                boundaries.subList(0, middle),
+                now,
+                prefixEstimate);
+        from = key;
+        boundaries = boundaries.subList(middle + 1, boundaries.size());
+        estimate -= prefixEstimate;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        return estimate;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | SORTED | DISTINCT | NONNULL;
+    }
+
+    /**
+     * Records go in the natural order of their keys.
+     */
+    @Nullable
+    @Override
+    public Comparator<? super Record> getComparator() {
+        return null;
+    }
+}
@@ -0,0 +1,60 @@
+package ru.mail.polis.renuonego;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+
+/**
+ * Removal of all the keys from {@link #from} (inclusive) until {@link #to} (exclusive)
+ * written before {@link #timestamp}.
+ */
+final class RangeTombstone {
+    static final Comparator<RangeTombstone> BY_FROM = (a, b) -> a.from.compareTo(b.from);
+    static final Comparator<RangeTombstone> BY_TO = (a, b) -> a.to.compareTo(b.to);
+    static final Comparator<RangeTombstone> NEWEST_FIRST = (a, b) -> Long.compare(b.timestamp, a.timestamp);
+
+    @NotNull
+    private final ByteBuffer from;
+    @NotNull
+    private final ByteBuffer to;
+    private final long timestamp;
+
+    RangeTombstone(@NotNull final ByteBuffer from, @NotNull final ByteBuffer to, final long timestamp) {
+        assert from.compareTo(to) < 0;
+        assert timestamp >= 0;
+        this.from = from;
+        this.to = to;
+        this.timestamp = timestamp;
+    }
+
+    @NotNull
+    ByteBuffer getFrom() {
+        return from.asReadOnlyBuffer();
+    }
+
+    @NotNull
+    ByteBuffer getTo() {
+        return to.asReadOnlyBuffer();
+    }
+
+    long getTimeStamp() {
+        return timestamp;
+    }
+
+    boolean contains(@NotNull final ByteBuffer key) {
+        return from.compareTo(key) <= 0 && key.compareTo(to) < 0;
+    }
+
+    /**
+     * Locates the key relative to the range without copying the bounds.
+     *
+     * @return negative if the range ends before the key, positive if it starts after it, or zero if it contains it
+     */
+    int compareToKey(@NotNull final ByteBuffer key) {
+        if (from.compareTo(key) > 0) {
+            return 1;
+        }
+        return to.compareTo(key) <= 0 ? -1 : 0;
+    }
+}
@@ -0,0 +1,331 @@
+package ru.mail.polis.renuonego;
+
+import com.google.common.collect.Iterators;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Immutable set of {@link RangeTombstone}s of a {@link Table}.
+ *
+ * <p>Overlapping tombstones are split into sorted disjoint fragments, each carrying the newest
+ * timestamp of the tombstones covering it, so a key is checked by a binary search.
+ * Serialized as the number of fragments (4) and, for every one, its timestamp (8),
+ * the size (4) and bytes of its first key and the size (4) and bytes of the key it ends before.
+ */
+final class RangeTombstones {
+    static final RangeTombstones EMPTY = new RangeTombstones(Collections.emptyList());
+
+    private static final long NONE = -1L;
+
+    @NotNull
+    private final List<RangeTombstone> fragments;
+
+    private RangeTombstones(@NotNull final List<RangeTombstone> fragments) {
+        this.fragments = Collections.unmodifiableList(fragments);
+    }
+
+    /**
+     * Splits the tombstones into fragments.
+     *
+     * @param tombstones are tombstones in any order, possibly overlapping
+     * @return the set of tombstones
+     */
+    @NotNull
+    static RangeTombstones of(@NotNull final Collection<RangeTombstone> tombstones) {
+        if (tombstones.isEmpty()) {
+            return EMPTY;
+        }
+        final List<RangeTombstone> sorted = new ArrayList<>(tombstones);
+        // Sorted runs, such as the fragments of merged sets, are picked up by the sort as they are
+        sorted.sort(RangeTombstone.BY_FROM);
+        return new RangeTombstones(sweep(sorted));
+    }
+
+    /**
+     * Walks the bounds in order, keeping the tombstones covering the current one in heaps by timestamp
+     * and by end, so every tombstone is added and dropped once.
+     *
+     * @param sorted are tombstones ordered by their first keys
+     * @return the fragments
+     */
+    @NotNull
+    private static List<RangeTombstone> sweep(@NotNull final List<RangeTombstone> sorted) {
+        final PriorityQueue<RangeTombstone> newest = new PriorityQueue<>(RangeTombstone.NEWEST_FIRST);
+        final PriorityQueue<RangeTombstone> ends = new PriorityQueue<>(RangeTombstone.BY_TO);
+        final List<RangeTombstone> fragments = new ArrayList<>();
+        ByteBuffer from = null;
+        long timestamp = NONE;
+        int next = 0;
+        while (next < sorted.size() || !ends.isEmpty()) {
+            ByteBuffer bound = null;
+            if (!ends.isEmpty()) {
+                bound = ends.peek().getTo();
+            }
+            if (next < sorted.size() && (bound == null || sorted.get(next).getFrom().compareTo(bound) < 0)) {
+                bound = sorted.get(next).getFrom();
+            }
+            assert bound != null;
+
+            while (!ends.isEmpty() && ends.peek().getTo().compareTo(bound) <= 0) {
+                ends.poll();
+            }
+            while (next < sorted.size() && sorted.get(next).getFrom().compareTo(bound) == 0) {
+                newest.add(sorted.get(next));
+                ends.add(sorted.get(next));
+                next++;
+            }
+            // Tombstones which ended are dropped once they come to the top
+            while (!newest.isEmpty() && newest.peek().getTo().compareTo(bound) <= 0) {
+                newest.poll();
+            }
+
+            final long current = newest.isEmpty() ? NONE : newest.peek().getTimeStamp();
+            if (current == timestamp) {
+                continue;
+            }
+            if (timestamp != NONE) {
+                fragments.add(new RangeTombstone(from, bound, timestamp));
+            }
+            from = bound;
+            timestamp = current;
+        }
+        assert timestamp == NONE;
+        return fragments;
+    }
+
+    /**
+     * Combines the tombstones of several tables.
+     *
+     * @param sets are the tombstones of the tables
+     * @return the set of all the tombstones
+     */
+    @NotNull
+    static RangeTombstones merge(@NotNull final Collection<RangeTombstones> sets) {
+        RangeTombstones single = EMPTY;
+        final List<RangeTombstone> all = new ArrayList<>();
+        for (final RangeTombstones set : sets) {
+            if (!set.isEmpty()) {
+                single = set;
+                all.addAll(set.fragments);
+            }
+        }
+        return all.size() == single.fragments.size() ? single : of(all);
+    }
+
+    /**
+     * Adds a tombstone, splicing it into the fragments it overlaps and keeping the others as they are.
+     *
+     * @param tombstone is the new tombstone
+     * @return new set of tombstones
+     */
+    @NotNull
+    RangeTombstones with(@NotNull final RangeTombstone tombstone) {
+        final ByteBuffer from = tombstone.getFrom();
+        final ByteBuffer to = tombstone.getTo();
+        final long timestamp = tombstone.getTimeStamp();
+
+        // The first fragment ending after the start of the tombstone
+        int left = 0;
+        int right = fragments.size();
+        while (left < right) {
+            final int mid = (left + right) >>> 1;
+            if (fragments.get(mid).getTo().compareTo(from) <= 0) {
+                left = mid + 1;
+            } else {
+                right = mid;
+            }
+        }
+
+        final List<RangeTombstone> result = new ArrayList<>(fragments.size() + 2);
+        result.addAll(fragments.subList(0, left));
+        ByteBuffer covered = from;
+        int i = left;
+        for (; i < fragments.size() && fragments.get(i).getFrom().compareTo(to) < 0; i++) {
+            final RangeTombstone fragment = fragments.get(i);
+            final ByteBuffer fragmentFrom = fragment.getFrom();
+            final ByteBuffer fragmentTo = fragment.getTo();
+            if (fragmentFrom.compareTo(covered) < 0) {
+                append(result, new RangeTombstone(fragmentFrom, covered, fragment.getTimeStamp()));
+            } else if (fragmentFrom.compareTo(covered) > 0) {
+                append(result, new RangeTombstone(covered, fragmentFrom, timestamp));
+                covered = fragmentFrom;
+            }
+            final ByteBuffer end = fragmentTo.compareTo(to) < 0 ? fragmentTo : to;
+            append(result, new RangeTombstone(covered, end, Math.max(timestamp, fragment.getTimeStamp())));
+            if (fragmentTo.compareTo(to) > 0) {
+                append(result, new RangeTombstone(to, fragmentTo, fragment.getTimeStamp()));
+            }
+            covered = end;
+        }
+        if (covered.compareTo(to) < 0) {
+            append(result, new RangeTombstone(covered, to, timestamp));
+        }
+        if (i < fragments.size()) {
+            append(result, fragments.get(i));
+            result.addAll(fragments.subList(i + 1, fragments.size()));
+        }
+        return new RangeTombstones(result);
+    }
+
+    /**
+     * Appends the fragment, joining it with the last one if they adjoin and have the same timestamp.
+     */
+    private static void append(@NotNull final List<RangeTombstone> fragments,
+                               @NotNull final RangeTombstone fragment) {
+        if (!fragments.isEmpty()) {
+            final RangeTombstone last = fragments.get(fragments.size() - 1);
+            if (last.getTimeStamp() == fragment.getTimeStamp() && last.getTo().compareTo(fragment.getFrom()) == 0) {
+                fragments.set(fragments.size() - 1,
+                        new RangeTombstone(last.getFrom(), fragment.getTo(), fragment.getTimeStamp()));
+                return;
+            }
+        }
+        fragments.add(fragment);
+    }
+
+    boolean isEmpty() {
+        return fragments.isEmpty();
+    }
+
+    @NotNull
+    List<RangeTombstone> fragments() {
+        return fragments;
+    }
+
+    /**
+     * Returns the timestamp of the newest tombstone covering the key.
+     *
+     * @param key is the key to check
+     * @return the timestamp or -1 if the key is not covered
+     */
+    long removedAt(@NotNull final ByteBuffer key) {
+        int left = 0;
+        int right = fragments.size() - 1;
+        while (left <= right) {
+            final int mid = (left + right) >>> 1;
+            final RangeTombstone fragment = fragments.get(mid);
+            final int position = fragment.compareToKey(key);
+            if (position > 0) {
+                right = mid - 1;
+            } else if (position < 0) {
+                left = mid + 1;
+            } else {
+                return fragment.getTimeStamp();
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * Checks whether the cell was written before a tombstone covering its key.
+     */
+    boolean covers(@NotNull final Cell cell) {
+        return !fragments.isEmpty() && cell.getValue().getTimeStamp() < removedAt(cell.key());
+    }
+
+    /**
+     * Skips the cells removed by the tombstones.
+     *
+     * @param cells are the cells to filter
+     * @return the cells which are not covered
+     */
+    @NotNull
+    Iterator<Cell> dropCovered(@NotNull final Iterator<Cell> cells) {
+        return fragments.isEmpty() ? cells : Iterators.filter(cells, cell -> !covers(cell));
+    }
+
+    /**
+     * Cuts the tombstones to a key range.
+     *
+     * @param from is the first key of the range or null if unbounded
+     * @param to   is the key the range ends before or null if unbounded
+     * @return the tombstones within the range
+     */
+    @NotNull
+    RangeTombstones clip(@Nullable final ByteBuffer from, @Nullable final ByteBuffer to) {
+        final List<RangeTombstone> result = new ArrayList<>();
+        for (final RangeTombstone fragment : fragments) {
+            final ByteBuffer start = from == null || fragment.getFrom().compareTo(from) >= 0
+                    ? fragment.getFrom() : from;
+            final ByteBuffer end = to == null || fragment.getTo().compareTo(to) <= 0
+                    ? fragment.getTo() : to;
+            if (start.compareTo(end) < 0) {
+                result.add(new RangeTombstone(start, end, fragment.getTimeStamp()));
+            }
+        }
+        return result.size() == fragments.size() && from == null && to == null ? this : new RangeTombstones(result);
+    }
+
+    long minTimestamp() {
+        long result = Long.MAX_VALUE;
+        for (final RangeTombstone fragment : fragments) {
+            result = Math.min(result, fragment.getTimeStamp());
+        }
+        return result;
+    }
+
+    long maxTimestamp() {
+        long result = NONE;
+        for (final RangeTombstone fragment : fragments) {
+            result = Math.max(result, fragment.getTimeStamp());
+        }
+        return result;
+    }
+
+    int sizeInBytes() {
+        int size = Integer.BYTES;
+        for (final RangeTombstone fragment : fragments) {
+            size += Long.BYTES + 2 * Integer.BYTES + fragment.getFrom().remaining() + fragment.getTo().remaining();
+        }
+        return size;
+    }
+
+    void writeTo(@NotNull final ByteBuffer buffer) {
+        buffer.putInt(fragments.size());
+        for (final RangeTombstone fragment : fragments) {
+            buffer.putLong(fragment.getTimeStamp());
+            buffer.putInt(fragment.getFrom().remaining());
+            buffer.put(fragment.getFrom());
+            buffer.putInt(fragment.getTo().remaining());
+            buffer.put(fragment.getTo());
+        }
+    }
+
+    /**
+     * Reads tombstones written by {@link #writeTo(ByteBuffer)}, referring to the buffer instead of copying keys.
+     *
+     * @param buffer is the serialized tombstones
+     * @return the set of tombstones
+     */
+    @NotNull
+    static RangeTombstones readFrom(@NotNull final ByteBuffer buffer) {
+        final int count = buffer.getInt();
+        if (count == 0) {
+            return EMPTY;
+        }
+        final List<RangeTombstone> fragments = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final long timestamp = buffer.getLong();
+            final ByteBuffer from = key(buffer);
+            final ByteBuffer to = key(buffer);
+            fragments.add(new RangeTombstone(from, to, timestamp));
+        }
+        return new RangeTombstones(fragments);
+    }
+
+    @NotNull
+    private static ByteBuffer key(@NotNull final ByteBuffer buffer) {
+        final int size = buffer.getInt();
+        final ByteBuffer key = buffer.slice().limit(size);
+        buffer.position(buffer.position() + size);
+        return key;
+    }
+}
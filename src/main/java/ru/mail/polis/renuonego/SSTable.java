@@ -1,241 +1,259 @@
 package ru.mail.polis.renuonego;
 
+import com.google.common.collect.PeekingIterator;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.LongBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
-import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
-
-class SSTable implements Table, Closeable {
-    private final ByteBuffer cells;
-    private final LongBuffer offsets;
-    private final int rows;
-    private final long sizeInBytes;
-    private final FileChannel channel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Immutable sorted table on disk.
+ * Tables are written as {@link BlockSSTable}s, tables of the original format are read as {@link FlatSSTable}s.
+ * Tables named by the {@link Manifest} are opened as {@link LazySSTable}s, which read the file only when needed.
+ *
+ * <p>A table is reference counted: the table set holds one reference and every reader using the table
+ * holds another, so a table replaced by compaction is closed and deleted only after the last reader is done.
+ */
+abstract class SSTable implements Table, Closeable {
+    @NotNull
     private final File file;
+    private final long sizeInBytes;
+    private final int generation;
+    private final int level;
+    private final AtomicInteger references = new AtomicInteger(1);
+    private volatile boolean obsolete;
+
+    SSTable(@NotNull final File file, final int generation, final int level) {
+        this(file, generation, level, file.length());
+    }
+
+    SSTable(@NotNull final File file, final int generation, final int level, final long sizeInBytes) {
+        this.file = file;
+        this.sizeInBytes = sizeInBytes;
+        this.generation = generation;
+        this.level = level;
+    }
 
     /**
-     * Creates a new SSTable representation of data file.
+     * Opens the table, recognizing its format by the trailing magic number.
      *
-     * @param file to get a table
-     * @throws IOException if an I/O error is thrown by a visitor method
+     * @param file       is the table file
+     * @param generation is the generation of the table
+     * @param level      is the level of the table
+     * @param cache      is the cache of decompressed blocks
+     * @return the table
+     * @throws IOException if the file can't be read
      */
-    SSTable(@NotNull final File file) throws IOException {
-        this.file = file;
-        final long fileSize = file.length();
-        assert fileSize != 0 && fileSize <= Integer.MAX_VALUE;
-        this.sizeInBytes = file.length();
-
-        final ByteBuffer mapped;
+    @NotNull
+    static SSTable open(@NotNull final File file,
+                        final int generation,
+                        final int level,
+                        @NotNull final BlockCache cache) throws IOException {
+        final ByteBuffer tail = ByteBuffer.allocate(Long.BYTES);
         try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
-            assert file.length() <= Integer.MAX_VALUE;
-            this.channel = fc;
-            mapped = fc.map(FileChannel.MapMode.READ_ONLY, 0L, fileSize).order(ByteOrder.BIG_ENDIAN);
+            final long size = fc.size();
+            if (size >= Long.BYTES) {
+                fc.read(tail, size - Long.BYTES);
+            }
         }
-
-        final long rowsLong = mapped.getLong((int) (fileSize - Long.BYTES));
-        assert rowsLong <= Integer.MAX_VALUE;
-        this.rows = (int) rowsLong;
-
-        final ByteBuffer offsetBuffer = mapped.duplicate();
-        offsetBuffer.position(mapped.limit() - Long.BYTES * this.rows - Long.BYTES);
-        offsetBuffer.limit(mapped.limit() - Long.BYTES);
-        this.offsets = offsetBuffer.slice().asLongBuffer();
-
-        final ByteBuffer cellBuffer = mapped.duplicate();
-        cellBuffer.limit(offsetBuffer.position());
-        this.cells = cellBuffer.slice();
+        if (!tail.hasRemaining() && tail.getLong(0) == BlockSSTable.MAGIC) {
+            return new BlockSSTable(file, generation, level, cache);
+        }
+        return new FlatSSTable(file, generation, level);
     }
 
     /**
-     * Writes {@link MemTable} to disk.
+     * Writes cells to disk as a {@link BlockSSTable} and forces them, so the file may be renamed into place.
+     * Stops once the table reaches the given size, leaving the rest of the cells for the next table.
+     * The range tombstones are cut to the keys from the lower bound until the first cell left,
+     * so the tables written from one stream of cells split the tombstones between them.
      *
-     * @param cells is iterator of {@link MemTable}
-     * @param to    is the path where data will be written
-     * @throws IOException if an I/O error thrown by a visitor method
+     * @param cells           are sorted cells to write
+     * @param rangeTombstones are the range removals of the cells
+     * @param lower           is the first key of the table or null if it is the first table of the stream
+     * @param to              is the path where data will be written
+     * @param config          defines the layout of the table
+     * @param maxSize         is the size of the blocks after which no more cells are taken
+     * @throws IOException if an I/O error is thrown
      */
-    static void write(@NotNull final Iterator<Cell> cells, @NotNull final File to) throws IOException {
+    static void write(@NotNull final PeekingIterator<Cell> cells,
+                      @NotNull final RangeTombstones rangeTombstones,
+                      @Nullable final ByteBuffer lower,
+                      @NotNull final File to,
+                      @NotNull final Config config,
+                      final long maxSize) throws IOException {
         try (FileChannel fc = FileChannel.open(
                 to.toPath(),
                 StandardOpenOption.CREATE_NEW,
-                StandardOpenOption.WRITE)
-        ) {
-            final List<Long> offsets = new ArrayList<>();
-            long offset = 0;
-            while (cells.hasNext()) {
-                offsets.add(offset);
-
-                final Cell cell = cells.next();
-
-                offset += writeBuffer(fc, cell.getKey());
-
-                final Value value = cell.getValue();
-
-                if (value.isRemoved()) {
-                    fc.write(Bytes.fromLong(-cell.getValue().getTimeStamp()));
-                } else {
-                    fc.write(Bytes.fromLong(cell.getValue().getTimeStamp()));
-                }
-                offset += Long.BYTES;
-
-                if (!value.isRemoved()) {
-                    offset += writeBuffer(fc, value.getData());
-                }
+                StandardOpenOption.WRITE);
+             SSTableWriter writer = new SSTableWriter(fc, to, config.blockSize, config.compression)) {
+            while (writer.size() < maxSize && cells.hasNext()) {
+                writer.append(cells.next());
             }
-
-            for (final Long anOffset : offsets) {
-                fc.write(Bytes.fromLong(anOffset));
-            }
-
-            fc.write(Bytes.fromLong(offsets.size()));
+            final ByteBuffer upper = cells.hasNext() ? cells.peek().getKey() : null;
+            writer.finish(rangeTombstones.clip(lower, upper));
         }
     }
 
-    private static long writeBuffer(@NotNull final FileChannel fc,
-                                    @NotNull final ByteBuffer buffer) throws IOException {
-        int offset = Integer.BYTES;
-        final int valueSize = buffer.remaining();
-
-        fc.write(Bytes.fromInt(valueSize));
-        fc.write(buffer);
-
-        offset += valueSize;
+    /**
+     * Returns the timestamp of the newest cell, which orders the tables of a level by recency:
+     * memtables never share timestamp ranges, and compaction into a level takes all the overlapping tables.
+     *
+     * @return the newest timestamp
+     */
+    abstract long maxTimestamp();
 
-        return offset;
-    }
+    /**
+     * Returns the number of cells, tombstones included.
+     *
+     * @return the number of cells
+     */
+    abstract long rows();
 
-    private ByteBuffer keyAt(final int i) {
-        assert 0 <= i && i <= rows;
+    /**
+     * Returns the number of tombstones among the cells.
+     *
+     * @return the number of tombstones
+     */
+    abstract long tombstones();
 
-        final long offset = offsets.get(i);
-        assert offset <= Integer.MAX_VALUE;
-        final ByteBuffer key = cells.duplicate();
+    /**
+     * Returns the number of values with a time to live among the cells.
+     *
+     * @return the number of expiring values
+     */
+    abstract long expiring();
 
-        key.position((int) (offset + Integer.BYTES));
-        key.limit(key.position() + cells.getInt((int) offset));
+    /**
+     * Returns the latest expiry of the expiring values, zero if there are none.
+     *
+     * @return the time all the expiring values are gone by
+     */
+    abstract long maxExpiresAt();
 
-        return key.slice();
+    /**
+     * Estimates the share of the cells a compaction which drops tombstones would remove:
+     * the tombstones, and the expiring values once all of them have expired.
+     *
+     * @param now is the current time as given by {@link Time#nowInNano()}
+     * @return the share from 0 to 1
+     */
+    final double droppableRatio(final long now) {
+        final long rows = rows();
+        if (rows == 0) {
+            return 0;
+        }
+        long droppable = tombstones();
+        if (maxExpiresAt() <= now) {
+            droppable += expiring();
+        }
+        return (double) droppable / rows;
     }
 
-    private Cell cellAt(final int i) {
-        assert 0 <= i && i < rows;
-        long offset = offsets.get(i);
-        assert offset <= Integer.MAX_VALUE;
-
-        final int keySize = cells.getInt((int) offset);
-        offset += Integer.BYTES;
-        final ByteBuffer key = keyAt(i);
-        offset += keySize;
-
-        final long timestamp = cells.getLong((int) offset);
-        offset += Long.BYTES;
+    /**
+     * Returns the smallest key, which is undefined for an empty table.
+     *
+     * @return the first key
+     */
+    @NotNull
+    abstract ByteBuffer firstKey();
 
-        if (timestamp < 0) {
-            return new Cell(key.slice(), new Value(-timestamp, null));
-        } else {
-            final int valueSize = cells.getInt((int) offset);
-            offset += Integer.BYTES;
-            final ByteBuffer value = cells.duplicate();
+    /**
+     * Returns the largest key, which is undefined for an empty table.
+     *
+     * @return the last key
+     */
+    @NotNull
+    abstract ByteBuffer lastKey();
 
-            value.position((int) offset);
-            value.limit(value.position() + valueSize);
+    /**
+     * Samples the keys splitting the table into parts of about equal size.
+     *
+     * @param max is the largest number of keys to return
+     * @return the keys in ascending order, possibly not present in the table
+     */
+    @NotNull
+    abstract List<ByteBuffer> sampleKeys(int max);
 
-            return new Cell(key.slice(), new Value(timestamp, value.slice()));
-        }
+    /**
+     * Checks whether the table may hold keys of the range.
+     *
+     * @param from is the first key of the range
+     * @param to   is the last key of the range, inclusive
+     * @return true if the key ranges intersect
+     */
+    final boolean overlaps(@NotNull final ByteBuffer from, @NotNull final ByteBuffer to) {
+        return firstKey().compareTo(to) <= 0 && lastKey().compareTo(from) >= 0;
     }
 
-    private int position(@NotNull final ByteBuffer from, @NotNull final Boolean isDirect) {
-        int left = 0;
-        int right = rows - 1;
-
-        while (left <= right) {
-            final int mid = left + (right - left) / 2;
-            final int cmp = from.compareTo(keyAt(mid));
+    /**
+     * Checks whether the key is within the key range of the table, which covers its range tombstones too.
+     *
+     * @param key is the key to look up
+     * @return false if the table knows nothing about the key
+     */
+    final boolean mayContain(@NotNull final ByteBuffer key) {
+        return firstKey().compareTo(key) <= 0 && lastKey().compareTo(key) >= 0;
+    }
 
-            if (cmp < 0) {
-                right = mid - 1;
-            } else if (cmp > 0) {
-                left = mid + 1;
-            } else {
-                return mid;
-            }
+    /**
+     * Checks whether the table may hold keys a scan reads.
+     *
+     * @param from      is the key the scan starts at, or null if it starts at the last key
+     * @param to        is the key the scan stops before, or null if it is unbounded
+     * @param ascending is the direction of the scan
+     * @return false if the key ranges don't intersect
+     */
+    final boolean mayContain(@Nullable final ByteBuffer from,
+                             @Nullable final ByteBuffer to,
+                             final boolean ascending) {
+        final ByteBuffer first = firstKey();
+        final ByteBuffer last = lastKey();
+        if (ascending) {
+            return (from == null || last.compareTo(from) >= 0) && (to == null || first.compareTo(to) < 0);
         }
-        return isDirect ? left : right;
+        return (from == null || first.compareTo(from) <= 0) && (to == null || last.compareTo(to) > 0);
     }
 
     @NotNull
-    @Override
-    public Iterator<Cell> iterator(@NotNull final ByteBuffer from) {
-        return new Iterator<>() {
-            int next = position(from, true);
-
-            @Override
-            public boolean hasNext() {
-                return next < rows;
-            }
-
-            @Override
-            public Cell next() {
-                assert hasNext();
-                return cellAt(next++);
-            }
-        };
+    final File file() {
+        return file;
     }
 
-    @NotNull
-    @Override
-    public Iterator<Cell> reverseIterator(@NotNull final ByteBuffer from) {
-        return new Iterator<>() {
-            int next = position(from, false);
-
-            @Override
-            public boolean hasNext() {
-                return next >= 0;
-            }
+    final int generation() {
+        return generation;
+    }
 
-            @Override
-            public Cell next() {
-                assert hasNext();
-                return cellAt(next--);
-            }
-        };
+    final int level() {
+        return level;
     }
 
-    @NotNull
     @Override
-    public Iterator<Cell> reverseIterator() {
-        return new Iterator<>() {
-            int last = rows - 1;
-
-            @Override
-            public boolean hasNext() {
-                return last >= 0;
-            }
-
-            @Override
-            public Cell next() {
-                assert hasNext();
-                return cellAt(last--);
-            }
-        };
+    public void upsert(@NotNull final ByteBuffer key,
+                       @NotNull final ByteBuffer value,
+                       final long timestamp,
+                       final long expiresAt) {
+        throw new UnsupportedOperationException("SSTable is immutable");
     }
 
     @Override
-    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
+    public void remove(@NotNull final ByteBuffer key, final long timestamp) {
         throw new UnsupportedOperationException("SSTable is immutable");
     }
 
     @Override
-    public void remove(@NotNull final ByteBuffer key) {
+    public void removeRange(@NotNull final ByteBuffer from,
+                            @NotNull final ByteBuffer to,
+                            final long timestamp) {
         throw new UnsupportedOperationException("SSTable is immutable");
     }
 
@@ -244,12 +262,64 @@ class SSTable implements Table, Closeable {
         return sizeInBytes;
     }
 
+    /**
+     * Takes a reference, which keeps the table open until released.
+     *
+     * @return false if the table is already closed
+     */
+    @Override
+    public final boolean acquire() {
+        int current;
+        do {
+            current = references.get();
+            if (current == 0) {
+                return false;
+            }
+        } while (!references.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    /**
+     * Releases a reference. The last one closes the table and deletes the file of an obsolete table.
+     *
+     * @throws IOException if the file can't be deleted
+     */
+    @Override
+    public final void release() throws IOException {
+        final int left = references.decrementAndGet();
+        assert left >= 0;
+        if (left == 0) {
+            close();
+            if (obsolete) {
+                deleteSSTableFile();
+            }
+        }
+    }
+
+    /**
+     * Makes the last release delete the file, as the table is replaced by compaction.
+     */
+    final void markObsolete() {
+        obsolete = true;
+    }
+
     @Override
     public void close() throws IOException {
-        channel.close();
+        // Mapped buffers are released by GC
     }
 
-    public void deleteSSTableFile() throws IOException {
+    void deleteSSTableFile() throws IOException {
         Files.delete(file.toPath());
     }
+
+    /**
+     * Renames the table file, which is needed to drop the level from names of tables
+     * written before the manifest was introduced. The instance keeps serving reads from the mapping.
+     *
+     * @param to is the new path of the table
+     * @throws IOException if the file can't be moved
+     */
+    void moveSSTableFile(@NotNull final File to) throws IOException {
+        Files.move(file.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
 }
@@ -0,0 +1,351 @@
+package ru.mail.polis.renuonego;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes sorted cells to a channel in the {@link BlockSSTable} format.
+ *
+ * <p>Blocks are encoded into a reusable direct buffer, which is written out in large sequential chunks.
+ * The index and key hashes for the Bloom filter are kept in memory up to a limit and spilled
+ * to temporary files next to the table beyond it.
+ */
+final class SSTableWriter implements Closeable {
+    private static final int OUTPUT_BUFFER = 1024 * 1024;
+    private static final int SPILL_THRESHOLD = 1024 * 1024;
+    private static final String INDEX_SPILL = ".index.tmp";
+    private static final String HASHES_SPILL = ".hashes.tmp";
+    private static final ThreadLocal<ByteBuffer> OUTPUT =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(OUTPUT_BUFFER));
+
+    @NotNull
+    private final FileChannel channel;
+    private final int blockSize;
+    @NotNull
+    private final Compression compression;
+    @NotNull
+    private final ByteBuffer out;
+    @NotNull
+    private final SpillBuffer index;
+    @NotNull
+    private final SpillBuffer hashes;
+    private final ByteBuffer indexEntry = ByteBuffer.allocate(Long.BYTES + 2 * Integer.BYTES);
+
+    private ByteBuffer block;
+    private int[] cellOffsets = new int[64];
+    private int cells;
+    private ByteBuffer firstKey;
+    private ByteBuffer lastKey = ByteBuffer.allocate(0);
+    private int blocks;
+    private long rows;
+    private long tombstones;
+    private long expiring;
+    private long maxExpiresAt;
+    private long minTimestamp = Long.MAX_VALUE;
+    private long maxTimestamp;
+    private long position;
+
+    /**
+     * Creates a writer.
+     *
+     * @param channel     is the channel of the table file
+     * @param file        is the table file, naming the temporary files
+     * @param blockSize   is the size of a block
+     * @param compression is the codec of blocks
+     */
+    SSTableWriter(@NotNull final FileChannel channel,
+                  @NotNull final File file,
+                  final int blockSize,
+                  @NotNull final Compression compression) {
+        this.channel = channel;
+        this.blockSize = blockSize;
+        this.compression = compression;
+        this.block = ByteBuffer.allocate(blockSize);
+        this.out = OUTPUT.get();
+        this.out.clear();
+        this.index = new SpillBuffer(spill(file, INDEX_SPILL), SPILL_THRESHOLD);
+        this.hashes = new SpillBuffer(spill(file, HASHES_SPILL), SPILL_THRESHOLD);
+    }
+
+    @NotNull
+    private static File spill(@NotNull final File table, @NotNull final String suffix) {
+        final String name = table.getName();
+        return new File(table.getParentFile(), name.substring(0, name.lastIndexOf('.')) + suffix);
+    }
+
+    @NotNull
+    private static ByteBuffer ensure(@NotNull final ByteBuffer buffer, final int extra) {
+        if (buffer.remaining() >= extra) {
+            return buffer;
+        }
+        final int capacity = Math.max(buffer.capacity() * 2, buffer.position() + extra);
+        return ByteBuffer.allocate(capacity).put(buffer.flip());
+    }
+
+    /**
+     * Appends the cell, which must go after all the appended ones.
+     */
+    void append(@NotNull final Cell cell) throws IOException {
+        final ByteBuffer key = cell.getKey();
+        final Value value = cell.getValue();
+        final ByteBuffer data = value.isRemoved() ? null : value.getData();
+        final boolean expiring = data != null && value.getExpiresAt() != Value.NEVER;
+        final int size = Integer.BYTES + key.remaining() + Long.BYTES
+                + (data == null ? 0 : Integer.BYTES + data.remaining())
+                + (expiring ? Long.BYTES : 0);
+
+        if (cells == cellOffsets.length) {
+            cellOffsets = Arrays.copyOf(cellOffsets, cells * 2);
+        }
+        cellOffsets[cells++] = block.position();
+
+        block = ensure(block, size);
+        block.putInt(key.remaining());
+        block.put(key.duplicate());
+        if (data == null) {
+            block.putLong(-value.getTimeStamp());
+        } else if (expiring) {
+            block.putLong(value.getTimeStamp());
+            block.putInt(-data.remaining() - 1);
+            block.putLong(value.getExpiresAt());
+            block.put(data);
+        } else {
+            block.putLong(value.getTimeStamp());
+            block.putInt(data.remaining());
+            block.put(data);
+        }
+
+        hashes.putLong(BloomFilter.hash(key));
+        rows++;
+        if (data == null) {
+            tombstones++;
+        } else if (expiring) {
+            this.expiring++;
+            maxExpiresAt = Math.max(maxExpiresAt, value.getExpiresAt());
+        }
+        minTimestamp = Math.min(minTimestamp, value.getTimeStamp());
+        maxTimestamp = Math.max(maxTimestamp, value.getTimeStamp());
+
+        if (block.position() + (cells + 1) * Integer.BYTES >= blockSize) {
+            finishBlock();
+        }
+    }
+
+    /**
+     * Returns the number of bytes written so far, not counting the block being filled.
+     */
+    long size() {
+        return position;
+    }
+
+    private void finishBlock() throws IOException {
+        if (cells == 0) {
+            return;
+        }
+        block = ensure(block, (cells + 1) * Integer.BYTES);
+        for (int i = 0; i < cells; i++) {
+            block.putInt(cellOffsets[i]);
+        }
+        block.putInt(cells);
+        block.flip();
+
+        final long blockOffset = position;
+        if (compression == Compression.NONE) {
+            write(block.duplicate());
+        } else {
+            writeCompressed(block);
+        }
+
+        final ByteBuffer first = keyAt(0);
+        if (blocks == 0) {
+            firstKey = Bytes.copy(first);
+        }
+        final int separatorSize = blocks == 0 ? 0 : separatorSize(lastKey, first);
+        indexEntry.clear();
+        indexEntry.putLong(blockOffset);
+        indexEntry.putInt((int) (position - blockOffset));
+        indexEntry.putInt(separatorSize);
+        index.put(indexEntry.flip());
+        index.put(first.limit(separatorSize));
+        blocks++;
+
+        final ByteBuffer last = keyAt(cellOffsets[cells - 1]);
+        if (lastKey.capacity() < last.remaining()) {
+            lastKey = ByteBuffer.allocate(last.remaining() * 2);
+        }
+        lastKey.clear();
+        lastKey.put(last).flip();
+
+        block.clear();
+        cells = 0;
+    }
+
+    @NotNull
+    private ByteBuffer keyAt(final int offset) {
+        return block.duplicate()
+                .position(offset + Integer.BYTES)
+                .limit(offset + Integer.BYTES + block.getInt(offset))
+                .slice();
+    }
+
+    /**
+     * Returns the length of the shortest prefix of the key which is greater than the previous key,
+     * so the index keeps only as much of keys as needed to tell the blocks apart.
+     */
+    private static int separatorSize(@NotNull final ByteBuffer previous, @NotNull final ByteBuffer key) {
+        assert previous.compareTo(key) < 0;
+        final int mismatch = previous.mismatch(key);
+        return Math.min(mismatch + 1, key.remaining());
+    }
+
+    /**
+     * Writes the raw size followed by the compressed block, or by the raw one if it doesn't compress.
+     */
+    private void writeCompressed(@NotNull final ByteBuffer raw) throws IOException {
+        final int size = Integer.BYTES + raw.remaining();
+        if (out.remaining() < size) {
+            drain();
+        }
+        if (out.remaining() < size) {
+            // Larger than the output buffer, which is rare enough to allocate
+            final ByteBuffer frame = ByteBuffer.allocate(size).putInt(raw.remaining());
+            if (!compression.compress(raw, frame)) {
+                frame.put(raw.duplicate());
+            }
+            write(frame.flip());
+            return;
+        }
+
+        final int start = out.position();
+        out.putInt(raw.remaining());
+        if (!compression.compress(raw, out)) {
+            out.put(raw.duplicate());
+        }
+        position += out.position() - start;
+    }
+
+    private void write(@NotNull final ByteBuffer src) throws IOException {
+        position += src.remaining();
+        if (out.remaining() < src.remaining()) {
+            drain();
+        }
+        if (out.remaining() < src.remaining()) {
+            while (src.hasRemaining()) {
+                channel.write(src);
+            }
+        } else {
+            out.put(src);
+        }
+    }
+
+    private void drain() throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+    }
+
+    /**
+     * Writes the last block, the index, the Bloom filter, the key range, the range tombstones,
+     * the properties and the footer. The key range covers the range tombstones too.
+     *
+     * @param rangeTombstones are the range removals stored along with the cells
+     */
+    void finish(@NotNull final RangeTombstones rangeTombstones) throws IOException {
+        finishBlock();
+
+        final long indexOffset = position;
+        write(ByteBuffer.allocate(Integer.BYTES).putInt(0, blocks));
+        drain();
+        index.transferTo(channel);
+        position += index.size();
+
+        final BloomFilter filter = BloomFilter.create(rows);
+        hashes.forEachLong(filter::addHash);
+        final long filterOffset = position;
+        final ByteBuffer filterBlock = ByteBuffer.allocate(filter.sizeInBytes());
+        filter.writeTo(filterBlock);
+        write(filterBlock.flip());
+
+        ByteBuffer first = rows == 0 ? null : firstKey;
+        ByteBuffer last = rows == 0 ? null : lastKey.duplicate();
+        if (!rangeTombstones.isEmpty()) {
+            final List<RangeTombstone> fragments = rangeTombstones.fragments();
+            final ByteBuffer from = fragments.get(0).getFrom();
+            final ByteBuffer to = fragments.get(fragments.size() - 1).getTo();
+            first = first == null || from.compareTo(first) < 0 ? from : first;
+            last = last == null || to.compareTo(last) > 0 ? to : last;
+            minTimestamp = Math.min(minTimestamp, rangeTombstones.minTimestamp());
+            maxTimestamp = Math.max(maxTimestamp, rangeTombstones.maxTimestamp());
+        }
+        final long keysOffset = position;
+        if (first != null) {
+            write(ByteBuffer.allocate(Integer.BYTES).putInt(0, first.remaining()));
+            write(first);
+            write(ByteBuffer.allocate(Integer.BYTES).putInt(0, last.remaining()));
+            write(last);
+        }
+
+        final long rangesOffset = position;
+        if (!rangeTombstones.isEmpty()) {
+            final ByteBuffer rangesBlock = ByteBuffer.allocate(rangeTombstones.sizeInBytes());
+            rangeTombstones.writeTo(rangesBlock);
+            write(rangesBlock.flip());
+        }
+
+        final long[][] properties = {
+                {BlockSSTable.INDEX_OFFSET, indexOffset},
+                {BlockSSTable.INDEX_SIZE, filterOffset - indexOffset},
+                {BlockSSTable.FILTER_OFFSET, filterOffset},
+                {BlockSSTable.FILTER_SIZE, keysOffset - filterOffset},
+                {BlockSSTable.KEYS_OFFSET, keysOffset},
+                {BlockSSTable.KEYS_SIZE, rangesOffset - keysOffset},
+                {BlockSSTable.RANGES_OFFSET, rangesOffset},
+                {BlockSSTable.RANGES_SIZE, position - rangesOffset},
+                {BlockSSTable.ROWS, rows},
+                {BlockSSTable.TOMBSTONES, tombstones},
+                {BlockSSTable.EXPIRING, expiring},
+                {BlockSSTable.MAX_EXPIRES_AT, maxExpiresAt},
+                {BlockSSTable.MIN_TIMESTAMP, minTimestamp == Long.MAX_VALUE ? 0 : minTimestamp},
+                {BlockSSTable.MAX_TIMESTAMP, maxTimestamp},
+                {BlockSSTable.COMPRESSION, compression.id()},
+        };
+        final long propertiesOffset = position;
+        final ByteBuffer propertiesBlock =
+                ByteBuffer.allocate(Integer.BYTES + properties.length * (Integer.BYTES + Long.BYTES));
+        propertiesBlock.putInt(properties.length);
+        for (final long[] property : properties) {
+            propertiesBlock.putInt((int) property[0]).putLong(property[1]);
+        }
+        write(propertiesBlock.flip());
+
+        final ByteBuffer footer = ByteBuffer.allocate(BlockSSTable.FOOTER);
+        footer.putLong(propertiesOffset);
+        footer.putInt((int) (position - propertiesOffset));
+        footer.putInt(BlockSSTable.VERSION);
+        footer.putLong(BlockSSTable.MAGIC);
+        write(footer.flip());
+        drain();
+        channel.force(true);
+    }
+
+    /**
+     * Deletes the temporary files.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            index.close();
+        } finally {
+            hashes.close();
+        }
+    }
+}
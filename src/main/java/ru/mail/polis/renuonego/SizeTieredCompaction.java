@@ -0,0 +1,103 @@
+package ru.mail.polis.renuonego;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Chooses compactions as Cassandra's size-tiered strategy does: enough tables of similar size
+ * are merged into one, which is merged again once as many tables grow similar to it.
+ * Tables below the minimal size are all considered similar, so the small flushed ones are merged early.
+ *
+ * <p>A lookup stops at the newest table holding the key, so only tables adjacent by recency
+ * are merged: no table left in between may hold values newer than some of the inputs.
+ * All the tables stay in level 0. The oldest table is also merged alone once it has enough
+ * tombstones and expired values, which shadow nothing older and are dropped.
+ */
+final class SizeTieredCompaction implements CompactionStrategy {
+    private final int minThreshold;
+    private final int maxThreshold;
+    private final double bucketLow;
+    private final double bucketHigh;
+    private final long minTableSize;
+    private final double tombstoneThreshold;
+
+    SizeTieredCompaction(@NotNull final Config config) {
+        this.minThreshold = config.sizeTieredMinThreshold;
+        this.maxThreshold = config.sizeTieredMaxThreshold;
+        this.bucketLow = config.sizeTieredBucketLow;
+        this.bucketHigh = config.sizeTieredBucketHigh;
+        this.minTableSize = config.sizeTieredMinTableSize;
+        this.tombstoneThreshold = config.tombstoneThreshold;
+    }
+
+    private boolean similar(final double average, final long size) {
+        if (average < minTableSize && size < minTableSize) {
+            return true;
+        }
+        return size >= average * bucketLow && size <= average * bucketHigh;
+    }
+
+    /**
+     * Merges the run of adjacent similar tables with the smallest average size,
+     * which is the cheapest one to merge.
+     */
+    @Nullable
+    @Override
+    public Compaction pick(@NotNull final List<SSTable> ssTables) {
+        final List<SSTable> flushed = new ArrayList<>();
+        for (final SSTable ssTable : ssTables) {
+            if (ssTable.level() == 0) {
+                flushed.add(ssTable);
+            }
+        }
+        Collections.reverse(flushed);
+
+        int bestStart = -1;
+        int bestEnd = -1;
+        double bestAverage = Double.MAX_VALUE;
+        int start = 0;
+        while (start < flushed.size()) {
+            long total = flushed.get(start).sizeInBytes();
+            int end = start + 1;
+            while (end < flushed.size()
+                    && end - start < maxThreshold
+                    && similar((double) total / (end - start), flushed.get(end).sizeInBytes())) {
+                total += flushed.get(end).sizeInBytes();
+                end++;
+            }
+            final double average = (double) total / (end - start);
+            if (end - start >= minThreshold && average < bestAverage) {
+                bestStart = start;
+                bestEnd = end;
+                bestAverage = average;
+            }
+            start = end;
+        }
+        // Nothing is older than a run starting at the oldest table, unless deeper levels are left
+        final boolean onlyLevel = flushed.size() == ssTables.size();
+        if (bestStart < 0) {
+            if (onlyLevel
+                    && !flushed.isEmpty()
+                    && flushed.get(0).droppableRatio(Time.nowInNano()) > tombstoneThreshold) {
+                return Compaction.merge(new ArrayList<>(flushed.subList(0, 1)), 0, true, Long.MAX_VALUE);
+            }
+            return null;
+        }
+
+        final boolean oldest = bestStart == 0 && onlyLevel;
+        return Compaction.merge(new ArrayList<>(flushed.subList(bestStart, bestEnd)), 0, oldest, Long.MAX_VALUE);
+    }
+
+    /**
+     * Merges all the tables into a single one.
+     */
+    @NotNull
+    @Override
+    public Compaction major(@NotNull final List<SSTable> ssTables) {
+        return Compaction.merge(new ArrayList<>(ssTables), 0, true, Long.MAX_VALUE);
+    }
+}
@@ -0,0 +1,121 @@
+package ru.mail.polis.renuonego;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.function.LongConsumer;
+
+/**
+ * Append-only buffer which keeps up to its capacity in memory and spills the rest to a temporary file,
+ * so that metadata of a huge table being written doesn't have to fit the heap.
+ */
+final class SpillBuffer implements Closeable {
+    @NotNull
+    private final File file;
+    @NotNull
+    private final ByteBuffer buffer;
+    private FileChannel channel;
+    private long spilled;
+
+    SpillBuffer(@NotNull final File file, final int capacity) {
+        this.file = file;
+        this.buffer = ByteBuffer.allocate(capacity);
+    }
+
+    private void spill() throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(
+                    file.toPath(),
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            spilled += channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    void put(@NotNull final ByteBuffer src) throws IOException {
+        if (buffer.remaining() < src.remaining()) {
+            spill();
+        }
+        if (buffer.remaining() < src.remaining()) {
+            while (src.hasRemaining()) {
+                spilled += channel.write(src);
+            }
+        } else {
+            buffer.put(src);
+        }
+    }
+
+    void putLong(final long value) throws IOException {
+        if (buffer.remaining() < Long.BYTES) {
+            spill();
+        }
+        buffer.putLong(value);
+    }
+
+    long size() {
+        return spilled + buffer.position();
+    }
+
+    /**
+     * Appends the contents to the target channel.
+     *
+     * @param target is the channel to write to
+     * @throws IOException if an I/O error is thrown
+     */
+    void transferTo(@NotNull final FileChannel target) throws IOException {
+        long transferred = 0;
+        while (transferred < spilled) {
+            transferred += channel.transferTo(transferred, spilled - transferred, target);
+        }
+        final ByteBuffer rest = buffer.duplicate().flip();
+        while (rest.hasRemaining()) {
+            target.write(rest);
+        }
+    }
+
+    /**
+     * Reads the contents back as longs written by {@link #putLong(long)}.
+     *
+     * @param consumer receives the longs in order
+     * @throws IOException if an I/O error is thrown
+     */
+    void forEachLong(@NotNull final LongConsumer consumer) throws IOException {
+        if (spilled > 0) {
+            final ByteBuffer chunk = ByteBuffer.allocate(buffer.capacity());
+            long position = 0;
+            while (position < spilled) {
+                chunk.clear();
+                position += channel.read(chunk, position);
+                chunk.flip();
+                while (chunk.remaining() >= Long.BYTES) {
+                    consumer.accept(chunk.getLong());
+                }
+                position -= chunk.remaining();
+            }
+        }
+        final ByteBuffer rest = buffer.duplicate().flip();
+        while (rest.hasRemaining()) {
+            consumer.accept(rest.getLong());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+}
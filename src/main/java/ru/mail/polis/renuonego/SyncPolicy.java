@@ -0,0 +1,21 @@
+package ru.mail.polis.renuonego;
+
+/**
+ * Defines when {@link WriteAheadLog} records are forced to disk.
+ */
+public enum SyncPolicy {
+    /**
+     * Every write is forced before it is acknowledged.
+     */
+    ALWAYS,
+    /**
+     * Writes wait for a shared force, which covers every record appended
+     * within the group commit window or size limit.
+     */
+    GROUP,
+    /**
+     * Writes are acknowledged right away and the log is forced in the background
+     * once per sync period, so a crash loses at most one period of writes.
+     */
+    PERIODIC
+}
@@ -1,10 +1,12 @@
 package ru.mail.polis.renuonego;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Iterator;
+import java.util.List;
 
 interface Table {
     @NotNull
@@ -16,10 +18,117 @@ interface Table {
     @NotNull
     Iterator<Cell> reverseIterator() throws IOException;
 
+    /**
+     * Iterates over the cells from "from" (inclusive) until "to" (exclusive), stopping at "to"
+     * rather than reading the rest of the table.
+     *
+     * @param from is the first key
+     * @param to   is the key to stop at, or null to read until the end
+     * @return the cells in ascending order
+     */
+    @NotNull
+    default Iterator<Cell> iterator(@NotNull final ByteBuffer from,
+                                    @Nullable final ByteBuffer to) throws IOException {
+        final Iterator<Cell> cells = iterator(from);
+        return to == null ? cells : new BoundedIterator(cells, to, true);
+    }
+
+    /**
+     * Iterates backwards over the cells from "from" (inclusive) down to "to" (exclusive),
+     * stopping at "to" rather than reading the rest of the table.
+     *
+     * @param from is the first key, or null to start at the last one
+     * @param to   is the key to stop at, or null to read until the beginning
+     * @return the cells in descending order
+     */
+    @NotNull
+    default Iterator<Cell> reverseIterator(@Nullable final ByteBuffer from,
+                                           @Nullable final ByteBuffer to) throws IOException {
+        final Iterator<Cell> cells = from == null ? reverseIterator() : reverseIterator(from);
+        return to == null ? cells : new BoundedIterator(cells, to, false);
+    }
+
+    /**
+     * Looks up the newest value of the key in this table.
+     *
+     * @param key is the key to look up
+     * @return the value or tombstone, or null if the table knows nothing about the key
+     */
+    @Nullable
+    Value get(@NotNull final ByteBuffer key) throws IOException;
+
+    /**
+     * Looks up the newest values of many keys at once, which lets the table reuse
+     * the search bounds of a key for the next one.
+     *
+     * @param keys   are the keys to look up in ascending order
+     * @param values receive the values or tombstones of the keys, the ones already set are kept
+     */
+    default void get(@NotNull final List<ByteBuffer> keys,
+                     @NotNull final Value[] values) throws IOException {
+        for (int i = 0; i < keys.size(); i++) {
+            if (values[i] == null) {
+                values[i] = get(keys.get(i));
+            }
+        }
+    }
+
+    /**
+     * Stores the value, which readers skip once {@code expiresAt} comes.
+     */
     void upsert(@NotNull final ByteBuffer key,
-                @NotNull final ByteBuffer value) throws IOException;
+                @NotNull final ByteBuffer value,
+                final long timestamp,
+                final long expiresAt) throws IOException;
+
+    void remove(@NotNull final ByteBuffer key, final long timestamp) throws IOException;
 
-    void remove(@NotNull final ByteBuffer key) throws IOException;
+    /**
+     * Removes the keys from "from" (inclusive) until "to" (exclusive) written before the timestamp.
+     * The cells stay in the table, readers skip them by {@link #rangeTombstones()}.
+     */
+    void removeRange(@NotNull final ByteBuffer from,
+                     @NotNull final ByteBuffer to,
+                     final long timestamp) throws IOException;
+
+    /**
+     * Returns the range removals of this table, which apply to the cells of the older tables too.
+     *
+     * @return the tombstones
+     */
+    @NotNull
+    RangeTombstones rangeTombstones();
 
     long sizeInBytes() throws IOException;
+
+    /**
+     * Takes a reference, which keeps the table readable until released.
+     * Tables on heap need none, they are kept by the readers themselves.
+     *
+     * @return false if the table is already released by its last reference
+     */
+    default boolean acquire() {
+        return true;
+    }
+
+    /**
+     * Releases a reference taken by {@link #acquire()} or the one the table is created with.
+     *
+     * @throws IOException if the resources of the table can't be released
+     */
+    default void release() throws IOException {
+        // Nothing is held
+    }
+
+    /**
+     * Pins the view of the memtable as of the timestamp, which keeps seeing the cells written by then
+     * while the memtable takes newer writes. Must be called under the write lock of the storage.
+     *
+     * @param timestamp is the timestamp of the last write to see
+     * @return the view, having a reference taken by the caller
+     */
+    @NotNull
+    default MemTableView pin(final long timestamp) {
+        throw new UnsupportedOperationException("Only memtables are pinned");
+    }
 }
@@ -0,0 +1,168 @@
+package ru.mail.polis.renuonego;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Immutable snapshot of all the tables of {@link LSMDao}.
+ * Every mutation of the table structure produces a new instance,
+ * so readers may keep using the instance they have obtained
+ * once they {@link #acquire()} its {@link SSTable}s.
+ */
+final class TableSet {
+    @NotNull
+    final Table memTable;
+    /**
+     * Tables waiting to be flushed, oldest first.
+     */
+    @NotNull
+    final List<Table> flushing;
+    /**
+     * Tables on disk by level and newest first within a level,
+     * so a lookup may stop at the first table holding the key.
+     */
+    @NotNull
+    final List<SSTable> ssTables;
+    @NotNull
+    private final Supplier<Table> memTables;
+    /**
+     * All the tables above, which readers take references to.
+     */
+    @NotNull
+    private final List<Table> all;
+
+    private TableSet(@NotNull final Table memTable,
+                     @NotNull final List<Table> flushing,
+                     @NotNull final List<SSTable> ssTables,
+                     @NotNull final Supplier<Table> memTables) {
+        this.memTable = memTable;
+        this.flushing = Collections.unmodifiableList(flushing);
+        this.ssTables = Collections.unmodifiableList(ssTables);
+        this.memTables = memTables;
+        final List<Table> all = new ArrayList<>(1 + flushing.size() + ssTables.size());
+        all.add(memTable);
+        all.addAll(flushing);
+        all.addAll(ssTables);
+        this.all = all;
+    }
+
+    TableSet(@NotNull final Collection<SSTable> ssTables, @NotNull final Supplier<Table> memTables) {
+        this(memTables.get(), new ArrayList<>(), byRecency(ssTables), memTables);
+    }
+
+    @NotNull
+    private static List<SSTable> byRecency(@NotNull final Collection<SSTable> ssTables) {
+        final List<SSTable> result = new ArrayList<>(ssTables);
+        result.sort(Comparator.comparingInt(SSTable::level)
+                .thenComparing(Comparator.comparingLong(SSTable::maxTimestamp).reversed()));
+        return result;
+    }
+
+    /**
+     * Takes a reference to every table, so no {@link SSTable} is deleted, no memtable slab is freed
+     * and no view of the memtable is unpinned while the snapshot is in use.
+     *
+     * @return false, taking no references, if some table is already released by a newer snapshot
+     * @throws IOException if a table can't be released
+     */
+    boolean acquire() throws IOException {
+        for (int i = 0; i < all.size(); i++) {
+            if (!all.get(i).acquire()) {
+                for (int j = 0; j < i; j++) {
+                    all.get(j).release();
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Releases the references taken by {@link #acquire()}.
+     *
+     * @throws IOException if a table can't be released
+     */
+    void release() throws IOException {
+        IOException error = null;
+        for (final Table table : all) {
+            try {
+                table.release();
+            } catch (IOException e) {
+                if (error == null) {
+                    error = e;
+                } else {
+                    error.addSuppressed(e);
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Moves the current memtable to the flushing queue and replaces it with an empty one.
+     *
+     * @return new table set
+     */
+    @NotNull
+    TableSet markAsFlushing() {
+        final List<Table> newFlushing = new ArrayList<>(flushing);
+        newFlushing.add(memTable);
+        return new TableSet(memTables.get(), newFlushing, ssTables, memTables);
+    }
+
+    /**
+     * Replaces the memtable, which keeps taking writes, with its view, so none of the tables change.
+     *
+     * @param view is the view pinned on the memtable, whose reference is taken by {@link #acquire()}
+     * @return new table set reading the view
+     */
+    @NotNull
+    TableSet frozen(@NotNull final MemTableView view) {
+        return new TableSet(view, flushing, ssTables, memTables);
+    }
+
+    /**
+     * Replaces flushed table with its {@link SSTable}.
+     *
+     * @param flushed is the table taken from the flushing queue
+     * @param ssTable is the table written to disk
+     * @return new table set
+     */
+    @NotNull
+    TableSet flushed(@NotNull final Table flushed, @NotNull final SSTable ssTable) {
+        final List<Table> newFlushing = new ArrayList<>(flushing);
+        final boolean removed = newFlushing.remove(flushed);
+        assert removed;
+        final List<SSTable> newSSTables = new ArrayList<>(ssTables);
+        // Tables are flushed in order to level 0, so the flushed one is the newest
+        newSSTables.add(0, ssTable);
+        return new TableSet(memTable, newFlushing, newSSTables, memTables);
+    }
+
+    /**
+     * Replaces the compacted {@link SSTable}s with the result of compaction.
+     * Tables flushed meanwhile are kept.
+     *
+     * @param compacted are the inputs of compaction
+     * @param result    are the tables written by compaction
+     * @return new table set
+     */
+    @NotNull
+    TableSet compacted(@NotNull final Collection<SSTable> compacted,
+                       @NotNull final Collection<SSTable> result) {
+        final List<SSTable> newSSTables = new ArrayList<>(ssTables);
+        final boolean removed = newSSTables.removeAll(compacted);
+        assert removed || compacted.isEmpty();
+        newSSTables.addAll(result);
+        return new TableSet(memTable, flushing, byRecency(newSSTables), memTables);
+    }
+}
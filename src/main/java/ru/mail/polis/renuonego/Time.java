@@ -1,23 +1,46 @@
 package ru.mail.polis.renuonego;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 final class Time {
-    private static int countNanos;
-    private static long lastTimeInMillis;
+    private static final AtomicLong lastTimeInNano = new AtomicLong();
 
     private Time() {
     }
 
     /**
      * Checks current time in millis and counts nanoseconds.
+     * Safe to call from many threads: every call gets a distinct, growing value.
      *
      * @return Returns current time in nano seconds
      */
     static long currentTimeInNano() {
-        final long currentTimeMillis = System.currentTimeMillis();
-        if (lastTimeInMillis != currentTimeMillis) {
-            lastTimeInMillis = currentTimeMillis;
-            countNanos = 0;
-        }
-        return lastTimeInMillis * 1_000_000 + countNanos++;
+        final long currentTimeInNano = System.currentTimeMillis() * 1_000_000;
+        return lastTimeInNano.updateAndGet(last -> Math.max(last + 1, currentTimeInNano));
+    }
+
+    /**
+     * Takes the given number of consecutive timestamps at once, as if {@link #currentTimeInNano()}
+     * was called that many times in a row with no other calls in between.
+     *
+     * @param count is number of timestamps to take
+     * @return the first of the timestamps
+     */
+    static long currentTimeInNano(final int count) {
+        assert count > 0;
+        final long currentTimeInNano = System.currentTimeMillis() * 1_000_000;
+        final long lastTaken = lastTimeInNano.updateAndGet(
+                last -> Math.max(last + count, currentTimeInNano + count - 1));
+        return lastTaken - count + 1;
+    }
+
+    /**
+     * Reads the clock in the units of {@link #currentTimeInNano()} without taking a timestamp,
+     * to tell expired values from live ones.
+     *
+     * @return current time in nano seconds
+     */
+    static long nowInNano() {
+        return System.currentTimeMillis() * 1_000_000;
     }
 }
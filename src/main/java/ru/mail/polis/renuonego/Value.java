@@ -4,24 +4,34 @@ import org.jetbrains.annotations.NotNull;
 
 import java.nio.ByteBuffer;
 
-import static ru.mail.polis.renuonego.Time.currentTimeInNano;
-
 final class Value implements Comparable<Value> {
+    /**
+     * Expiry of the values which live until overwritten or removed.
+     */
+    static final long NEVER = Long.MAX_VALUE;
+
     private final long timestamp;
     private final ByteBuffer data;
+    private final long expiresAt;
 
     Value(final long timestamp, final ByteBuffer data) {
+        this(timestamp, data, NEVER);
+    }
+
+    Value(final long timestamp, final ByteBuffer data, final long expiresAt) {
         assert timestamp >= 0;
+        assert expiresAt > timestamp;
         this.timestamp = timestamp;
         this.data = data;
+        this.expiresAt = expiresAt;
     }
 
-    static Value of(final ByteBuffer data) {
-        return new Value(currentTimeInNano(), data.duplicate());
+    static Value of(final ByteBuffer data, final long timestamp, final long expiresAt) {
+        return new Value(timestamp, data.duplicate(), expiresAt);
     }
 
-    static Value tombstone() {
-        return new Value(currentTimeInNano(), null);
+    static Value tombstone(final long timestamp) {
+        return new Value(timestamp, null);
     }
 
     /**
@@ -42,6 +52,16 @@ final class Value implements Comparable<Value> {
         return data == null;
     }
 
+    /**
+     * Checks whether the value is gone by the given time, which readers treat as if it were removed.
+     *
+     * @param now is the current time as given by {@link Time#nowInNano()}
+     * @return true if the value is removed or expired
+     */
+    boolean isDeadAt(final long now) {
+        return data == null || expiresAt <= now;
+    }
+
     @Override
     public int compareTo(@NotNull final Value o) {
         return -Long.compare(timestamp, o.timestamp);
@@ -50,4 +70,8 @@ final class Value implements Comparable<Value> {
     long getTimeStamp() {
         return timestamp;
     }
+
+    long getExpiresAt() {
+        return expiresAt;
+    }
 }
@@ -0,0 +1,530 @@
+package ru.mail.polis.renuonego;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.mail.polis.WriteBatch;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of {@link LSMDao} modifications.
+ *
+ * <p>The log is split into segments, one per memtable generation, so a segment may be
+ * deleted as soon as the corresponding {@link SSTable} is published.
+ * Every record is framed as size (4), CRC32 of the payload (4) and payload:
+ * type (1), timestamp (8), key size (4), key and, for upserts, value size (4) and value.
+ * Range removals store the key the range ends before in place of the value,
+ * expiring upserts are followed by the expiry (8).
+ * A batch is a single record of type (1), timestamp of its first modification (8), number of modifications (4)
+ * and, for every one, type (1), key size (4), key and, for upserts, value size (4) and value,
+ * so it is replayed either as a whole or not at all.
+ * A torn record at the tail of a segment is detected by its size or checksum and ignored on replay.
+ */
+final class WriteAheadLog implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(WriteAheadLog.class);
+
+    static final String PREFIX = "WAL";
+    static final String SUFFIX = ".log";
+
+    private static final byte UPSERT = 1;
+    private static final byte REMOVE = 2;
+    private static final byte REMOVE_RANGE = 3;
+    private static final byte UPSERT_EXPIRING = 4;
+    private static final byte BATCH = 5;
+    private static final int HEADER = 2 * Integer.BYTES;
+    private static final int READ_BUFFER = 64 * 1024;
+
+    @NotNull
+    private final File base;
+    @NotNull
+    private final SyncPolicy policy;
+    private final long windowNanos;
+    private final long windowBytes;
+    private final long periodNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appended = lock.newCondition();
+    private final Condition synced = lock.newCondition();
+    private final Object syncLock = new Object();
+    @Nullable
+    private final Thread syncer;
+
+    private FileChannel channel;
+    private int generation;
+    private long written;
+    private long writtenBytes;
+    private long durable;
+    private long durableBytes;
+    private int waiting;
+    private boolean closed;
+
+    /**
+     * Opens a log writing to the segment of the given generation.
+     *
+     * @param base       is directory with segments
+     * @param generation is generation of the current memtable
+     * @param config     defines the sync policy
+     * @throws IOException if the segment can't be created
+     */
+    WriteAheadLog(@NotNull final File base,
+                  final int generation,
+                  @NotNull final Config config) throws IOException {
+        this.base = base;
+        this.policy = config.syncPolicy;
+        this.windowNanos = config.groupCommitWindow.toNanos();
+        this.windowBytes = config.groupCommitBytes;
+        this.periodNanos = config.syncPeriod.toNanos();
+        this.generation = generation;
+        this.channel = open(segment(base, generation));
+
+        if (policy == SyncPolicy.ALWAYS) {
+            this.syncer = null;
+        } else {
+            this.syncer = new ThreadFactoryBuilder()
+                    .setNameFormat("lsm-wal-sync-%d")
+                    .setDaemon(true)
+                    .build()
+                    .newThread(this::syncLoop);
+            this.syncer.start();
+        }
+    }
+
+    @NotNull
+    static File segment(@NotNull final File base, final int generation) {
+        return new File(base, PREFIX + generation + SUFFIX);
+    }
+
+    @NotNull
+    private static FileChannel open(@NotNull final File file) throws IOException {
+        return FileChannel.open(
+                file.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Appends upsert record.
+     *
+     * @return sequence number to pass to {@link #sync(long)}
+     */
+    long upsert(@NotNull final ByteBuffer key,
+                @NotNull final ByteBuffer value,
+                final long timestamp,
+                final long expiresAt) throws IOException {
+        if (expiresAt == Value.NEVER) {
+            return append(encode(UPSERT, key, value, timestamp, expiresAt));
+        }
+        return append(encode(UPSERT_EXPIRING, key, value, timestamp, expiresAt));
+    }
+
+    /**
+     * Appends remove record.
+     *
+     * @return sequence number to pass to {@link #sync(long)}
+     */
+    long remove(@NotNull final ByteBuffer key, final long timestamp) throws IOException {
+        return append(encode(REMOVE, key, null, timestamp, Value.NEVER));
+    }
+
+    /**
+     * Appends range remove record.
+     *
+     * @return sequence number to pass to {@link #sync(long)}
+     */
+    long removeRange(@NotNull final ByteBuffer from,
+                     @NotNull final ByteBuffer to,
+                     final long timestamp) throws IOException {
+        return append(encode(REMOVE_RANGE, from, to, timestamp, Value.NEVER));
+    }
+
+    /**
+     * Appends the batch as a single record, its modifications taking consecutive timestamps.
+     *
+     * @param batch     is the batch to append
+     * @param timestamp is the timestamp of the first modification
+     * @return sequence number to pass to {@link #sync(long)}
+     */
+    long batch(@NotNull final WriteBatch batch, final long timestamp) throws IOException {
+        return append(encode(batch, timestamp));
+    }
+
+    @NotNull
+    private static ByteBuffer encode(@NotNull final WriteBatch batch, final long timestamp) throws IOException {
+        // Removals have no value size, so the record may come out shorter
+        final long maxPayloadSize = Byte.BYTES + Long.BYTES + Integer.BYTES
+                + batch.size() * (long) (Byte.BYTES + 2 * Integer.BYTES)
+                + batch.sizeInBytes();
+        if (maxPayloadSize > Integer.MAX_VALUE - HEADER) {
+            throw new IllegalArgumentException("Too large batch of " + batch.sizeInBytes() + " bytes");
+        }
+        final ByteBuffer record = ByteBuffer.allocate(HEADER + (int) maxPayloadSize);
+        record.position(HEADER);
+        record.put(BATCH);
+        record.putLong(timestamp);
+        record.putInt(batch.size());
+        batch.forEach(new WriteBatch.Handler() {
+            @Override
+            public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
+                record.put(UPSERT);
+                record.putInt(key.remaining());
+                record.put(key);
+                record.putInt(value.remaining());
+                record.put(value);
+            }
+
+            @Override
+            public void remove(@NotNull final ByteBuffer key) {
+                record.put(REMOVE);
+                record.putInt(key.remaining());
+                record.put(key);
+            }
+        });
+        return frame(record);
+    }
+
+    @NotNull
+    private static ByteBuffer encode(final byte type,
+                                     @NotNull final ByteBuffer key,
+                                     @Nullable final ByteBuffer value,
+                                     final long timestamp,
+                                     final long expiresAt) {
+        final int payloadSize = Byte.BYTES + Long.BYTES + Integer.BYTES + key.remaining()
+                + (value == null ? 0 : Integer.BYTES + value.remaining())
+                + (type == UPSERT_EXPIRING ? Long.BYTES : 0);
+        final ByteBuffer record = ByteBuffer.allocate(HEADER + payloadSize);
+        record.position(HEADER);
+        record.put(type);
+        record.putLong(timestamp);
+        record.putInt(key.remaining());
+        record.put(key.duplicate());
+        if (value != null) {
+            record.putInt(value.remaining());
+            record.put(value.duplicate());
+        }
+        if (type == UPSERT_EXPIRING) {
+            record.putLong(expiresAt);
+        }
+        return frame(record);
+    }
+
+    /**
+     * Puts the size and checksum of the payload written after the header.
+     */
+    @NotNull
+    private static ByteBuffer frame(@NotNull final ByteBuffer record) {
+        final int payloadSize = record.position() - HEADER;
+        final CRC32 crc = new CRC32();
+        crc.update(record.duplicate().flip().position(HEADER));
+        record.putInt(0, payloadSize);
+        record.putInt(Integer.BYTES, (int) crc.getValue());
+        return record.flip();
+    }
+
+    private long append(@NotNull final ByteBuffer record) throws IOException {
+        final int size = record.remaining();
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IOException("Log is closed");
+            }
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+            written++;
+            writtenBytes += size;
+            if (policy == SyncPolicy.ALWAYS) {
+                channel.force(false);
+                durable = written;
+                durableBytes = writtenBytes;
+            } else if (policy == SyncPolicy.GROUP) {
+                appended.signal();
+            }
+            return written;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the record with the given sequence number is durable, if the policy requires so.
+     *
+     * @param sequence is the number returned by an append
+     * @throws IOException if interrupted or the log is closed before the record is forced
+     */
+    void sync(final long sequence) throws IOException {
+        if (policy != SyncPolicy.GROUP) {
+            return;
+        }
+        lock.lock();
+        waiting++;
+        try {
+            while (durable < sequence) {
+                if (closed) {
+                    throw new IOException("Log is closed");
+                }
+                synced.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for sync", e);
+        } finally {
+            waiting--;
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Switches to the segment of the next memtable generation.
+     * The previous segment is forced and kept until {@link #delete(int)}.
+     *
+     * @param newGeneration is generation of the new memtable
+     * @throws IOException if the new segment can't be created
+     */
+    void rotate(final int newGeneration) throws IOException {
+        final FileChannel newChannel = open(segment(base, newGeneration));
+        final FileChannel oldChannel;
+        final long oldWritten;
+        final long oldWrittenBytes;
+        lock.lock();
+        try {
+            oldChannel = channel;
+            oldWritten = written;
+            oldWrittenBytes = writtenBytes;
+            channel = newChannel;
+            generation = newGeneration;
+        } finally {
+            lock.unlock();
+        }
+
+        synchronized (syncLock) {
+            oldChannel.force(false);
+            oldChannel.close();
+        }
+        markDurable(oldWritten, oldWrittenBytes);
+    }
+
+    /**
+     * Deletes the segment once its contents are persisted elsewhere.
+     *
+     * @param segmentGeneration is generation of the flushed memtable
+     * @throws IOException if the segment can't be deleted
+     */
+    void delete(final int segmentGeneration) throws IOException {
+        assert segmentGeneration != generation;
+        Files.deleteIfExists(segment(base, segmentGeneration).toPath());
+    }
+
+    private void markDurable(final long sequence, final long bytes) {
+        lock.lock();
+        try {
+            if (sequence > durable) {
+                durable = sequence;
+                durableBytes = bytes;
+                synced.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void syncLoop() {
+        try {
+            while (true) {
+                final FileChannel target;
+                final long sequence;
+                final long bytes;
+                lock.lock();
+                try {
+                    if (policy == SyncPolicy.GROUP) {
+                        awaitGroup();
+                    } else {
+                        awaitPeriod();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    if (written == durable) {
+                        continue;
+                    }
+                    target = channel;
+                    sequence = written;
+                    bytes = writtenBytes;
+                } finally {
+                    lock.unlock();
+                }
+
+                synchronized (syncLock) {
+                    // Rotation forces and closes the segment itself
+                    if (target.isOpen()) {
+                        target.force(false);
+                    }
+                }
+                markDurable(sequence, bytes);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            log.error("Can't sync write-ahead log", e);
+            lock.lock();
+            try {
+                closed = true;
+                synced.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Waits for the first pending record. If other writers are waiting too, they are
+     * given a window to join the group unless enough bytes are already pending.
+     * A lone writer is synced right away: records arriving during its force form the next group anyway.
+     */
+    private void awaitGroup() throws InterruptedException {
+        while (written == durable && !closed) {
+            appended.await();
+        }
+        long remaining = windowNanos;
+        while (remaining > 0 && waiting > 1 && writtenBytes - durableBytes < windowBytes && !closed) {
+            remaining = appended.awaitNanos(remaining);
+        }
+    }
+
+    private void awaitPeriod() throws InterruptedException {
+        long remaining = periodNanos;
+        while (remaining > 0 && !closed) {
+            remaining = appended.awaitNanos(remaining);
+        }
+    }
+
+    /**
+     * Replays the segment into the given table record by record, reading it through a buffer of bounded size.
+     * Every record is read into its own buffer, which the table may keep.
+     *
+     * @param file  is the segment
+     * @param table is the table receiving the records
+     * @return number of replayed records
+     * @throws IOException if the segment can't be read
+     */
+    static int replay(@NotNull final File file, @NotNull final Table table) throws IOException {
+        int records = 0;
+        long position = 0;
+        final long size = file.length();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file.toPath()), READ_BUFFER))) {
+            while (size - position >= HEADER) {
+                final int payloadSize = in.readInt();
+                final int checksum = in.readInt();
+                if (payloadSize <= 0 || payloadSize > size - position - HEADER) {
+                    break;
+                }
+                final byte[] payload = new byte[payloadSize];
+                in.readFully(payload);
+                final CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                apply(ByteBuffer.wrap(payload), table);
+                position += HEADER + payloadSize;
+                records++;
+            }
+        }
+        if (position < size) {
+            log.warn("Ignoring {} bytes of torn records at the end of {}", size - position, file);
+        }
+        return records;
+    }
+
+    private static void apply(@NotNull final ByteBuffer payload, @NotNull final Table table) throws IOException {
+        final byte type = payload.get();
+        final long timestamp = payload.getLong();
+        if (type == BATCH) {
+            final int count = payload.getInt();
+            for (int i = 0; i < count; i++) {
+                apply(payload.get(), timestamp + i, payload, table);
+            }
+        } else {
+            apply(type, timestamp, payload, table);
+        }
+    }
+
+    private static void apply(final byte type,
+                              final long timestamp,
+                              @NotNull final ByteBuffer payload,
+                              @NotNull final Table table) throws IOException {
+        final ByteBuffer key = slice(payload);
+        switch (type) {
+            case UPSERT:
+                table.upsert(key, slice(payload), timestamp, Value.NEVER);
+                break;
+            case UPSERT_EXPIRING:
+                table.upsert(key, slice(payload), timestamp, payload.getLong());
+                break;
+            case REMOVE:
+                table.remove(key, timestamp);
+                break;
+            case REMOVE_RANGE:
+                table.removeRange(key, slice(payload), timestamp);
+                break;
+            default:
+                throw new IOException("Unknown record type " + type);
+        }
+    }
+
+    @NotNull
+    private static ByteBuffer slice(@NotNull final ByteBuffer payload) {
+        final int size = payload.getInt();
+        final ByteBuffer result = payload.slice().limit(size);
+        payload.position(payload.position() + size);
+        return result;
+    }
+
+    /**
+     * Forces and closes the current segment.
+     * The segment is deleted if nothing was written to it.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            appended.signalAll();
+            synced.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (syncer != null) {
+            try {
+                syncer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while closing", e);
+            }
+        }
+
+        synchronized (syncLock) {
+            channel.force(false);
+            final boolean empty = channel.size() == 0;
+            channel.close();
+            if (empty) {
+                Files.delete(segment(base, generation).toPath());
+            }
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of {@link AsyncDAO} over {@link DAO} implementations.
+ */
+class AsyncDAOTest extends TestBase {
+    private static final int KEYS = 1000;
+
+    private static Throwable failure(final CompletableFuture<?> future) {
+        return assertThrows(ExecutionException.class, future::get).getCause();
+    }
+
+    @Test
+    void roundTrip(@TempDir File data) throws Exception {
+        final Map<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (AsyncDAO dao = AsyncDAO.builder(DAOFactory.create(data)).build()) {
+            final List<CompletableFuture<Void>> writes = new ArrayList<>();
+            for (int i = 0; i < KEYS; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                writes.add(dao.upsertAsync(key, value));
+                expected.put(key, value);
+            }
+            CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).get();
+
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.getAsync(entry.getKey()).get());
+            }
+            assertTrue(failure(dao.getAsync(randomKey())) instanceof NoSuchElementException);
+
+            final List<Record> records = dao.rangeAsync(ByteBuffer.allocate(0), null, 10).get();
+            assertEquals(10, records.size());
+            final Iterator<Map.Entry<ByteBuffer, ByteBuffer>> entries = expected.entrySet().iterator();
+            for (final Record record : records) {
+                final Map.Entry<ByteBuffer, ByteBuffer> entry = entries.next();
+                assertEquals(entry.getKey(), record.getKey());
+                assertEquals(entry.getValue(), record.getValue());
+            }
+
+            final ByteBuffer removed = expected.keySet().iterator().next();
+            dao.removeAsync(removed).get();
+            dao.compactAsync().get();
+            assertTrue(failure(dao.getAsync(removed)) instanceof NoSuchElementException);
+            assertEquals(KEYS - 1, dao.multiGetAsync(expected.keySet()).get().size());
+        }
+    }
+
+    @Test
+    void rejectsWhenQueueFull() throws Exception {
+        final BlockingDAO blocking = new BlockingDAO();
+        try (AsyncDAO dao = AsyncDAO.builder(blocking).reads(1, 1).build()) {
+            final CompletableFuture<ByteBuffer> running = dao.getAsync(randomKey());
+            blocking.started.await();
+            final CompletableFuture<ByteBuffer> queued = dao.getAsync(randomKey());
+            final CompletableFuture<ByteBuffer> rejected = dao.getAsync(randomKey());
+            assertTrue(rejected.isCompletedExceptionally());
+            assertTrue(failure(rejected) instanceof RejectedExecutionException);
+
+            // Writes have their own executor
+            dao.upsertAsync(randomKey(), blocking.value).get();
+
+            blocking.proceed.countDown();
+            assertEquals(blocking.value, running.get());
+            assertEquals(blocking.value, queued.get());
+        }
+    }
+
+    @Test
+    void writesOfKeyInOrder(@TempDir File data) throws Exception {
+        final ByteBuffer key = randomKey();
+        try (AsyncDAO dao = AsyncDAO.builder(DAOFactory.create(data)).writes(4, KEYS).build()) {
+            final List<CompletableFuture<Void>> writes = new ArrayList<>();
+            ByteBuffer value = null;
+            for (int i = 0; i < KEYS; i++) {
+                value = randomValue();
+                writes.add(dao.upsertAsync(key, value));
+            }
+            CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).get();
+            assertEquals(value, dao.getAsync(key).get());
+        }
+    }
+
+    @Test
+    void rangeRemovalsBetweenWrites(@TempDir File data) throws Exception {
+        try (AsyncDAO dao = AsyncDAO.builder(DAOFactory.create(data)).writes(4, KEYS).build()) {
+            final List<ByteBuffer> keys = new ArrayList<>();
+            final List<CompletableFuture<Void>> writes = new ArrayList<>();
+            for (int i = 0; i < KEYS / 10; i++) {
+                final ByteBuffer key = randomKey();
+                keys.add(key);
+                writes.add(dao.upsertAsync(key, randomValue()));
+            }
+            // Greater than any of the keys
+            final byte[] last = new byte[KEY_LENGTH + 1];
+            Arrays.fill(last, Byte.MAX_VALUE);
+            writes.add(dao.removeRangeAsync(ByteBuffer.allocate(0), ByteBuffer.wrap(last)));
+            final ByteBuffer kept = keys.get(keys.size() / 2);
+            final ByteBuffer value = randomValue();
+            writes.add(dao.upsertAsync(kept, value));
+            CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).get();
+
+            final List<Record> records = dao.rangeAsync(ByteBuffer.allocate(0), null, KEYS).get();
+            assertEquals(1, records.size());
+            assertEquals(kept, records.get(0).getKey());
+            assertEquals(value, records.get(0).getValue());
+        }
+    }
+
+    @Test
+    void closesStorageWhenInterrupted() throws Exception {
+        final BlockingDAO blocking = new BlockingDAO();
+        final AsyncDAO dao = AsyncDAO.builder(blocking).build();
+        final CompletableFuture<ByteBuffer> running = dao.getAsync(randomKey());
+        blocking.started.await();
+
+        Thread.currentThread().interrupt();
+        try {
+            assertThrows(IOException.class, dao::close);
+        } finally {
+            assertTrue(Thread.interrupted());
+            blocking.proceed.countDown();
+        }
+        assertTrue(blocking.closed);
+        assertEquals(blocking.value, running.get());
+    }
+
+    /**
+     * Storage which blocks reads until they are let to proceed.
+     */
+    private static final class BlockingDAO implements DAO {
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch proceed = new CountDownLatch(1);
+        private final ByteBuffer value = randomValue();
+        private volatile boolean closed;
+
+        @NotNull
+        @Override
+        public Iterator<Record> iterator(@NotNull final ByteBuffer from) {
+            return Iters.empty();
+        }
+
+        @NotNull
+        @Override
+        public ByteBuffer get(@NotNull final ByteBuffer key) throws IOException {
+            started.countDown();
+            try {
+                proceed.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+            return value;
+        }
+
+        @Override
+        public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
+            // Not used
+        }
+
+        @Override
+        public void remove(@NotNull final ByteBuffer key) {
+            // Not used
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
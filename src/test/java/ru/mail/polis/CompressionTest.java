@@ -0,0 +1,146 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.renuonego.Compression;
+import ru.mail.polis.renuonego.Config;
+import ru.mail.polis.renuonego.LSMDao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Block compression and block cache tests for {@link LSMDao}.
+ */
+class CompressionTest extends TestBase {
+    private static final int KEYS = 1000;
+
+    private static ByteBuffer document(final int i) {
+        final String json = "{\"id\":" + i + ",\"name\":\"user" + i + "\",\"tags\":[\"a\",\"b\",\"c\"],"
+                + "\"description\":\"" + "lorem ipsum dolor sit amet ".repeat(20) + "\"}";
+        return ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.allocate(Integer.BYTES).putInt(0, i);
+    }
+
+    private static long diskUsage(final File data) {
+        final File[] files = data.listFiles();
+        assertTrue(files != null);
+        long size = 0;
+        for (final File file : files) {
+            size += file.length();
+        }
+        return size;
+    }
+
+    @Test
+    void compressibleValues(@TempDir File data) throws IOException {
+        long rawSize = 0;
+        try (DAO dao = DAOFactory.create(data)) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(key(i), document(i));
+                rawSize += Integer.BYTES + document(i).remaining();
+            }
+            dao.compact();
+        }
+
+        assertTrue(diskUsage(data) < rawSize / 3);
+        try (DAO dao = DAOFactory.create(data)) {
+            for (int i = 0; i < KEYS; i++) {
+                assertEquals(document(i), dao.get(key(i)));
+            }
+        }
+    }
+
+    @Test
+    void mixedCodecs(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> expected = new HashMap<>();
+        for (final Compression compression : Compression.values()) {
+            try (DAO dao = new LSMDao(data, Config.builder().compression(compression).build())) {
+                for (int i = 0; i < KEYS; i++) {
+                    final ByteBuffer key = randomKey();
+                    final ByteBuffer value = i % 2 == 0 ? document(i) : randomValue();
+                    dao.upsert(key, value);
+                    expected.put(key, value);
+                }
+            }
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+            dao.compact();
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+        }
+    }
+
+    @Test
+    void scanResistantCache(@TempDir File data) throws IOException {
+        final int keys = 5000;
+        try (DAO dao = DAOFactory.create(data)) {
+            for (int i = 0; i < keys; i++) {
+                dao.upsert(key(i), document(i));
+            }
+        }
+
+        for (final boolean offHeap : new boolean[]{false, true}) {
+            final Config config = Config.builder()
+                    .blockCacheSize(1024 * 1024)
+                    .offHeapBlockCache(offHeap)
+                    .build();
+            try (LSMDao dao = new LSMDao(data, config)) {
+                // Second hit protects the blocks
+                for (int round = 0; round < 2; round++) {
+                    for (int i = 0; i < 10; i++) {
+                        assertEquals(document(i), dao.get(key(i)));
+                    }
+                }
+                final long hits = dao.blockCacheHits();
+                assertTrue(hits > 0);
+
+                final Iterator<Record> scan = dao.iterator(ByteBuffer.allocate(0));
+                int scanned = 0;
+                while (scan.hasNext()) {
+                    scan.next();
+                    scanned++;
+                }
+                assertEquals(keys, scanned);
+
+                final long misses = dao.blockCacheMisses();
+                for (int i = 0; i < 10; i++) {
+                    assertEquals(document(i), dao.get(key(i)));
+                }
+                assertEquals(misses, dao.blockCacheMisses());
+            }
+        }
+    }
+}
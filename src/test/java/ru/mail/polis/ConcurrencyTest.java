@@ -0,0 +1,194 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Multi-threaded tests for {@link DAO} implementations.
+ */
+class ConcurrencyTest extends TestBase {
+    private static final int THREADS = 8;
+    private static final int KEYS_PER_THREAD = 1000;
+
+    @NotNull
+    private static ByteBuffer keyOf(final int thread, final int i) {
+        final ByteBuffer key = ByteBuffer.allocate(2 * Integer.BYTES);
+        key.putInt(thread);
+        key.putInt(i);
+        key.rewind();
+        return key;
+    }
+
+    private static void runAll(@NotNull final Collection<Callable<Void>> tasks) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+        try {
+            final List<Future<Void>> futures = new ArrayList<>();
+            for (final Callable<Void> task : tasks) {
+                futures.add(executor.submit(task));
+            }
+            for (final Future<Void> future : futures) {
+                future.get(1, TimeUnit.MINUTES);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void concurrentUpserts(@TempDir File data) throws Exception {
+        try (DAO dao = DAOFactory.create(data)) {
+            final Collection<Callable<Void>> writers = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                final int thread = t;
+                writers.add(() -> {
+                    for (int i = 0; i < KEYS_PER_THREAD; i++) {
+                        final ByteBuffer key = keyOf(thread, i);
+                        final ByteBuffer value = join(key, randomValue());
+                        dao.upsert(key, value);
+                        assertEquals(value, dao.get(key));
+                    }
+                    return null;
+                });
+            }
+            runAll(writers);
+
+            // Every key is visible exactly once and in order
+            final SortedSet<ByteBuffer> keys = new TreeSet<>();
+            for (int t = 0; t < THREADS; t++) {
+                for (int i = 0; i < KEYS_PER_THREAD; i++) {
+                    keys.add(keyOf(t, i));
+                }
+            }
+            final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+            for (final ByteBuffer key : keys) {
+                assertTrue(records.hasNext());
+                assertEquals(key, records.next().getKey());
+            }
+            assertFalse(records.hasNext());
+        }
+
+        // And survives reopen
+        try (DAO dao = DAOFactory.create(data)) {
+            for (int t = 0; t < THREADS; t++) {
+                for (int i = 0; i < KEYS_PER_THREAD; i++) {
+                    final ByteBuffer key = keyOf(t, i);
+                    assertEquals(key, dao.get(key).limit(key.remaining()));
+                }
+            }
+        }
+    }
+
+    @Test
+    void concurrentRemoves(@TempDir File data) throws Exception {
+        try (DAO dao = DAOFactory.create(data)) {
+            for (int t = 0; t < THREADS; t++) {
+                for (int i = 0; i < KEYS_PER_THREAD; i++) {
+                    dao.upsert(keyOf(t, i), randomValue());
+                }
+            }
+
+            final Collection<Callable<Void>> removers = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                final int thread = t;
+                removers.add(() -> {
+                    for (int i = 0; i < KEYS_PER_THREAD; i += 2) {
+                        dao.remove(keyOf(thread, i));
+                    }
+                    return null;
+                });
+            }
+            runAll(removers);
+
+            for (int t = 0; t < THREADS; t++) {
+                for (int i = 0; i < KEYS_PER_THREAD; i++) {
+                    final ByteBuffer key = keyOf(t, i);
+                    if (i % 2 == 0) {
+                        assertThrows(NoSuchElementException.class, () -> dao.get(key));
+                    } else {
+                        assertEquals(randomValue().remaining(), dao.get(key).remaining());
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void readersDuringWrites(@TempDir File data) throws Exception {
+        final int keyCount = 100;
+        final int rounds = 50;
+
+        try (DAO dao = DAOFactory.create(data)) {
+            final SortedSet<ByteBuffer> keys = new TreeSet<>();
+            for (int i = 0; i < keyCount; i++) {
+                keys.add(keyOf(0, i));
+                dao.upsert(keyOf(0, i), randomValue());
+            }
+
+            final Collection<Callable<Void>> tasks = new ArrayList<>();
+            for (int t = 0; t < THREADS / 2; t++) {
+                tasks.add(() -> {
+                    for (int round = 0; round < rounds; round++) {
+                        for (int i = 0; i < keyCount; i++) {
+                            dao.upsert(keyOf(0, i), randomValue());
+                        }
+                    }
+                    return null;
+                });
+                tasks.add(() -> {
+                    for (int round = 0; round < rounds; round++) {
+                        // Every key is always present, once and in order
+                        final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+                        for (final ByteBuffer key : keys) {
+                            assertTrue(records.hasNext());
+                            assertEquals(key, records.next().getKey());
+                        }
+                        assertFalse(records.hasNext());
+                    }
+                    return null;
+                });
+            }
+            tasks.add(() -> {
+                dao.compact();
+                return null;
+            });
+            runAll(tasks);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of values with time to live for {@link DAO} implementations.
+ */
+class ExpiryTest extends TestBase {
+    private static final Duration SHORT = Duration.ofMillis(100);
+    private static final Duration LONG = Duration.ofHours(1);
+
+    private static void awaitExpiry() throws InterruptedException {
+        Thread.sleep(2 * SHORT.toMillis());
+    }
+
+    @Test
+    void expiredValueHidden(@TempDir File data) throws Exception {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(key, randomValue());
+            dao.upsert(key, value, SHORT);
+            assertEquals(value, dao.get(key));
+
+            awaitExpiry();
+            // Not even the overwritten value is seen
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            assertFalse(dao.iterator(ByteBuffer.allocate(0)).hasNext());
+            assertFalse(dao.reverseIterator().hasNext());
+        }
+    }
+
+    @Test
+    void overwriteKeepsValue(@TempDir File data) throws Exception {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(key, randomValue(), SHORT);
+            dao.upsert(key, value);
+            awaitExpiry();
+            assertEquals(value, dao.get(key));
+        }
+    }
+
+    @Test
+    void expiryPersisted(@TempDir File data) throws Exception {
+        final ByteBuffer shortKey = randomKey();
+        final ByteBuffer longKey = randomKey();
+        final ByteBuffer value = randomValue();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(shortKey, value, SHORT);
+            dao.upsert(longKey, value, LONG);
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(longKey));
+            awaitExpiry();
+            assertThrows(NoSuchElementException.class, () -> dao.get(shortKey));
+            assertEquals(value, dao.get(longKey));
+        }
+    }
+
+    @Test
+    void compactionDropsExpired(@TempDir File data) throws Exception {
+        try (DAO dao = DAOFactory.create(data)) {
+            for (int i = 0; i < 100; i++) {
+                dao.upsert(randomKey(), randomValue(), SHORT);
+            }
+        }
+
+        awaitExpiry();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.compact();
+            assertFalse(dao.iterator(ByteBuffer.allocate(0)).hasNext());
+        }
+
+        final String[] names = data.list();
+        assertTrue(names != null);
+        for (final String name : names) {
+            assertFalse(name.matches("SSTABLE\\d+\\.dat"));
+        }
+    }
+
+    @Test
+    void nonPositiveTtl(@TempDir File data) throws IOException {
+        try (DAO dao = DAOFactory.create(data)) {
+            assertThrows(IllegalArgumentException.class,
+                    () -> dao.upsert(randomKey(), randomValue(), Duration.ZERO));
+        }
+    }
+}
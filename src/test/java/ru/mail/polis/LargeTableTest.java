@@ -0,0 +1,98 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.renuonego.Config;
+import ru.mail.polis.renuonego.LSMDao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of {@link DAO} tables larger than 2 GB.
+ * Take several GB of disk and minutes to run, so enabled with {@code -Dlsm.large=true} only.
+ */
+@EnabledIfSystemProperty(named = "lsm.large", matches = "true")
+class LargeTableTest extends TestBase {
+    private static final int KEY_SIZE = 1024;
+    // More than 2^31 bytes of keys
+    private static final int KEYS = (int) ((1L << 31) / KEY_SIZE) + 1024;
+
+    private static Config config() {
+        // Compaction splits its output into tables of the target size, so it must fit the whole table
+        return Config.builder()
+                .targetTableSize(4L << 30)
+                .build();
+    }
+
+    private static ByteBuffer key(final int i) {
+        // Incompressible, so that the table takes more than 2 GB on disk
+        final byte[] key = new byte[KEY_SIZE];
+        new Random(i).nextBytes(key);
+        // Flipped sign bits make signed byte order match the order of i
+        return ByteBuffer.wrap(key).putInt(0, i ^ 0x80808080);
+    }
+
+    private static ByteBuffer value(final int i) {
+        return ByteBuffer.allocate(Integer.BYTES).putInt(0, ~i);
+    }
+
+    @Test
+    void compactedTable(@TempDir File data) throws IOException {
+        try (DAO dao = new LSMDao(data, config())) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(key(i), value(i));
+            }
+            dao.compact();
+        }
+
+        final Set<String> tables = tables(data);
+        assertEquals(1, tables.size());
+        assertTrue(new File(data, tables.iterator().next()).length() > Integer.MAX_VALUE);
+
+        try (DAO dao = new LSMDao(data, config())) {
+            for (int i = 0; i < KEYS; i += KEYS / 1000) {
+                assertEquals(value(i), dao.get(key(i)));
+            }
+            assertEquals(value(KEYS - 1), dao.get(key(KEYS - 1)));
+
+            final Iterator<Record> records = dao.iterator(key(KEYS / 2));
+            for (int i = KEYS / 2; i < KEYS; i++) {
+                final Record record = records.next();
+                assertEquals(key(i), record.getKey());
+                assertEquals(value(i), record.getValue());
+            }
+            assertFalse(records.hasNext());
+
+            final Iterator<Record> reverse = dao.reverseIterator();
+            for (int i = KEYS - 1; i >= KEYS - 1000; i--) {
+                assertEquals(key(i), reverse.next().getKey());
+            }
+        }
+    }
+}
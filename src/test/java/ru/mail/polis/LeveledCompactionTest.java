@@ -0,0 +1,134 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis;
+
+import com.google.common.collect.Iterators;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.renuonego.Compression;
+import ru.mail.polis.renuonego.Config;
+import ru.mail.polis.renuonego.LSMDao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Leveled compaction tests for {@link LSMDao}.
+ */
+class LeveledCompactionTest extends TestBase {
+    private static final long TARGET_TABLE_SIZE = 64 * 1024;
+
+    private static Config.Builder config() {
+        return Config.builder()
+                .flushThreshold(32 * 1024)
+                .compression(Compression.NONE)
+                .targetTableSize(TARGET_TABLE_SIZE)
+                .levelSize(256 * 1024, 4);
+    }
+
+    private static ByteBuffer smallValue() {
+        return randomValue().limit(100);
+    }
+
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.allocate(Integer.BYTES).putInt(0, i);
+    }
+
+    @Test
+    void boundedTables(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> expected = new HashMap<>();
+        try (DAO dao = new LSMDao(data, config().level0CompactionTrigger(2).build())) {
+            for (int i = 0; i < 20_000; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = smallValue();
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+        }
+
+        // Levels are kept by the manifest, so only the sizes are visible from the directory
+        for (final String name : tables(data)) {
+            assertTrue(new File(data, name).length() < 2 * TARGET_TABLE_SIZE);
+        }
+
+        try (DAO dao = new LSMDao(data, config().build())) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+            assertEquals(expected.size(), Iterators.size(dao.iterator(ByteBuffer.allocate(0))));
+        }
+    }
+
+    @Test
+    void disjointTablesMoved(@TempDir File data) throws IOException {
+        final ByteBuffer value = smallValue();
+        try (DAO dao = new LSMDao(data, config().level0CompactionTrigger(1).build())) {
+            for (int i = 0; i < 60; i++) {
+                dao.upsert(key(i), value);
+            }
+        }
+        final Set<String> before = tables(data);
+        assertEquals(1, before.size());
+
+        try (DAO dao = new LSMDao(data, config().level0CompactionTrigger(1).build())) {
+            for (int i = 60; i < 120; i++) {
+                dao.upsert(key(i), value);
+            }
+        }
+        final Set<String> after = tables(data);
+        assertEquals(2, after.size());
+        assertTrue(after.containsAll(before));
+    }
+
+    @Test
+    void overlappingTablesMerged(@TempDir File data) throws IOException {
+        final ByteBuffer value = smallValue();
+        try (DAO dao = new LSMDao(data, config().level0CompactionTrigger(1).build())) {
+            for (int i = 0; i < 100; i += 2) {
+                dao.upsert(key(i), value);
+            }
+        }
+        final Set<String> before = tables(data);
+
+        final ByteBuffer newValue = smallValue();
+        try (DAO dao = new LSMDao(data, config().level0CompactionTrigger(1).build())) {
+            for (int i = 1; i < 100; i += 2) {
+                dao.upsert(key(i), newValue);
+            }
+            dao.remove(key(0));
+        }
+        final Set<String> after = tables(data);
+        after.retainAll(before);
+        assertTrue(after.isEmpty());
+
+        try (DAO dao = new LSMDao(data, config().build())) {
+            assertThrows(NoSuchElementException.class, () -> dao.get(key(0)));
+            for (int i = 1; i < 100; i++) {
+                assertEquals(i % 2 == 0 ? value : newValue, dao.get(key(i)));
+            }
+        }
+    }
+}
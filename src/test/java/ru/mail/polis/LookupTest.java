@@ -0,0 +1,159 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis;
+
+import com.google.common.collect.Iterators;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Point lookup tests for {@link DAO} implementations spanning many tables.
+ */
+class LookupTest extends TestBase {
+    private static final int TABLES = 10;
+    private static final int KEYS_PER_TABLE = 100;
+
+    private static Map<ByteBuffer, ByteBuffer> fill(final File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> expected = new HashMap<>();
+        for (int table = 0; table < TABLES; table++) {
+            try (DAO dao = DAOFactory.create(data)) {
+                for (int i = 0; i < KEYS_PER_TABLE; i++) {
+                    final ByteBuffer key = randomKey();
+                    final ByteBuffer value = randomValue();
+                    dao.upsert(key, value);
+                    expected.put(key, value);
+                }
+            }
+        }
+        return expected;
+    }
+
+    @Test
+    void hitsAndMisses(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> expected = fill(data);
+
+        try (DAO dao = DAOFactory.create(data)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+            for (int i = 0; i < 1000; i++) {
+                final ByteBuffer missing = randomKey();
+                assertThrows(NoSuchElementException.class, () -> dao.get(missing));
+            }
+        }
+    }
+
+    /**
+     * Writes a table of the original format: cells, their offsets and the number of cells.
+     */
+    private static void writeLegacyTable(
+            final File file,
+            final NavigableMap<ByteBuffer, ByteBuffer> cells) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+        final List<Long> offsets = new ArrayList<>();
+        long timestamp = 1;
+        for (final Map.Entry<ByteBuffer, ByteBuffer> cell : cells.entrySet()) {
+            offsets.add((long) buffer.position());
+            buffer.putInt(cell.getKey().remaining()).put(cell.getKey().duplicate());
+            if (cell.getValue() == null) {
+                buffer.putLong(-timestamp++);
+            } else {
+                buffer.putLong(timestamp++);
+                buffer.putInt(cell.getValue().remaining()).put(cell.getValue().duplicate());
+            }
+        }
+        for (final long offset : offsets) {
+            buffer.putLong(offset);
+        }
+        buffer.putLong(offsets.size());
+        java.nio.file.Files.write(file.toPath(), Arrays.copyOf(buffer.array(), buffer.position()));
+    }
+
+    @Test
+    void legacyTables(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> legacy = new TreeMap<>();
+        for (int i = 0; i < 100; i++) {
+            legacy.put(randomKey(), randomValue());
+        }
+        final ByteBuffer removed = randomKey();
+        legacy.put(removed, null);
+        writeLegacyTable(new File(data, "SSTABLE1.dat"), legacy);
+
+        final ByteBuffer updated = legacy.firstKey();
+        final ByteBuffer value = randomValue();
+        try (DAO dao = DAOFactory.create(data)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : legacy.entrySet()) {
+                if (entry.getValue() != null) {
+                    assertEquals(entry.getValue(), dao.get(entry.getKey()));
+                }
+            }
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+            dao.upsert(updated, value);
+        }
+
+        // Legacy and new tables together, then compacted to the new format
+        for (int i = 0; i < 2; i++) {
+            try (DAO dao = DAOFactory.create(data)) {
+                assertEquals(value, dao.get(updated));
+                assertEquals(legacy.lastEntry().getValue(), dao.get(legacy.lastKey()));
+                assertEquals(legacy.size() - 1, Iterators.size(dao.iterator(ByteBuffer.allocate(0))));
+                dao.compact();
+            }
+        }
+    }
+
+    @Test
+    void newestVersionWins(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer removed = randomKey();
+        ByteBuffer value = null;
+        for (int table = 0; table < TABLES; table++) {
+            try (DAO dao = DAOFactory.create(data)) {
+                value = randomValue();
+                dao.upsert(key, value);
+                if (table % 2 == 0) {
+                    dao.upsert(removed, randomValue());
+                } else {
+                    dao.remove(removed);
+                }
+                if (table == TABLES / 2) {
+                    dao.compact();
+                }
+            }
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(key));
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+        }
+    }
+}
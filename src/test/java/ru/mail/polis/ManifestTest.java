@@ -0,0 +1,145 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of the manifest naming the tables of {@link DAO}.
+ */
+class ManifestTest extends TestBase {
+    private static final String MANIFEST = "MANIFEST";
+
+    private static File onlyTable(final File data) {
+        final File[] files = data.listFiles((dir, name) -> name.matches("SSTABLE\\d+\\.dat"));
+        assertTrue(files != null);
+        assertEquals(1, files.length);
+        return files[0];
+    }
+
+    private static ByteBuffer key(final String prefix, final int i) {
+        return ByteBuffer.wrap((prefix + i).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    void tablesOpenedOnceRead(@TempDir File data) throws IOException {
+        final String[] prefixes = {"a", "b"};
+        final Map<ByteBuffer, ByteBuffer> expected = new HashMap<>();
+        for (final String prefix : prefixes) {
+            try (DAO dao = DAOFactory.create(data)) {
+                for (int i = 0; i < 100; i++) {
+                    final ByteBuffer value = randomValue();
+                    dao.upsert(key(prefix, i), value);
+                    if ("b".equals(prefix)) {
+                        expected.put(key(prefix, i), value);
+                    }
+                }
+            }
+        }
+
+        // The table of the first round is unreadable, but the manifest tells it holds none of the keys read
+        final File[] tables = data.listFiles((dir, name) -> name.matches("SSTABLE\\d+\\.dat"));
+        assertTrue(tables != null);
+        assertEquals(2, tables.length);
+        Arrays.sort(tables, Comparator.comparingInt(file -> Integer.parseInt(file.getName().replaceAll("\\D", ""))));
+        final byte[] garbage = new byte[(int) tables[0].length()];
+        Arrays.fill(garbage, (byte) 0x7F);
+        Files.write(tables[0].toPath(), garbage);
+
+        try (DAO dao = DAOFactory.create(data)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+            assertThrows(NoSuchElementException.class, () -> dao.get(key("c", 0)));
+        }
+    }
+
+    @Test
+    void leftoverTableIgnored(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(key, randomValue());
+        }
+        final byte[] stale = Files.readAllBytes(onlyTable(data).toPath());
+
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.remove(key);
+            dao.compact();
+        }
+
+        // Looks like the output of a compaction interrupted before it was logged
+        final File leftover = new File(data, "SSTABLE1000.dat");
+        Files.write(leftover.toPath(), stale);
+        try (DAO dao = DAOFactory.create(data)) {
+            assertFalse(leftover.exists());
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+        }
+    }
+
+    @Test
+    void tornTailIgnored(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> expected = new HashMap<>();
+        for (int round = 0; round < 2; round++) {
+            try (DAO dao = DAOFactory.create(data)) {
+                for (int i = 0; i < 100; i++) {
+                    final ByteBuffer key = randomKey();
+                    final ByteBuffer value = randomValue();
+                    dao.upsert(key, value);
+                    expected.put(key, value);
+                }
+            }
+
+            // A crash in the middle of an edit
+            final ByteBuffer torn = ByteBuffer.allocate(16).putInt(0, 1024).putInt(Integer.BYTES, 42);
+            Files.write(new File(data, MANIFEST).toPath(), torn.array(), StandardOpenOption.APPEND);
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+        }
+    }
+
+    @Test
+    void missingTableReported(@TempDir File data) throws IOException {
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(randomKey(), randomValue());
+        }
+        Files.delete(onlyTable(data).toPath());
+
+        assertThrows(IOException.class, () -> DAOFactory.create(data));
+    }
+}
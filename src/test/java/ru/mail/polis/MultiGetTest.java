@@ -0,0 +1,119 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.renuonego.Config;
+import ru.mail.polis.renuonego.LSMDao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of {@link DAO#multiGet(java.util.Collection)} against single lookups.
+ */
+class MultiGetTest extends TestBase {
+    private static final int KEYS = 1000;
+    private static final int ROUNDS = 4;
+
+    private static ByteBuffer key(final int i) {
+        // Decimal keys sort as numbers
+        return ByteBuffer.wrap(String.format("%05d", i).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static ByteBuffer value() {
+        return randomValue().limit(16);
+    }
+
+    private static Config config() {
+        // Small blocks of several cells, so the keys looked up together span many of them
+        return Config.builder()
+                .blockSize(256)
+                .build();
+    }
+
+    /**
+     * Spreads versions, removals and a range removal of the keys over several tables and the memtable.
+     */
+    private static void fill(final File data) throws IOException {
+        for (int round = 0; round < ROUNDS; round++) {
+            try (DAO dao = new LSMDao(data, config())) {
+                for (int i = round; i < KEYS; i += 2) {
+                    if (i % 7 == round) {
+                        dao.remove(key(i));
+                    } else {
+                        dao.upsert(key(i), value());
+                    }
+                }
+                if (round == 1) {
+                    dao.removeRange(key(KEYS / 2), key(KEYS / 2 + 50));
+                }
+            }
+        }
+    }
+
+    private static void assertSameAsGet(final DAO dao, final List<ByteBuffer> keys) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> expected = new HashMap<>();
+        for (final ByteBuffer key : keys) {
+            try {
+                expected.put(key, dao.get(key));
+            } catch (NoSuchElementException e) {
+                // Absent from the result too
+            }
+        }
+        assertEquals(expected, dao.multiGet(keys));
+    }
+
+    @Test
+    void sameAsGet(@TempDir File data) throws IOException {
+        fill(data);
+        try (DAO dao = new LSMDao(data, config())) {
+            for (int i = 0; i < KEYS; i += 3) {
+                dao.upsert(key(i), value());
+            }
+
+            // Unsorted, with duplicates and keys out of the stored range
+            final List<ByteBuffer> keys = new ArrayList<>();
+            for (int i = 0; i < KEYS + 10; i++) {
+                keys.add(key(i));
+            }
+            keys.addAll(keys.subList(0, KEYS / 10));
+            Collections.shuffle(keys);
+            assertSameAsGet(dao, keys);
+            assertTrue(dao.multiGet(keys).size() < KEYS);
+            assertFalse(dao.multiGet(keys).isEmpty());
+
+            dao.compact();
+            assertSameAsGet(dao, keys);
+            assertSameAsGet(dao, keys.subList(0, 1));
+            assertEquals(Collections.emptyMap(), dao.multiGet(Collections.emptyList()));
+        }
+    }
+}
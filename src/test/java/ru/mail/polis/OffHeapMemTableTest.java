@@ -0,0 +1,245 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.renuonego.Config;
+import ru.mail.polis.renuonego.LSMDao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests of {@link LSMDao} keeping its memtables in direct memory slabs.
+ * Unless stated otherwise, the data stays in the memtable, which holds a megabyte per slab.
+ */
+class OffHeapMemTableTest extends TestBase {
+    private static final int SLAB_SIZE = 1024 * 1024;
+    private static final int THREADS = 8;
+    private static final int KEYS = 1000;
+
+    private static Config config(final long flushThreshold) {
+        return Config.builder()
+                .offHeapMemTable(true)
+                .flushThreshold(flushThreshold)
+                .build();
+    }
+
+    private static Config unflushed() {
+        return config(64 * SLAB_SIZE);
+    }
+
+    @NotNull
+    private static ByteBuffer keyOf(final int thread, final int i) {
+        return ByteBuffer.allocate(2 * Integer.BYTES).putInt(0, thread).putInt(Integer.BYTES, i);
+    }
+
+    private static void assertContents(@NotNull final DAO dao,
+                                       @NotNull final NavigableMap<ByteBuffer, ByteBuffer> expected)
+            throws IOException {
+        final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            final Record record = records.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(records.hasNext());
+
+        final Iterator<Record> reversed = dao.reverseIterator();
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.descendingMap().entrySet()) {
+            final Record record = reversed.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(reversed.hasNext());
+    }
+
+    @Test
+    void callerBuffersReused(@TempDir File data) throws IOException {
+        final ByteBuffer key = ByteBuffer.allocate(Integer.BYTES);
+        final ByteBuffer value = ByteBuffer.allocate(2 * Integer.BYTES);
+        try (DAO dao = new LSMDao(data, unflushed())) {
+            for (int i = 0; i < KEYS; i++) {
+                key.putInt(0, i);
+                value.putInt(0, i).putInt(Integer.BYTES, -i);
+                dao.upsert(key, value);
+            }
+            key.putInt(0, -1);
+            value.putInt(0, -1);
+
+            for (int i = 0; i < KEYS; i++) {
+                final ByteBuffer expected = ByteBuffer.allocate(2 * Integer.BYTES)
+                        .putInt(0, i)
+                        .putInt(Integer.BYTES, -i);
+                assertEquals(expected, dao.get(ByteBuffer.allocate(Integer.BYTES).putInt(0, i)));
+            }
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+        }
+    }
+
+    @Test
+    void concurrentUpsertsAndRemoves(@TempDir File data) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try (DAO dao = new LSMDao(data, unflushed())) {
+            final List<Future<NavigableMap<ByteBuffer, ByteBuffer>>> writers = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                final int thread = t;
+                writers.add(executor.submit(() -> {
+                    final NavigableMap<ByteBuffer, ByteBuffer> written = new TreeMap<>();
+                    for (int i = 0; i < KEYS; i++) {
+                        final ByteBuffer key = keyOf(thread, i);
+                        final ByteBuffer value = randomValue().limit(64);
+                        dao.upsert(key, value);
+                        written.put(key, value);
+                        if (i % 3 == 0) {
+                            final ByteBuffer removed = keyOf(thread, i / 2);
+                            dao.remove(removed);
+                            written.remove(removed);
+                        }
+                    }
+                    return written;
+                }));
+            }
+            final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+            for (final Future<NavigableMap<ByteBuffer, ByteBuffer>> writer : writers) {
+                expected.putAll(writer.get(1, TimeUnit.MINUTES));
+            }
+            assertContents(dao, expected);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void reverseAcrossSlabs(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = new LSMDao(data, unflushed())) {
+            // Several slabs worth of entries
+            for (int i = 0; i < 4 * SLAB_SIZE / 1024; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+            assertContents(dao, expected);
+
+            final ByteBuffer middle = expected.keySet().toArray(new ByteBuffer[0])[expected.size() / 2];
+            final Iterator<Record> records = dao.reverseIterator(middle);
+            final NavigableMap<ByteBuffer, ByteBuffer> head = expected.headMap(middle, true).descendingMap();
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : head.entrySet()) {
+                final Record record = records.next();
+                assertEquals(entry.getKey(), record.getKey());
+                assertEquals(entry.getValue(), record.getValue());
+            }
+            assertFalse(records.hasNext());
+        }
+    }
+
+    @Test
+    void entryLargerThanSlab(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = new LSMDao(data, unflushed())) {
+            for (int i = 0; i < 3; i++) {
+                final ByteBuffer small = randomKey();
+                final ByteBuffer smallValue = randomValue();
+                dao.upsert(small, smallValue);
+                expected.put(small, smallValue);
+
+                final ByteBuffer large = randomKey();
+                final ByteBuffer largeValue = randomBuffer(SLAB_SIZE + SLAB_SIZE / 2);
+                dao.upsert(large, largeValue);
+                expected.put(large, largeValue);
+            }
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+            assertContents(dao, expected);
+        }
+    }
+
+    @Test
+    void flushedAndReopened(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        // Several flushes of off-heap memtables
+        try (DAO dao = new LSMDao(data, config(SLAB_SIZE / 4))) {
+            for (int i = 0; i < KEYS; i++) {
+                final ByteBuffer key = keyOf(0, i);
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+            for (int i = 0; i < KEYS; i += 10) {
+                dao.remove(keyOf(0, i));
+                expected.remove(keyOf(0, i));
+            }
+            dao.removeRange(keyOf(0, KEYS / 2), keyOf(0, KEYS / 2 + 100));
+            expected.subMap(keyOf(0, KEYS / 2), keyOf(0, KEYS / 2 + 100)).clear();
+            assertContents(dao, expected);
+        }
+
+        try (DAO dao = new LSMDao(data, unflushed())) {
+            assertContents(dao, expected);
+        }
+    }
+
+    @Test
+    void snapshotOutlivesFlush(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (LSMDao dao = new LSMDao(data, config(SLAB_SIZE / 4))) {
+            for (int i = 0; i < KEYS / 10; i++) {
+                final ByteBuffer key = keyOf(0, i);
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+            try (Snapshot snapshot = dao.snapshot()) {
+                final Iterator<Record> records = snapshot.iterator(ByteBuffer.allocate(0));
+                // The storage releases the flushed memtables, while the snapshot and its iterator read them
+                for (int i = 0; i < KEYS; i++) {
+                    dao.upsert(keyOf(0, i), randomValue());
+                }
+                dao.awaitCompactions();
+
+                for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                    final Record record = records.next();
+                    assertEquals(entry.getKey(), record.getKey());
+                    assertEquals(entry.getValue(), record.getValue());
+                    assertEquals(entry.getValue(), snapshot.get(entry.getKey()));
+                }
+                assertFalse(records.hasNext());
+            }
+        }
+    }
+}
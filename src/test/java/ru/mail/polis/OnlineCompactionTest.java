@@ -0,0 +1,158 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.renuonego.Config;
+import ru.mail.polis.renuonego.LSMDao;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of compaction running alongside reads and writes of {@link DAO}.
+ * Table counts are checked once {@link LSMDao#awaitCompactions()} returns, so background compactions
+ * don't race with the checks.
+ */
+class OnlineCompactionTest extends TestBase {
+    private static final int ROUNDS = 3;
+    private static final int KEYS = 100;
+
+    private static LSMDao open(final File data) throws IOException {
+        return new LSMDao(data, Config.builder().build());
+    }
+
+    private static Map<ByteBuffer, ByteBuffer> fill(final File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        for (int round = 0; round < ROUNDS; round++) {
+            try (LSMDao dao = open(data)) {
+                for (int i = 0; i < KEYS; i++) {
+                    final ByteBuffer key = randomKey();
+                    final ByteBuffer value = randomValue();
+                    dao.upsert(key, value);
+                    expected.put(key, value);
+                }
+            }
+        }
+        assertEquals(ROUNDS, tables(data).size());
+        return expected;
+    }
+
+    @Test
+    void iteratorOutlivesCompaction(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> expected = fill(data);
+        try (LSMDao dao = open(data)) {
+            final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+            final Iterator<Map.Entry<ByteBuffer, ByteBuffer>> entries = expected.entrySet().iterator();
+            for (int i = 0; i < KEYS; i++) {
+                final Record record = records.next();
+                final Map.Entry<ByteBuffer, ByteBuffer> entry = entries.next();
+                assertEquals(entry.getKey(), record.getKey());
+                assertEquals(entry.getValue(), record.getValue());
+            }
+
+            dao.compact();
+            dao.awaitCompactions();
+            assertEquals(ROUNDS + 1, tables(data).size());
+
+            while (entries.hasNext()) {
+                final Record record = records.next();
+                final Map.Entry<ByteBuffer, ByteBuffer> entry = entries.next();
+                assertEquals(entry.getKey(), record.getKey());
+                assertEquals(entry.getValue(), record.getValue());
+            }
+            assertFalse(records.hasNext());
+            assertEquals(1, tables(data).size());
+        }
+    }
+
+    @Test
+    void abandonedIteratorReleased(@TempDir File data) throws Exception {
+        fill(data);
+        try (LSMDao dao = open(data);
+             WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            data.toPath().register(watcher, StandardWatchEventKinds.ENTRY_DELETE);
+            // Held until the compaction is checked, so that no collection releases the tables earlier
+            final AtomicReference<Iterator<Record>> records =
+                    new AtomicReference<>(dao.iterator(ByteBuffer.allocate(0)));
+            assertTrue(records.get().hasNext());
+            dao.compact();
+            dao.awaitCompactions();
+            assertEquals(ROUNDS + 1, tables(data).size());
+
+            // The iterator releases the tables it has pinned once collected, on the thread of the cleaner
+            final WeakReference<Iterator<Record>> abandoned = new WeakReference<>(records.getAndSet(null));
+            for (int attempt = 0; attempt < 100 && abandoned.get() != null; attempt++) {
+                System.gc();
+            }
+            assertNull(abandoned.get());
+            while (tables(data).size() > 1) {
+                final WatchKey deleted = watcher.poll(1, TimeUnit.MINUTES);
+                assertNotNull(deleted);
+                deleted.pollEvents();
+                deleted.reset();
+            }
+        }
+    }
+
+    @Test
+    void writesDuringCompaction(@TempDir File data) throws Exception {
+        final Map<ByteBuffer, ByteBuffer> expected = fill(data);
+        final ExecutorService writer = Executors.newSingleThreadExecutor();
+        try (LSMDao dao = open(data)) {
+            final Future<Map<ByteBuffer, ByteBuffer>> written = writer.submit(() -> {
+                final Map<ByteBuffer, ByteBuffer> result = new TreeMap<>();
+                for (int i = 0; i < 10 * KEYS; i++) {
+                    final ByteBuffer key = randomKey();
+                    final ByteBuffer value = randomValue();
+                    dao.upsert(key, value);
+                    result.put(key, value);
+                }
+                return result;
+            });
+            dao.compact();
+            expected.putAll(written.get());
+
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+        } finally {
+            writer.shutdown();
+        }
+    }
+}
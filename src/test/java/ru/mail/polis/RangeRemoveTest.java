@@ -0,0 +1,245 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis;
+
+import com.google.common.collect.Iterators;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.renuonego.Compression;
+import ru.mail.polis.renuonego.Config;
+import ru.mail.polis.renuonego.LSMDao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Range removal tests for {@link DAO} implementations.
+ */
+class RangeRemoveTest extends TestBase {
+    private static final int KEYS = 100;
+
+    private static ByteBuffer key(final int i) {
+        // Decimal keys sort as numbers
+        return ByteBuffer.wrap(String.format("%05d", i).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static void fill(final DAO dao, final ByteBuffer value) throws IOException {
+        for (int i = 0; i < KEYS; i++) {
+            dao.upsert(key(i), value);
+        }
+    }
+
+    private static void assertRemoved(final DAO dao,
+                                      final int from,
+                                      final int to,
+                                      final ByteBuffer value) throws IOException {
+        for (int i = 0; i < KEYS; i++) {
+            final ByteBuffer key = key(i);
+            if (from <= i && i < to) {
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            } else {
+                assertEquals(value, dao.get(key));
+            }
+        }
+
+        final Iterator<Record> records = dao.iterator(key(0));
+        for (int i = 0; i < KEYS; i++) {
+            if (i == from) {
+                i = to;
+            }
+            assertEquals(key(i), records.next().getKey());
+        }
+        assertFalse(records.hasNext());
+
+        final Iterator<Record> reversed = dao.reverseIterator();
+        for (int i = KEYS - 1; i >= 0; i--) {
+            if (i == to - 1) {
+                i = from - 1;
+            }
+            assertEquals(key(i), reversed.next().getKey());
+        }
+        assertFalse(reversed.hasNext());
+    }
+
+    @Test
+    void memTable(@TempDir File data) throws IOException {
+        final ByteBuffer value = randomValue();
+        try (DAO dao = DAOFactory.create(data)) {
+            fill(dao, value);
+            dao.removeRange(key(10), key(20));
+            assertRemoved(dao, 10, 20, value);
+        }
+    }
+
+    @Test
+    void flushedData(@TempDir File data) throws IOException {
+        final ByteBuffer value = randomValue();
+        try (DAO dao = DAOFactory.create(data)) {
+            fill(dao, value);
+        }
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.removeRange(key(10), key(20));
+            assertRemoved(dao, 10, 20, value);
+        }
+        try (DAO dao = DAOFactory.create(data)) {
+            assertRemoved(dao, 10, 20, value);
+        }
+    }
+
+    @Test
+    void overlappingRanges(@TempDir File data) throws IOException {
+        final ByteBuffer value = randomValue();
+        try (DAO dao = DAOFactory.create(data)) {
+            fill(dao, value);
+            dao.removeRange(key(10), key(20));
+        }
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.removeRange(key(15), key(30));
+            assertRemoved(dao, 10, 30, value);
+        }
+    }
+
+    @Test
+    void newerWritesKept(@TempDir File data) throws IOException {
+        final ByteBuffer value = randomValue();
+        final ByteBuffer newValue = randomValue();
+        try (DAO dao = DAOFactory.create(data)) {
+            fill(dao, value);
+            dao.removeRange(key(0), key(KEYS));
+            dao.upsert(key(42), newValue);
+        }
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(newValue, dao.get(key(42)));
+            assertThrows(NoSuchElementException.class, () -> dao.get(key(41)));
+            assertEquals(1, Iterators.size(dao.iterator(key(0))));
+            dao.compact();
+            assertEquals(newValue, dao.get(key(42)));
+            assertEquals(1, Iterators.size(dao.iterator(key(0))));
+        }
+    }
+
+    @Test
+    void compactionDropsCoveredData(@TempDir File data) throws IOException {
+        final ByteBuffer value = randomValue();
+        try (DAO dao = DAOFactory.create(data)) {
+            fill(dao, value);
+        }
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.removeRange(key(0), key(KEYS));
+            dao.compact();
+            assertFalse(dao.iterator(key(0)).hasNext());
+        }
+
+        final String[] names = data.list();
+        assertTrue(names != null);
+        for (final String name : names) {
+            assertFalse(name.matches("SSTABLE\\d+\\.dat"));
+        }
+    }
+
+    @Test
+    void splitByCompaction(@TempDir File data) throws IOException {
+        // Tables are cut to the target size, both the removed range and the data span many of them
+        final Config config = Config.builder()
+                .flushThreshold(32 * 1024)
+                .compression(Compression.NONE)
+                .targetTableSize(16 * 1024)
+                .level0CompactionTrigger(2)
+                .build();
+        final ByteBuffer value = randomValue().limit(100);
+        final int keys = 5_000;
+        try (DAO dao = new LSMDao(data, config)) {
+            for (int i = 0; i < keys; i++) {
+                dao.upsert(key(i), value);
+            }
+            dao.removeRange(key(1_000), key(4_000));
+            for (int i = 0; i < keys; i += 100) {
+                dao.upsert(key(i), value);
+            }
+        }
+
+        try (DAO dao = new LSMDao(data, config)) {
+            for (int round = 0; round < 2; round++) {
+                for (int i = 0; i < keys; i++) {
+                    final ByteBuffer key = key(i);
+                    if (1_000 <= i && i < 4_000 && i % 100 != 0) {
+                        assertThrows(NoSuchElementException.class, () -> dao.get(key));
+                    } else {
+                        assertEquals(value, dao.get(key));
+                    }
+                }
+                assertEquals(keys - 3_000 + 30, Iterators.size(dao.iterator(key(0))));
+                dao.compact();
+            }
+        }
+    }
+
+    @Test
+    void manyOverlappingRanges(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        final Random random = new Random(42);
+        for (int round = 0; round < 3; round++) {
+            try (DAO dao = DAOFactory.create(data)) {
+                for (int op = 0; op < 1000; op++) {
+                    final int from = random.nextInt(KEYS);
+                    if (random.nextBoolean()) {
+                        final ByteBuffer value = randomValue();
+                        dao.upsert(key(from), value);
+                        expected.put(key(from), value);
+                    } else {
+                        final int to = from + 1 + random.nextInt(10);
+                        dao.removeRange(key(from), key(to));
+                        expected.keySet().removeIf(
+                                key -> key(from).compareTo(key) <= 0 && key.compareTo(key(to)) < 0);
+                    }
+                }
+
+                // Memtable tombstones merged with the flushed ones
+                final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+                for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                    final Record record = records.next();
+                    assertEquals(entry.getKey(), record.getKey());
+                    assertEquals(entry.getValue(), record.getValue());
+                }
+                assertFalse(records.hasNext());
+            }
+        }
+    }
+
+    @Test
+    void emptyRange(@TempDir File data) throws IOException {
+        final ByteBuffer value = randomValue();
+        try (DAO dao = DAOFactory.create(data)) {
+            fill(dao, value);
+            dao.removeRange(key(20), key(10));
+            dao.removeRange(key(20), key(20));
+            assertEquals(KEYS, Iterators.size(dao.iterator(key(0))));
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.renuonego.Config;
+import ru.mail.polis.renuonego.LSMDao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Bounded range tests for {@link DAO} implementations, forward and backward.
+ */
+class RangeTest extends TestBase {
+    private static final int KEYS = 100;
+    private static final int ROUNDS = 3;
+
+    private static ByteBuffer key(final int i) {
+        // Decimal keys sort as numbers
+        return ByteBuffer.wrap(String.format("%05d", i).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static ByteBuffer value(final int i) {
+        return ByteBuffer.wrap(("value" + i).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Spreads the keys over several tables and the memtable, so every range crosses all of them.
+     */
+    private static void fill(final File data, final Config config) throws IOException {
+        for (int round = 0; round < ROUNDS; round++) {
+            try (DAO dao = new LSMDao(data, config)) {
+                for (int i = round; i < KEYS; i += ROUNDS) {
+                    dao.upsert(key(i), randomValue());
+                }
+            }
+        }
+    }
+
+    private static void assertKeys(final Iterator<Record> records,
+                                   final int from,
+                                   final int to,
+                                   final int step) {
+        for (int i = from; i != to; i += step) {
+            final Record record = records.next();
+            assertEquals(key(i), record.getKey());
+            assertEquals(value(i), record.getValue());
+        }
+        assertFalse(records.hasNext());
+    }
+
+    private static void checkRanges(final File data, final Config config) throws IOException {
+        fill(data, config);
+        try (DAO dao = new LSMDao(data, config)) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(key(i), value(i));
+            }
+
+            assertKeys(dao.range(key(20), key(40)), 20, 40, 1);
+            assertKeys(dao.range(key(90), null), 90, KEYS, 1);
+            assertKeys(dao.range(key(20), key(20)), 20, 20, 1);
+            assertKeys(dao.range(key(40), key(20)), 40, 40, 1);
+
+            assertKeys(dao.reverseRange(key(40), key(20)), 40, 20, -1);
+            assertKeys(dao.reverseRange(null, key(90)), KEYS - 1, 90, -1);
+            assertKeys(dao.reverseRange(key(9), null), 9, -1, -1);
+            assertKeys(dao.reverseRange(key(20), key(20)), 20, 20, -1);
+            assertKeys(dao.reverseRange(key(20), key(40)), 20, 20, -1);
+
+            try (Snapshot snapshot = dao.snapshot()) {
+                assertKeys(snapshot.range(key(20), key(40)), 20, 40, 1);
+                assertKeys(snapshot.reverseRange(key(40), key(20)), 40, 20, -1);
+            }
+        }
+    }
+
+    @Test
+    void rangesOverTables(@TempDir File data) throws IOException {
+        checkRanges(data, Config.builder().build());
+    }
+
+    @Test
+    void rangesOverOffHeapMemTable(@TempDir File data) throws IOException {
+        checkRanges(data, Config.builder().offHeapMemTable(true).build());
+    }
+}
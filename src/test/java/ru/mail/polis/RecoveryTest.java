@@ -0,0 +1,198 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Crash recovery tests for {@link DAO} implementations.
+ */
+class RecoveryTest extends TestBase {
+    @Test
+    void unflushedUpserts(
+            @TempDir File data,
+            @TempDir File image) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> expected = new HashMap<>();
+        try (DAO dao = DAOFactory.create(data)) {
+            for (int i = 0; i < 100; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+            crashImage(data, image);
+        }
+
+        try (DAO dao = DAOFactory.create(image)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+        }
+    }
+
+    @Test
+    void unflushedRemoves(
+            @TempDir File data,
+            @TempDir File image) throws IOException {
+        final ByteBuffer key = randomKey();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(key, randomValue());
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.remove(key);
+            crashImage(data, image);
+        }
+
+        try (DAO dao = DAOFactory.create(image)) {
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+        }
+    }
+
+    @Test
+    void unflushedRangeRemoves(
+            @TempDir File data,
+            @TempDir File image) throws IOException {
+        final ByteBuffer value = randomValue();
+        try (DAO dao = DAOFactory.create(data)) {
+            for (int i = 0; i < 100; i++) {
+                dao.upsert(ByteBuffer.allocate(Integer.BYTES).putInt(0, i), value);
+            }
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.removeRange(
+                    ByteBuffer.allocate(Integer.BYTES).putInt(0, 10),
+                    ByteBuffer.allocate(Integer.BYTES).putInt(0, 90));
+            crashImage(data, image);
+        }
+
+        try (DAO dao = DAOFactory.create(image)) {
+            for (int i = 0; i < 100; i++) {
+                final ByteBuffer key = ByteBuffer.allocate(Integer.BYTES).putInt(0, i);
+                if (10 <= i && i < 90) {
+                    assertThrows(NoSuchElementException.class, () -> dao.get(key));
+                } else {
+                    assertEquals(value, dao.get(key));
+                }
+            }
+        }
+    }
+
+    @Test
+    void unflushedExpiringUpserts(
+            @TempDir File data,
+            @TempDir File image) throws Exception {
+        final ByteBuffer shortKey = randomKey();
+        final ByteBuffer longKey = randomKey();
+        final ByteBuffer value = randomValue();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(shortKey, value, Duration.ofMillis(100));
+            dao.upsert(longKey, value, Duration.ofHours(1));
+            crashImage(data, image);
+        }
+
+        Thread.sleep(200);
+        try (DAO dao = DAOFactory.create(image)) {
+            assertThrows(NoSuchElementException.class, () -> dao.get(shortKey));
+            assertEquals(value, dao.get(longKey));
+        }
+    }
+
+    @Test
+    void manyFlushes(
+            @TempDir File data,
+            @TempDir File image) throws IOException {
+        // Enough data for several flushes, some of them in progress at the crash
+        final int keyCount = 10_000;
+        final ByteBuffer value = randomValue();
+        try (DAO dao = DAOFactory.create(data)) {
+            for (int i = 0; i < keyCount; i++) {
+                dao.upsert(ByteBuffer.allocate(Integer.BYTES).putInt(0, i), value);
+            }
+            crashImage(data, image);
+        }
+
+        try (DAO dao = DAOFactory.create(image)) {
+            for (int i = 0; i < keyCount; i++) {
+                assertEquals(value, dao.get(ByteBuffer.allocate(Integer.BYTES).putInt(0, i)));
+            }
+        }
+    }
+
+    @Test
+    void logLargerThanHeap(
+            @TempDir File data,
+            @TempDir File image) throws IOException {
+        // Overwrites keep the memtable small, so it is never flushed while the log outgrows the heap
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomBuffer(64 * 1024);
+        try (DAO dao = DAOFactory.create(data)) {
+            final long heap = Runtime.getRuntime().maxMemory();
+            for (long written = 0; written <= heap; written += value.remaining()) {
+                dao.upsert(key, value);
+            }
+            crashImage(data, image);
+        }
+
+        try (DAO dao = DAOFactory.create(image)) {
+            assertEquals(value, dao.get(key));
+        }
+    }
+
+    @Test
+    void tornTail(
+            @TempDir File data,
+            @TempDir File image) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(key, value);
+            crashImage(data, image);
+        }
+
+        // Emulate a record written only partially
+        final File[] files = image.listFiles();
+        assertTrue(files != null);
+        for (final File file : files) {
+            if (file.getName().endsWith(".log")) {
+                java.nio.file.Files.write(
+                        file.toPath(),
+                        new byte[]{0, 0, 1, 0, 42, 42},
+                        StandardOpenOption.APPEND);
+            }
+        }
+
+        try (DAO dao = DAOFactory.create(image)) {
+            assertEquals(value, dao.get(key));
+        }
+    }
+}
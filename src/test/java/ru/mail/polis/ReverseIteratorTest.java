@@ -138,6 +138,42 @@ public class ReverseIteratorTest extends TestBase {
         }
     }
 
+    @Test
+    void reverseIteratorOverTables(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> map = new TreeMap<>();
+        final int rounds = 3;
+        for (int round = 0; round < rounds; round++) {
+            try (DAO dao = DAOFactory.create(data)) {
+                for (int i = 0; i < 100; i++) {
+                    final ByteBuffer key = randomKey();
+                    final ByteBuffer value = randomValue();
+                    dao.upsert(key, value);
+                    map.put(key, value);
+                }
+            }
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            // Newer values are kept and removals are seen across tables
+            final ByteBuffer overwritten = map.firstKey();
+            final ByteBuffer value = randomValue();
+            dao.upsert(overwritten, value);
+            map.put(overwritten, value);
+            final ByteBuffer removed = map.lastKey();
+            dao.remove(removed);
+            map.remove(removed);
+
+            final Iterator<Record> iterator = dao.reverseIterator();
+            for (var entry : map.descendingMap().entrySet()) {
+                final Record record = iterator.next();
+
+                assertEquals(entry.getKey(), record.getKey());
+                assertEquals(entry.getValue(), record.getValue());
+            }
+            assertFalse(iterator.hasNext());
+        }
+    }
+
     @Test
     void reverseIteratorFlush(@TempDir File data) throws IOException {
         final NavigableMap<ByteBuffer, ByteBuffer> map = new TreeMap<>();
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis;
+
+import ru.mail.polis.renuonego.Compression;
+import ru.mail.polis.renuonego.Config;
+import ru.mail.polis.renuonego.LSMDao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Measures the throughput of full scans merging overlapping tables of {@link LSMDao}.
+ * Run with the test classpath, optionally passing the number of tables and of keys per table.
+ */
+public final class ScanBenchmark {
+    private static final int WARMUP = 5;
+    private static final int ROUNDS = 10;
+
+    private ScanBenchmark() {
+        // Not instantiable
+    }
+
+    public static void main(final String[] args) throws IOException {
+        final int tables = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        final int keys = args.length > 1 ? Integer.parseInt(args[1]) : 50_000;
+        final File data = Files.createTempDirectory("scan").toFile();
+        final Config config = Config.builder()
+                .compression(Compression.NONE)
+                .level0CompactionTrigger(Integer.MAX_VALUE)
+                .build();
+        try {
+            // Every table overwrites a half of the keys of the previous ones
+            for (int table = 0; table < tables; table++) {
+                try (DAO dao = new LSMDao(data, config)) {
+                    for (int i = 0; i < keys; i++) {
+                        final int key = table * keys / 2 + i;
+                        dao.upsert(ByteBuffer.allocate(Integer.BYTES).putInt(0, key), TestBase.randomBuffer(16));
+                    }
+                }
+            }
+            run(data, config, tables);
+        } finally {
+            final File[] files = data.listFiles();
+            if (files != null) {
+                for (final File file : files) {
+                    Files.delete(file.toPath());
+                }
+            }
+            Files.delete(data.toPath());
+        }
+    }
+
+    private static void run(final File data, final Config config, final int tables) throws IOException {
+        try (DAO dao = new LSMDao(data, config)) {
+            long records = 0;
+            for (int round = 0; round < WARMUP; round++) {
+                records = scan(dao);
+            }
+            final long start = System.nanoTime();
+            for (int round = 0; round < ROUNDS; round++) {
+                scan(dao);
+            }
+            final long elapsed = System.nanoTime() - start;
+            System.out.printf("%d tables, %d records: %.0f records/s%n",
+                    tables, records, (double) records * ROUNDS * 1e9 / elapsed);
+        }
+    }
+
+    private static long scan(final DAO dao) throws IOException {
+        long records = 0;
+        long checksum = 0;
+        final Iterator<Record> iterator = dao.iterator(ByteBuffer.allocate(0));
+        while (iterator.hasNext()) {
+            checksum += iterator.next().getValue().get(0);
+            records++;
+        }
+        if (checksum == ThreadLocalRandom.current().nextLong()) {
+            System.out.println(checksum);
+        }
+        return records;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis;
+
+import com.google.common.collect.Iterators;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.renuonego.CompactionStyle;
+import ru.mail.polis.renuonego.Compression;
+import ru.mail.polis.renuonego.Config;
+import ru.mail.polis.renuonego.LSMDao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Size-tiered compaction tests for {@link LSMDao}.
+ */
+class SizeTieredCompactionTest extends TestBase {
+    private static Config config() {
+        return Config.builder()
+                .flushThreshold(32 * 1024)
+                .compression(Compression.NONE)
+                .compactionStyle(CompactionStyle.SIZE_TIERED)
+                .sizeTieredThreshold(4, 32)
+                .sizeTieredBucket(0.5, 1.5, 0)
+                .build();
+    }
+
+    private static ByteBuffer smallValue() {
+        return randomValue().limit(100);
+    }
+
+    @Test
+    void newestVersionsKept(@TempDir File data) throws IOException {
+        final List<ByteBuffer> keys = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            keys.add(randomKey());
+        }
+        final Map<ByteBuffer, ByteBuffer> expected = new HashMap<>();
+        final Random random = new Random(42);
+        try (DAO dao = new LSMDao(data, config())) {
+            for (int i = 0; i < 30_000; i++) {
+                final ByteBuffer key = keys.get(random.nextInt(keys.size()));
+                if (random.nextInt(10) == 0) {
+                    dao.remove(key);
+                    expected.remove(key);
+                } else {
+                    final ByteBuffer value = smallValue();
+                    dao.upsert(key, value);
+                    expected.put(key, value);
+                }
+            }
+        }
+
+        // About a hundred flushes end up in a few tiers
+        assertTrue(tables(data).size() < 16);
+
+        try (DAO dao = new LSMDao(data, config())) {
+            for (final ByteBuffer key : keys) {
+                final ByteBuffer value = expected.get(key);
+                if (value == null) {
+                    assertThrows(NoSuchElementException.class, () -> dao.get(key));
+                } else {
+                    assertEquals(value, dao.get(key));
+                }
+            }
+            assertEquals(expected.size(), Iterators.size(dao.iterator(ByteBuffer.allocate(0))));
+        }
+    }
+
+    @Test
+    void readsDuringCompaction(@TempDir File data) throws Exception {
+        final Map<ByteBuffer, ByteBuffer> fixed = new HashMap<>();
+        final ExecutorService writer = Executors.newSingleThreadExecutor();
+        try (DAO dao = new LSMDao(data, config())) {
+            for (int i = 0; i < 1000; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = smallValue();
+                dao.upsert(key, value);
+                fixed.put(key, value);
+            }
+
+            final Future<?> writes = writer.submit(() -> {
+                for (int i = 0; i < 30_000; i++) {
+                    dao.upsert(randomKey(), smallValue());
+                }
+                return null;
+            });
+            while (!writes.isDone()) {
+                for (final Map.Entry<ByteBuffer, ByteBuffer> entry : fixed.entrySet()) {
+                    assertEquals(entry.getValue(), dao.get(entry.getKey()));
+                }
+                assertTrue(Iterators.size(dao.iterator(ByteBuffer.allocate(0))) >= fixed.size());
+            }
+            writes.get();
+        } catch (ExecutionException e) {
+            throw (Exception) e.getCause();
+        } finally {
+            writer.shutdown();
+        }
+        assertTrue(tables(data).size() < 16);
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis;
+
+import com.google.common.collect.Iterators;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.renuonego.Config;
+import ru.mail.polis.renuonego.LSMDao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests of {@link Snapshot}s of {@link DAO}.
+ */
+class SnapshotTest extends TestBase {
+    private static final int ROUNDS = 3;
+    private static final int KEYS = 100;
+
+    private static Map<ByteBuffer, ByteBuffer> fill(final DAO dao) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            final ByteBuffer key = randomKey();
+            final ByteBuffer value = randomValue();
+            dao.upsert(key, value);
+            expected.put(key, value);
+        }
+        return expected;
+    }
+
+    private static void assertContains(final Map<ByteBuffer, ByteBuffer> expected,
+                                       final Snapshot snapshot) throws IOException {
+        final Iterator<Record> records = snapshot.iterator(ByteBuffer.allocate(0));
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            final Record record = records.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+            assertEquals(entry.getValue(), snapshot.get(entry.getKey()));
+        }
+        assertFalse(records.hasNext());
+    }
+
+    @Test
+    void laterWritesHidden(@TempDir File data) throws IOException {
+        try (DAO dao = DAOFactory.create(data)) {
+            final Map<ByteBuffer, ByteBuffer> expected = fill(dao);
+            try (Snapshot snapshot = dao.snapshot()) {
+                final Iterator<ByteBuffer> keys = expected.keySet().iterator();
+                final ByteBuffer removed = keys.next();
+                dao.remove(removed);
+                final ByteBuffer overwritten = keys.next();
+                final ByteBuffer value = randomValue();
+                dao.upsert(overwritten, value);
+                final ByteBuffer added = randomKey();
+                dao.upsert(added, randomValue());
+
+                assertContains(expected, snapshot);
+                assertThrows(NoSuchElementException.class, () -> snapshot.get(added));
+                assertEquals(expected.size(), Iterators.size(snapshot.reverseIterator()));
+
+                assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+                assertEquals(value, dao.get(overwritten));
+            }
+        }
+    }
+
+    @Test
+    void snapshotsAddNoTables(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = DAOFactory.create(data)) {
+            for (int round = 0; round < ROUNDS; round++) {
+                expected.putAll(fill(dao));
+                try (Snapshot snapshot = dao.snapshot()) {
+                    assertContains(expected, snapshot);
+                }
+            }
+            // Snapshots read the memtable, which is flushed on close only
+            assertEquals(0, tables(data).size());
+        }
+        assertEquals(1, tables(data).size());
+    }
+
+    @Test
+    void memTableVersions(@TempDir File data) throws IOException {
+        checkVersions(data, Config.builder().build());
+    }
+
+    @Test
+    void offHeapMemTableVersions(@TempDir File data) throws IOException {
+        checkVersions(data, Config.builder().offHeapMemTable(true).build());
+    }
+
+    /**
+     * Checks that snapshots of the same memtable see the values as of their own times.
+     */
+    private static void checkVersions(final File data, final Config config) throws IOException {
+        try (DAO dao = new LSMDao(data, config)) {
+            final Map<ByteBuffer, ByteBuffer> first = fill(dao);
+            final Snapshot firstSnapshot = dao.snapshot();
+            final Map<ByteBuffer, ByteBuffer> second = new TreeMap<>();
+            for (final ByteBuffer key : first.keySet()) {
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                second.put(key, value);
+            }
+            second.putAll(fill(dao));
+            final Snapshot secondSnapshot = dao.snapshot();
+
+            for (final ByteBuffer key : second.keySet()) {
+                dao.upsert(key, randomValue());
+            }
+            // Greater than any of the keys
+            final byte[] last = new byte[KEY_LENGTH + 1];
+            Arrays.fill(last, Byte.MAX_VALUE);
+            dao.removeRange(ByteBuffer.allocate(0), ByteBuffer.wrap(last));
+            final ByteBuffer added = randomKey();
+            dao.upsert(added, randomValue());
+
+            assertContains(first, firstSnapshot);
+            assertContains(second, secondSnapshot);
+            firstSnapshot.close();
+            secondSnapshot.close();
+
+            final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+            assertEquals(added, records.next().getKey());
+            assertFalse(records.hasNext());
+        }
+    }
+
+    @Test
+    void snapshotOutlivesCompaction(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        for (int round = 0; round < ROUNDS; round++) {
+            try (DAO dao = DAOFactory.create(data)) {
+                expected.putAll(fill(dao));
+            }
+        }
+        assertEquals(ROUNDS, tables(data).size());
+
+        try (DAO dao = DAOFactory.create(data)) {
+            final Snapshot snapshot = dao.snapshot();
+            for (final ByteBuffer key : expected.keySet()) {
+                dao.remove(key);
+            }
+            // Everything is removed, so only the tables pinned by the snapshot remain
+            dao.compact();
+            assertEquals(ROUNDS, tables(data).size());
+            assertContains(expected, snapshot);
+
+            snapshot.close();
+            assertEquals(0, tables(data).size());
+            assertFalse(dao.iterator(ByteBuffer.allocate(0)).hasNext());
+        }
+    }
+
+    @Test
+    void closedSnapshotRejected(@TempDir File data) throws IOException {
+        try (DAO dao = DAOFactory.create(data)) {
+            final Map<ByteBuffer, ByteBuffer> expected = fill(dao);
+            final Snapshot snapshot = dao.snapshot();
+            final Iterator<Record> records = snapshot.iterator(ByteBuffer.allocate(0));
+            snapshot.close();
+            snapshot.close();
+
+            // Iterators taken before closing keep working
+            for (final ByteBuffer key : expected.keySet()) {
+                assertEquals(key, records.next().getKey());
+            }
+            assertFalse(records.hasNext());
+            final ByteBuffer key = expected.keySet().iterator().next();
+            assertThrows(IllegalStateException.class, () -> snapshot.get(key));
+            assertThrows(IllegalStateException.class, () -> snapshot.iterator(ByteBuffer.allocate(0)));
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.renuonego.Compression;
+import ru.mail.polis.renuonego.Config;
+import ru.mail.polis.renuonego.LSMDao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Spliterator;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of parallel scans of {@link DAO} by its {@link Spliterator}.
+ */
+class SpliteratorTest extends TestBase {
+    private static final int ROUNDS = 3;
+    private static final int KEYS = 1000;
+
+    private static Config config() {
+        return Config.builder()
+                .blockSize(1024)
+                .compression(Compression.NONE)
+                .level0CompactionTrigger(ROUNDS + 1)
+                .build();
+    }
+
+    /**
+     * Writes overlapping tables, removes some keys and leaves a few writes in the memtable.
+     */
+    private static NavigableMap<ByteBuffer, ByteBuffer> fill(final File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        final List<ByteBuffer> keys = new ArrayList<>();
+        for (int round = 0; round < ROUNDS; round++) {
+            try (DAO dao = new LSMDao(data, config())) {
+                for (int i = 0; i < KEYS; i++) {
+                    final ByteBuffer key = i % 2 == 0 && !keys.isEmpty() ? keys.get(i % keys.size()) : randomKey();
+                    final ByteBuffer value = randomBuffer(64);
+                    dao.upsert(key, value);
+                    expected.put(key, value);
+                    keys.add(key);
+                }
+                for (int i = 0; i < KEYS / 10; i++) {
+                    final ByteBuffer key = keys.get(i * 7 % keys.size());
+                    dao.remove(key);
+                    expected.remove(key);
+                }
+            }
+        }
+        return expected;
+    }
+
+    private static List<ByteBuffer> keys(final Spliterator<Record> records) {
+        return StreamSupport.stream(records, false).map(Record::getKey).collect(Collectors.toList());
+    }
+
+    @Test
+    void parallelScan(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = fill(data);
+        try (DAO dao = new LSMDao(data, config())) {
+            final ByteBuffer key = randomKey();
+            final ByteBuffer value = randomBuffer(64);
+            dao.upsert(key, value);
+            expected.put(key, value);
+
+            final List<Record> records = StreamSupport.stream(dao.spliterator(ByteBuffer.allocate(0), null), true)
+                    .collect(Collectors.toList());
+            assertEquals(expected.size(), records.size());
+            int i = 0;
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getKey(), records.get(i).getKey());
+                assertEquals(entry.getValue(), records.get(i).getValue());
+                i++;
+            }
+        }
+    }
+
+    @Test
+    void splitsAreDisjoint(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = fill(data);
+        final ByteBuffer from = expected.firstKey();
+        final ByteBuffer to = expected.lastKey();
+        try (DAO dao = new LSMDao(data, config())) {
+            final Spliterator<Record> suffix = dao.spliterator(from, to);
+            final Spliterator<Record> prefix = suffix.trySplit();
+            assertNotNull(prefix);
+
+            final List<ByteBuffer> prefixKeys = keys(prefix);
+            final List<ByteBuffer> suffixKeys = keys(suffix);
+            assertTrue(!prefixKeys.isEmpty() && !suffixKeys.isEmpty());
+            assertTrue(prefixKeys.get(prefixKeys.size() - 1).compareTo(suffixKeys.get(0)) < 0);
+
+            final List<ByteBuffer> all = new ArrayList<>(prefixKeys);
+            all.addAll(suffixKeys);
+            assertEquals(new ArrayList<>(expected.subMap(from, to).keySet()), all);
+        }
+    }
+}
@@ -18,8 +18,18 @@ package ru.mail.polis;
 
 import org.jetbrains.annotations.NotNull;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 /**
  * Contains utility methods for unit tests.
@@ -29,6 +39,8 @@ import java.util.concurrent.ThreadLocalRandom;
 abstract class TestBase {
     static final int KEY_LENGTH = 16;
     private static final int VALUE_LENGTH = 1024;
+    private static final Pattern TABLE = Pattern.compile("SSTABLE\\d+\\.dat");
+    private static final Pattern LEVELED_TABLE = Pattern.compile("SSTABLE\\d+-\\d+\\.dat");
 
     @NotNull
     static ByteBuffer randomBuffer(final int length) {
@@ -58,4 +70,51 @@ abstract class TestBase {
         result.rewind();
         return result;
     }
+
+    /**
+     * Lists the table files of the storage, leaving out the ones being written.
+     * Tables are named by generation only, the level being kept by the manifest.
+     */
+    @NotNull
+    static Set<String> tables(@NotNull final File data) {
+        final String[] names = data.list();
+        assertTrue(names != null);
+        final Set<String> result = new HashSet<>();
+        for (final String name : names) {
+            if (TABLE.matcher(name).matches()) {
+                result.add(name);
+            }
+            assertFalse(LEVELED_TABLE.matcher(name).matches());
+        }
+        return result;
+    }
+
+    /**
+     * Emulates a crash by copying the storage files while the storage is still open.
+     */
+    static void crashImage(
+            @NotNull final File data,
+            @NotNull final File image) throws IOException {
+        // Logs go first: a log disappears only after its table is published
+        copy(data, image, true);
+        copy(data, image, false);
+    }
+
+    private static void copy(
+            @NotNull final File data,
+            @NotNull final File image,
+            final boolean logs) throws IOException {
+        final File[] files = data.listFiles();
+        assertTrue(files != null);
+        for (final File file : files) {
+            if (file.getName().endsWith(".log") != logs) {
+                continue;
+            }
+            try {
+                Files.copy(file.toPath(), new File(image, file.getName()).toPath());
+            } catch (NoSuchFileException e) {
+                // Flushed or renamed meanwhile
+            }
+        }
+    }
 }
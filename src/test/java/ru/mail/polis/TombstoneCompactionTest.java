@@ -0,0 +1,86 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.renuonego.CompactionStyle;
+import ru.mail.polis.renuonego.Compression;
+import ru.mail.polis.renuonego.Config;
+import ru.mail.polis.renuonego.LSMDao;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Tests of compactions of {@link LSMDao} triggered by the tombstones and expired values a table holds.
+ */
+class TombstoneCompactionTest extends TestBase {
+    private static final int KEYS = 1000;
+    private static final Duration TTL = Duration.ofMillis(100);
+
+    private static Config.Builder leveled() {
+        return Config.builder()
+                .compression(Compression.NONE)
+                .level0CompactionTrigger(1);
+    }
+
+    private static Config.Builder sizeTiered() {
+        return Config.builder()
+                .compression(Compression.NONE)
+                .compactionStyle(CompactionStyle.SIZE_TIERED);
+    }
+
+    /**
+     * Writes a single table of expiring values and reopens the storage once they have expired.
+     */
+    private static void expire(final File data, final Config config) throws Exception {
+        try (DAO dao = new LSMDao(data, config)) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(randomKey(), randomValue(), TTL);
+            }
+        }
+
+        Thread.sleep(2 * TTL.toMillis());
+        try (DAO dao = new LSMDao(data, config)) {
+            assertFalse(dao.iterator(ByteBuffer.allocate(0)).hasNext());
+        }
+    }
+
+    @Test
+    void leveledDropsExpired(@TempDir File data) throws Exception {
+        expire(data, leveled().build());
+        assertEquals(0, tables(data).size());
+    }
+
+    @Test
+    void sizeTieredDropsExpired(@TempDir File data) throws Exception {
+        expire(data, sizeTiered().build());
+        assertEquals(0, tables(data).size());
+    }
+
+    @Test
+    void thresholdDisables(@TempDir File data) throws Exception {
+        expire(data, leveled().tombstoneThreshold(1).build());
+        assertEquals(1, tables(data).size());
+    }
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of {@link WriteBatch} applied to {@link DAO}.
+ */
+class WriteBatchTest extends TestBase {
+    private static final int COUNT = 100;
+
+    @Test
+    void lastModificationWins(@TempDir File data) throws IOException {
+        final ByteBuffer removed = randomKey();
+        final ByteBuffer updated = randomKey();
+        final ByteBuffer value = randomValue();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.apply(new WriteBatch()
+                    .upsert(removed, randomValue())
+                    .upsert(updated, randomValue())
+                    .remove(removed)
+                    .upsert(updated, value));
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+            assertEquals(value, dao.get(updated));
+        }
+    }
+
+    @Test
+    void replayedAfterCrash(
+            @TempDir File data,
+            @TempDir File image) throws IOException {
+        final ByteBuffer removed = randomKey();
+        final List<ByteBuffer> keys = new ArrayList<>();
+        final List<ByteBuffer> values = new ArrayList<>();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(removed, randomValue());
+            final WriteBatch batch = new WriteBatch().remove(removed);
+            for (int i = 0; i < COUNT; i++) {
+                keys.add(randomKey());
+                values.add(randomValue());
+                batch.upsert(keys.get(i), values.get(i));
+            }
+            dao.apply(batch);
+            crashImage(data, image);
+        }
+
+        try (DAO dao = DAOFactory.create(image)) {
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+            for (int i = 0; i < COUNT; i++) {
+                assertEquals(values.get(i), dao.get(keys.get(i)));
+            }
+        }
+    }
+
+    @Test
+    void tornBatchIgnored(
+            @TempDir File data,
+            @TempDir File image) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+        final List<ByteBuffer> keys = new ArrayList<>();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(key, value);
+            final WriteBatch batch = new WriteBatch().remove(key);
+            for (int i = 0; i < COUNT; i++) {
+                keys.add(randomKey());
+                batch.upsert(keys.get(i), randomValue());
+            }
+            dao.apply(batch);
+            crashImage(data, image);
+        }
+
+        // Emulate the batch written only partially
+        final File[] files = image.listFiles();
+        assertTrue(files != null);
+        for (final File file : files) {
+            if (file.getName().endsWith(".log")) {
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                    channel.truncate(channel.size() - 1);
+                }
+            }
+        }
+
+        try (DAO dao = DAOFactory.create(image)) {
+            assertEquals(value, dao.get(key));
+            for (final ByteBuffer batchKey : keys) {
+                assertThrows(NoSuchElementException.class, () -> dao.get(batchKey));
+            }
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis.renuonego;
+
+import com.google.common.collect.Iterators;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of {@link BlockSSTable}s whose blocks are mapped in several segments,
+ * which are forced to be small instead of writing tables larger than 2 GB.
+ */
+class BlockSSTableTest {
+    private static final int KEYS = 1000;
+    private static final int BLOCK_SIZE = 1024;
+
+    /**
+     * Returns the key of the i-th cell, leaving a missing key between every two.
+     */
+    @NotNull
+    private static ByteBuffer key(final int i) {
+        return key(i, false);
+    }
+
+    @NotNull
+    private static ByteBuffer key(final int i, final boolean missing) {
+        return ByteBuffer.wrap(String.format("%08d", 2 * i + (missing ? 1 : 0)).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @NotNull
+    private static ByteBuffer value(final int i) {
+        // Compressible halves, so that compressed blocks differ in size
+        final byte[] value = new byte[100];
+        new Random(i).nextBytes(value);
+        Arrays.fill(value, 0, i % value.length, (byte) 0);
+        return ByteBuffer.wrap(value);
+    }
+
+    @NotNull
+    private static File write(@NotNull final File data,
+                              @NotNull final Compression compression) throws IOException {
+        final List<Cell> cells = new ArrayList<>();
+        for (int i = 0; i < KEYS; i++) {
+            cells.add(new Cell(key(i), Value.of(value(i), i + 1, Value.NEVER)));
+        }
+        final File file = new File(data, compression + LSMDao.SUFFIX);
+        final Config config = Config.builder()
+                .blockSize(BLOCK_SIZE)
+                .compression(compression)
+                .build();
+        SSTable.write(
+                Iterators.peekingIterator(cells.iterator()),
+                RangeTombstones.EMPTY,
+                null,
+                file,
+                config,
+                Long.MAX_VALUE);
+        return file;
+    }
+
+    @NotNull
+    private static BlockSSTable open(@NotNull final File file, final long maxSegment) throws IOException {
+        return new BlockSSTable(file, 1, 0, new BlockCache(1024 * 1024, false), maxSegment);
+    }
+
+    /**
+     * Returns the offsets of the blocks, which start their own segments if no two blocks fit a segment.
+     */
+    @NotNull
+    private static long[] blockStarts(@NotNull final File file) throws IOException {
+        try (BlockSSTable table = open(file, 1)) {
+            return table.segmentStarts();
+        }
+    }
+
+    private static void assertContents(@NotNull final BlockSSTable table) {
+        for (int i = 0; i < KEYS; i++) {
+            final Value value = table.get(key(i));
+            assertTrue(value != null);
+            assertEquals(value(i), value.getData());
+            assertNull(table.get(key(i, true)));
+        }
+
+        final Iterator<Cell> cells = table.iterator(ByteBuffer.allocate(0));
+        for (int i = 0; i < KEYS; i++) {
+            final Cell cell = cells.next();
+            assertEquals(key(i), cell.getKey());
+            assertEquals(value(i), cell.getValue().getData());
+        }
+        assertFalse(cells.hasNext());
+
+        final Iterator<Cell> reversed = table.reverseIterator();
+        for (int i = KEYS - 1; i >= 0; i--) {
+            final Cell cell = reversed.next();
+            assertEquals(key(i), cell.getKey());
+            assertEquals(value(i), cell.getValue().getData());
+        }
+        assertFalse(reversed.hasNext());
+
+        // Starting in the middle of every segment
+        for (int from = 0; from < KEYS; from += 7) {
+            final Iterator<Cell> forward = table.iterator(key(from));
+            for (int i = from; i < KEYS; i++) {
+                assertEquals(key(i), forward.next().getKey());
+            }
+            assertFalse(forward.hasNext());
+
+            final Iterator<Cell> backward = table.reverseIterator(key(from));
+            for (int i = from; i >= 0; i--) {
+                assertEquals(key(i), backward.next().getKey());
+            }
+            assertFalse(backward.hasNext());
+        }
+    }
+
+    @Test
+    void segmentPerBlock(@TempDir File data) throws IOException {
+        for (final Compression compression : Compression.values()) {
+            final File file = write(data, compression);
+            final long[] blocks = blockStarts(file);
+            assertTrue(blocks.length > 10);
+            try (BlockSSTable table = open(file, 1)) {
+                assertContents(table);
+            }
+        }
+    }
+
+    @Test
+    void blockEndingAtSegmentEnd(@TempDir File data) throws IOException {
+        for (final Compression compression : Compression.values()) {
+            final File file = write(data, compression);
+            final long[] blocks = blockStarts(file);
+            for (final int end : new int[]{1, 2, blocks.length / 2, blocks.length - 1}) {
+                // The blocks before the end fill the first segment exactly, so the next ones start another
+                try (BlockSSTable table = open(file, blocks[end])) {
+                    final long[] segments = table.segmentStarts();
+                    assertTrue(segments.length > 1);
+                    assertEquals(0, segments[0]);
+                    assertEquals(blocks[end], segments[1]);
+                    assertContents(table);
+                }
+                // A byte less leaves the last of them out, unless it is the only one
+                try (BlockSSTable table = open(file, blocks[end] - 1)) {
+                    assertEquals(blocks[Math.max(1, end - 1)], table.segmentStarts()[1]);
+                }
+            }
+        }
+    }
+
+    @Test
+    void singleSegment(@TempDir File data) throws IOException {
+        final File file = write(data, Compression.NONE);
+        try (BlockSSTable table = open(file, Integer.MAX_VALUE)) {
+            assertArrayEquals(new long[]{0}, table.segmentStarts());
+            assertContents(table);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis.renuonego;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.DAO;
+import ru.mail.polis.Record;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of memtables flushed by {@link LSMDao} in the background.
+ * Flushes are held back by a task occupying the flusher until the test lets them run.
+ */
+class FlushTest {
+    private static final int VALUE_SIZE = 1024;
+    private static final int KEYS_PER_MEMTABLE = 64;
+    private static final long FLUSH_THRESHOLD = KEYS_PER_MEMTABLE * VALUE_SIZE;
+
+    @NotNull
+    private static Config config() {
+        return Config.builder()
+                .flushThreshold(FLUSH_THRESHOLD)
+                .build();
+    }
+
+    @NotNull
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.wrap(String.format("%08d", i).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @NotNull
+    private static ByteBuffer value(final int i) {
+        final byte[] value = new byte[VALUE_SIZE];
+        new Random(i).nextBytes(value);
+        return ByteBuffer.wrap(value);
+    }
+
+    /**
+     * Returns the flusher, which runs no flush until the latch is counted down.
+     */
+    @NotNull
+    private static ExecutorService heldFlusher(@NotNull final CountDownLatch hold) {
+        final ExecutorService flusher = Executors.newSingleThreadExecutor();
+        flusher.execute(() -> Uninterruptibles.awaitUninterruptibly(hold));
+        return flusher;
+    }
+
+    private static void upsert(@NotNull final DAO dao, final int from, final int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            dao.upsert(key(i), value(i));
+        }
+    }
+
+    private static void assertContents(@NotNull final DAO dao, final int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            assertEquals(value(i), dao.get(key(i)));
+        }
+
+        final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+        for (int i = 0; i < count; i++) {
+            final Record record = records.next();
+            assertEquals(key(i), record.getKey());
+            assertEquals(value(i), record.getValue());
+        }
+        assertFalse(records.hasNext());
+
+        final Iterator<Record> reversed = dao.reverseIterator();
+        for (int i = count - 1; i >= 0; i--) {
+            assertEquals(key(i), reversed.next().getKey());
+        }
+        assertFalse(reversed.hasNext());
+    }
+
+    private static int tables(@NotNull final File data) {
+        final String[] names = data.list((dir, name) -> name.matches("SSTABLE\\d+\\.dat"));
+        assertTrue(names != null);
+        return names.length;
+    }
+
+    @Test
+    void readsSeeFlushingTables(@TempDir File data) throws IOException {
+        final CountDownLatch hold = new CountDownLatch(1);
+        final int count = 3 * KEYS_PER_MEMTABLE / 2;
+        try (LSMDao dao = new LSMDao(data, config(), heldFlusher(hold))) {
+            try {
+                upsert(dao, 0, count);
+                // The first memtable waits for the flusher, the rest of the keys are in the next one
+                assertEquals(0, tables(data));
+                assertContents(dao, count);
+            } finally {
+                hold.countDown();
+            }
+
+            dao.awaitCompactions();
+            assertEquals(1, tables(data));
+            assertContents(dao, count);
+        }
+    }
+
+    @Test
+    void writesProceedWhileFlushing(@TempDir File data) throws IOException {
+        final CountDownLatch hold = new CountDownLatch(1);
+        // Fills two memtables, which may wait for the flusher at once, and starts the third one
+        final int count = 5 * KEYS_PER_MEMTABLE / 2;
+        try (LSMDao dao = new LSMDao(data, config(), heldFlusher(hold))) {
+            try {
+                assertTimeoutPreemptively(Duration.ofMinutes(1), () -> upsert(dao, 0, count));
+                assertEquals(0, tables(data));
+                assertContents(dao, count);
+            } finally {
+                hold.countDown();
+            }
+
+            dao.awaitCompactions();
+            assertEquals(2, tables(data));
+            assertContents(dao, count);
+        }
+    }
+
+    @Test
+    void failedFlushReported(@TempDir File data) throws IOException {
+        final int count = 3 * KEYS_PER_MEMTABLE / 2;
+        final LSMDao dao = new LSMDao(data, config());
+        // The first memtable is written to a temporary file of its generation, which a directory takes instead
+        final File blocker = new File(data, "SSTABLE1.tmp");
+        assertTrue(blocker.mkdir());
+        upsert(dao, 0, count);
+        dao.awaitCompactions();
+
+        // The memtable is kept in memory, while the next one is flushed on close
+        assertEquals(0, tables(data));
+        assertContents(dao, count);
+        assertThrows(IOException.class, dao::close);
+        assertEquals(1, tables(data));
+
+        // The log of the memtable is kept too, so reopening the storage recovers it
+        try (DAO reopened = new LSMDao(data, config())) {
+            assertFalse(blocker.exists());
+            assertContents(reopened, count);
+        }
+        assertEquals(2, tables(data));
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis.renuonego;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of the slabs and the concurrent skip list of {@link OffHeapMemTable}.
+ */
+class OffHeapMemTableTest {
+    private static final int SLAB_SIZE = 1024 * 1024;
+    private static final int THREADS = 8;
+    private static final int KEYS = 1000;
+
+    @NotNull
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.wrap(String.format("%08d", i).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @NotNull
+    private static ByteBuffer value(final long timestamp) {
+        return ByteBuffer.allocate(Long.BYTES).putLong(0, timestamp);
+    }
+
+    private static long directMemoryUsed() {
+        for (final BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) {
+                return pool.getMemoryUsed();
+            }
+        }
+        throw new AssertionError("No direct buffer pool");
+    }
+
+    /**
+     * Fills the table with values of a slab each and checks that it takes that much direct memory.
+     */
+    private static void fill(@NotNull final OffHeapMemTable table, final int slabs) {
+        final long used = directMemoryUsed();
+        for (int i = 0; i < slabs; i++) {
+            table.upsert(key(i), ByteBuffer.allocate(SLAB_SIZE), i + 1, Value.NEVER);
+        }
+        assertTrue(directMemoryUsed() - used >= (long) slabs * SLAB_SIZE);
+    }
+
+    @Test
+    void releaseFreesSlabs() throws IOException {
+        final long used = directMemoryUsed();
+        final OffHeapMemTable table = new OffHeapMemTable();
+        fill(table, 16);
+
+        // Reads get copies, which stay valid after the slabs are freed
+        final ByteBuffer value = table.get(key(0)).getData();
+        assertFalse(value.isDirect());
+        table.release();
+        assertTrue(directMemoryUsed() - used < SLAB_SIZE);
+        assertFalse(table.acquire());
+        assertEquals(SLAB_SIZE, value.remaining());
+    }
+
+    @Test
+    void readersKeepSlabs() throws IOException {
+        final long used = directMemoryUsed();
+        final OffHeapMemTable table = new OffHeapMemTable();
+        fill(table, 4);
+
+        assertTrue(table.acquire());
+        final Iterator<Cell> cells = table.iterator(ByteBuffer.allocate(0));
+        // The storage lets the table go, while the reader goes on
+        table.release();
+        for (int i = 0; i < 4; i++) {
+            assertEquals(key(i), cells.next().getKey());
+        }
+        assertFalse(cells.hasNext());
+        assertTrue(directMemoryUsed() - used >= 4L * SLAB_SIZE);
+
+        table.release();
+        assertTrue(directMemoryUsed() - used < SLAB_SIZE);
+    }
+
+    @Test
+    void viewKeepsSlabs() throws IOException {
+        final long used = directMemoryUsed();
+        final OffHeapMemTable table = new OffHeapMemTable();
+        fill(table, 4);
+
+        final MemTableView view = table.pin(4);
+        table.upsert(key(0), value(5), 5, Value.NEVER);
+        table.release();
+        assertEquals(SLAB_SIZE, view.get(key(0)).getData().remaining());
+        assertTrue(directMemoryUsed() - used >= 4L * SLAB_SIZE);
+
+        view.release();
+        assertTrue(directMemoryUsed() - used < SLAB_SIZE);
+    }
+
+    @Test
+    void concurrentInserts() throws Exception {
+        final OffHeapMemTable table = new OffHeapMemTable();
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        final AtomicLong timestamps = new AtomicLong();
+        try {
+            final List<Future<Map<Integer, Long>>> writers = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                final int thread = t;
+                writers.add(executor.submit(() -> {
+                    // Neighbouring keys are linked by different threads, and every key is overwritten by all of them
+                    final Map<Integer, Long> written = new HashMap<>();
+                    for (int round = 0; round < 2; round++) {
+                        for (int i = thread; i < THREADS * KEYS; i += THREADS) {
+                            final int key = (i + round * KEYS) % (THREADS * KEYS);
+                            final long timestamp = timestamps.incrementAndGet();
+                            table.upsert(key(key), value(timestamp), timestamp, Value.NEVER);
+                            written.merge(key, timestamp, Math::max);
+                        }
+                    }
+                    return written;
+                }));
+            }
+            final Map<Integer, Long> expected = new HashMap<>();
+            for (final Future<Map<Integer, Long>> writer : writers) {
+                for (final Map.Entry<Integer, Long> entry : writer.get(1, TimeUnit.MINUTES).entrySet()) {
+                    expected.merge(entry.getKey(), entry.getValue(), Math::max);
+                }
+            }
+
+            // The newest value of every key wins, whichever thread has written it
+            final Iterator<Cell> cells = table.iterator(ByteBuffer.allocate(0));
+            for (int i = 0; i < THREADS * KEYS; i++) {
+                final Cell cell = cells.next();
+                assertEquals(key(i), cell.getKey());
+                assertEquals(value(expected.get(i)), cell.getValue().getData());
+            }
+            assertFalse(cells.hasNext());
+
+            final Iterator<Cell> reversed = table.reverseIterator();
+            for (int i = THREADS * KEYS - 1; i >= 0; i--) {
+                assertEquals(key(i), reversed.next().getKey());
+                assertNotNull(table.get(key(i)));
+            }
+            assertFalse(reversed.hasNext());
+        } finally {
+            executor.shutdownNow();
+            table.release();
+        }
+    }
+}